@@ -0,0 +1,184 @@
+
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2018 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.wpi.first.networktables.NetworkTableEntry;
+import edu.wpi.first.networktables.NetworkTableInstance;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import visiontargetfilter.ContourPipeline;
+import visiontargetfilter.GripPipeline;
+import visiontargetfilter.VisionTargetFilter;
+import visiontargetfinder.VisionTargetFinder;
+
+/*
+   Measures the heap bytes the vision thread allocates per frame, stage by
+   stage, by running the same path MyPipeline and the publish listener run on
+   a set of recorded frames.
+
+   Usage:
+       AllocationBudget <frame directory> [options]
+
+   Options:
+       --iterations <n>        passes over the frames to measure (default 20)
+       --warmup <n>            passes run first and not measured, so the JIT has
+                               settled (default 10)
+       --grip <file>           run a .grip file instead of VisionTargetFilter
+       --budget <stage>=<n>    fail if the stage allocates more than n bytes per
+                               frame on average; may be repeated
+
+   Stages are filter, find, annotate, publish and frame (all of them). The exit
+   status is 1 if a budget was exceeded.
+ */
+public final class AllocationBudget {
+
+  private static final String[] STAGES = { "filter", "find", "annotate", "publish", "frame" };
+
+  private AllocationBudget() {
+  }
+
+  /**
+   * Bytes allocated on the heap by the current thread so far.
+   */
+  private static long allocatedBytes(com.sun.management.ThreadMXBean threads, long threadId) {
+    return threads.getThreadAllocatedBytes(threadId);
+  }
+
+  /**
+   * Main.
+   */
+  public static void main(String... args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("usage: AllocationBudget <frame directory> [--iterations n] [--warmup n] [--grip file]"
+          + " [--budget stage=bytes]...");
+      System.exit(2);
+    }
+
+    int iterations = 20;
+    int warmup = 10;
+    String grip = null;
+    Map<String, Long> budgets = new LinkedHashMap<>();
+    for (int index = 1; index < args.length; ++index) {
+      switch (args[index]) {
+      case "--iterations":
+        iterations = Integer.parseInt(args[++index]);
+        break;
+      case "--warmup":
+        warmup = Integer.parseInt(args[++index]);
+        break;
+      case "--grip":
+        grip = args[++index];
+        break;
+      case "--budget":
+        String[] budget = args[++index].split("=");
+        if (!Arrays.asList(STAGES).contains(budget[0])) {
+          System.err.println("unknown stage '" + budget[0] + "'");
+          System.exit(2);
+        }
+        budgets.put(budget[0], Long.parseLong(budget[1]));
+        break;
+      default:
+        System.err.println("unknown option '" + args[index] + "'");
+        System.exit(2);
+      }
+    }
+
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+    List<Mat> frames = new ArrayList<>();
+    File[] files = new File(args[0]).listFiles();
+    if (files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        String name = file.getName().toLowerCase();
+        if (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".bmp")) {
+          Mat frame = Imgcodecs.imread(file.getPath());
+          if (!frame.empty()) {
+            frames.add(frame);
+          }
+        }
+      }
+    }
+    if (frames.isEmpty()) {
+      System.err.println("no frames found in '" + args[0] + "'");
+      System.exit(2);
+    }
+
+    ContourPipeline contourPipeline = grip != null ? GripPipeline.load(grip) : new VisionTargetFilter();
+    VisionTargetFinder targetFinder = new VisionTargetFinder(contourPipeline);
+
+    /* A local NetworkTables instance that's never started, so publishing goes nowhere. */
+    NetworkTableInstance ntinst = NetworkTableInstance.create();
+    NetworkTableEntry targetInformation = ntinst.getTable("Vision").getEntry("targetInformation");
+
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    threads.setThreadAllocatedMemoryEnabled(true);
+    long threadId = Thread.currentThread().getId();
+
+    long[] totals = new long[STAGES.length];
+    long[] worst = new long[STAGES.length];
+    long[] marks = new long[STAGES.length + 1];
+    long measuredFrames = 0;
+    Mat annotated = new Mat();
+
+    for (int pass = 0; pass < warmup + iterations; ++pass) {
+      boolean measuring = pass >= warmup;
+      for (Mat frame : frames) {
+        frame.copyTo(annotated);
+        long startTime = System.currentTimeMillis();
+
+        marks[0] = allocatedBytes(threads, threadId);
+        contourPipeline.process(frame);
+        marks[1] = allocatedBytes(threads, threadId);
+        VisionTargetFinder.TargetInformation target = targetFinder.findVisionTarget(frame);
+        marks[2] = allocatedBytes(threads, threadId);
+        targetFinder.annotateStream(annotated);
+        marks[3] = allocatedBytes(threads, threadId);
+        Main.publishTarget(targetInformation, 0, "allocationBudget", target, startTime);
+        marks[4] = allocatedBytes(threads, threadId);
+
+        if (measuring) {
+          for (int stage = 0; stage < 4; ++stage) {
+            long bytes = marks[stage + 1] - marks[stage];
+            totals[stage] += bytes;
+            worst[stage] = Math.max(worst[stage], bytes);
+          }
+          long bytes = marks[4] - marks[0];
+          totals[4] += bytes;
+          worst[4] = Math.max(worst[4], bytes);
+          ++measuredFrames;
+        }
+      }
+    }
+
+    boolean overBudget = false;
+    System.out.println(String.format("%d frames, %d measured", frames.size(), measuredFrames));
+    System.out.println(String.format("%-10s %14s %14s %14s", "stage", "mean B/frame", "max B/frame", "budget"));
+    for (int stage = 0; stage < STAGES.length; ++stage) {
+      long mean = totals[stage] / measuredFrames;
+      Long budget = budgets.get(STAGES[stage]);
+      boolean over = budget != null && mean > budget;
+      overBudget |= over;
+      System.out.println(String.format("%-10s %14d %14d %14s%s", STAGES[stage], mean, worst[stage],
+          budget != null ? budget.toString() : "-", over ? "  OVER BUDGET" : ""));
+    }
+
+    ntinst.close();
+    System.exit(overBudget ? 1 : 0);
+  }
+}
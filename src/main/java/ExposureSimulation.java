@@ -0,0 +1,140 @@
+
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2018 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+import visionservice.ExposureController;
+import visionservice.SimulatedCamera;
+
+/*
+   Runs the ExposureController against a SimulatedCamera in a few venues and
+   reports whether it settles in its band, how long it takes, and whether it
+   keeps stepping once it has. Needs no camera or OpenCV, so it can be run
+   anywhere a change to the controller is made.
+
+   Usage:
+       ExposureSimulation [options]
+
+   Options:
+       --seconds <n>            simulated seconds per venue (default 20)
+       --fps <n>                frames a second (default 30)
+       --exposure <percent>     starting exposure (default 50)
+       --brightness <percent>   starting brightness (default 50)
+       --target <fraction>      fraction of the frame the target covers (default 0.004)
+       --seed <n>               (default 1481)
+       --verbose                print every step
+
+   Venues are dim (half a shop's lighting), shop, arena (three times a shop's)
+   and lights up (a shop until halfway, then an arena). A venue settles once the
+   smoothed lit fraction and contour count stay in the band; steps after that
+   are counted as hunting. Exits with status 1 if any venue didn't settle.
+ */
+public final class ExposureSimulation {
+
+  private static final String[] VENUES = { "dim", "shop", "arena", "lights up" };
+  private static final double[][] LIGHTING = { { 0.5, 0.5 }, { 1.0, 1.0 }, { 3.0, 3.0 }, { 1.0, 3.0 } };
+
+  /* Seconds in the band that count as settled. */
+  private static final double SETTLED_SECONDS = 2.0;
+
+  private ExposureSimulation() {
+  }
+
+  /**
+   * Main.
+   */
+  public static void main(String... args) {
+    double seconds = 20.0;
+    int fps = 30;
+    int exposure = 50;
+    int brightness = 50;
+    double targetFraction = 0.004;
+    long seed = 1481;
+    boolean verbose = false;
+    for (int index = 0; index < args.length; ++index) {
+      switch (args[index]) {
+      case "--seconds":
+        seconds = Double.parseDouble(args[++index]);
+        break;
+      case "--fps":
+        fps = Integer.parseInt(args[++index]);
+        break;
+      case "--exposure":
+        exposure = Integer.parseInt(args[++index]);
+        break;
+      case "--brightness":
+        brightness = Integer.parseInt(args[++index]);
+        break;
+      case "--target":
+        targetFraction = Double.parseDouble(args[++index]);
+        break;
+      case "--seed":
+        seed = Long.parseLong(args[++index]);
+        break;
+      case "--verbose":
+        verbose = true;
+        break;
+      default:
+        System.err.println("unknown option '" + args[index] + "'");
+        System.exit(2);
+      }
+    }
+
+    boolean allSettled = true;
+    System.out.println(String.format("%-10s %8s %9s %6s %9s %8s %8s %10s", "venue", "settled", "after s", "steps",
+        "hunting", "exposure", "bright", "contours"));
+    for (int venue = 0; venue < VENUES.length; ++venue) {
+      ExposureController.Band band = new ExposureController.Band();
+      SimulatedCamera camera = new SimulatedCamera(LIGHTING[venue][0], targetFraction, seed);
+      ExposureController controller = new ExposureController(camera, band, exposure, brightness);
+
+      int frames = (int) (seconds * fps);
+      long frameTime = 1000000000L / fps;
+      /* Settling is judged after the last change of lighting. */
+      int lightingChange = LIGHTING[venue][0] != LIGHTING[venue][1] ? frames / 2 : 0;
+      int inBandSince = -1;
+      int settledAt = -1;
+      int steps = 0;
+      int hunting = 0;
+      for (int frame = 0; frame < frames; ++frame) {
+        if (frame == lightingChange && frame > 0) {
+          camera.setLighting(LIGHTING[venue][1]);
+          inBandSince = -1;
+          settledAt = -1;
+        }
+        camera.nextFrame();
+        if (controller.update(camera.getLitFraction(), camera.getContourCount(), frame * frameTime)) {
+          ++steps;
+          if (settledAt >= 0) {
+            ++hunting;
+          }
+          if (verbose) {
+            System.out.println(String.format("%-10s %6.2f s %s", VENUES[venue], (double) frame / fps, controller));
+          }
+        }
+
+        boolean inBand = controller.getLitFraction() >= band.minLitFraction
+            && controller.getLitFraction() <= band.maxLitFraction
+            && controller.getContourCount() <= band.maxContours;
+        if (!inBand) {
+          inBandSince = -1;
+        } else if (inBandSince < 0) {
+          inBandSince = frame;
+        }
+        if (settledAt < 0 && inBandSince >= 0 && frame - inBandSince >= SETTLED_SECONDS * fps) {
+          settledAt = inBandSince;
+        }
+      }
+
+      allSettled &= settledAt >= 0;
+      System.out.println(String.format("%-10s %8s %9s %6d %9d %7d%% %7d%% %10.1f", VENUES[venue],
+          settledAt >= 0 ? "yes" : "no",
+          settledAt >= 0 ? String.format("%.2f", (double) (settledAt - lightingChange) / fps) : "-", steps, hunting,
+          controller.getExposure(), controller.getBrightness(), controller.getContourCount()));
+    }
+    System.exit(allSettled ? 0 : 1);
+  }
+}
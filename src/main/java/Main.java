@@ -11,6 +11,8 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -21,18 +23,46 @@ import com.google.gson.JsonParser;
 
 import edu.wpi.cscore.MjpegServer;
 import edu.wpi.cscore.UsbCamera;
+import edu.wpi.cscore.VideoCamera;
+import edu.wpi.cscore.VideoSink;
 import edu.wpi.cscore.VideoSource;
 import edu.wpi.first.cameraserver.CameraServer;
 import edu.wpi.first.networktables.EntryListenerFlags;
 import edu.wpi.first.networktables.NetworkTableInstance;
 import edu.wpi.first.networktables.NetworkTableEntry;
 import edu.wpi.first.vision.VisionPipeline;
-import edu.wpi.first.vision.VisionThread;
+import edu.wpi.first.vision.VisionRunner;
+import edu.wpi.cscore.CvSink;
 import edu.wpi.cscore.CvSource;
 
 import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
 
+import visiontargetfilter.ContourPipeline;
+import visiontargetfilter.FrameRegion;
+import visiontargetfilter.GripPipeline;
+import visiontargetfilter.StageCache;
+import visiontargetfilter.VisionTargetFilter;
 import visiontargetfinder.*;
+import visionservice.CameraSwitcher;
+import visionservice.ExposureController;
+import visionservice.FrameGrabber;
+import visionservice.LatestFrameCapture;
+import visionservice.RioClock;
+import visionservice.SharedFrameExport;
+import visionservice.StallWatchdog;
+import visionservice.StreamBandwidthController;
+import visionservice.TargetDatagramSender;
+import visionservice.ThreadPlacement;
+import visionservice.YuyvCamera;
+import visionhelper.HeadingHistory;
+import visionhelper.LensModel;
+import visionhelper.MatArena;
+import visionhelper.TargetPoseEstimator;
+import visionhelper.VisionEvents;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Recording;
 
 import java.lang.Runtime;
 import java.util.Date;
@@ -42,6 +72,21 @@ import java.util.Date;
    {
        "team": <team number>,
        "ntmode": <"client" or "server", "client" if unspecified>
+       "threads": {                                     // optional (threads run anywhere at normal priority if not specified)
+           <"processing", "capture", "networktables", "stream" or "other">: {
+               "cpus": <taskset cpu list, e.g. "3" or "0-2"> // optional
+               "nice": <nice level, -20 to 19>      // optional
+               "realtime priority": <SCHED_FIFO priority, 1 to 99> // optional
+           }
+       }
+       "udp output": {                                  // optional (targets go to NetworkTables only if not specified)
+           "host": <receiver's host name or address, e.g. "10.14.81.2">
+           "port": <receiver's UDP port>                // optional (5801 if not specified)
+       }
+       "recording directory": <directory Vision/dumpRecording writes to> // optional ("/tmp" if not specified)
+       "stream bandwidth": {                            // optional (streams send whatever they're asked for if not specified)
+           "budget": <megabits per second for all the MJPEG streams> // optional (3 if not specified)
+       }
        "cameras": [
            {
                "name": <camera name>
@@ -49,17 +94,62 @@ import java.util.Date;
                "pixel format": <"MJPEG", "YUYV", etc>   // optional
                "width": <video mode width>              // optional
                "FOV": <camera's horizontal field of view in degrees> // optional (150 degrees if not specified)
+               "lens": {                                // optional (distortion free lens with the FOV if not specified)
+                   "width": <frame width calibrated at>
+                   "height": <frame height calibrated at>
+                   "fx": <focal length in pixels>, "fy": <focal length in pixels>
+                   "cx": <principal point x>, "cy": <principal point y>
+                   "distortion": [k1, k2, p1, p2, k3]   // or [k1, k2, k3, k4] for "fisheye"
+                   "model": <"brown-conrady" or "fisheye"> // optional ("brown-conrady" if not specified)
+               }
+               "component prefilter": <true or false>   // optional (reject blobs before tracing contours)
+               "grip": <path to a .grip file>           // optional (generated VisionTargetFilter if not specified)
+               "pipelines": [                           // optional (one pipeline publishing "targetInformation")
+                   {
+                       "name": <Vision table key the pipeline's results are published to>
+                       "grip": <path to a .grip file>   // optional (generated VisionTargetFilter if not specified)
+                   }
+               ],
                "height": <video mode height>            // optional
                "fps": <video mode fps>                  // optional
                "brightness": <percentage brightness>    // optional
                "white balance": <"auto", "hold", value> // optional
                "exposure": <"auto", "hold", value>      // optional
+               "exposure control": {                    // optional (exposure stays as set if not specified, first camera only)
+                   "min lit": <least fraction of the threshold mask lit> // optional (0.001 if not specified)
+                   "max lit": <most fraction of the threshold mask lit> // optional (0.02 if not specified)
+                   "max contours": <most contours a frame should have> // optional (12 if not specified)
+                   "min exposure": <percent>, "max exposure": <percent> // optional (1 and 60 if not specified)
+                   "min brightness": <percent>          // optional (10 if not specified)
+                   "step interval": <least milliseconds between changes> // optional (300 if not specified)
+               }
                "properties": [                          // optional
                    {
                        "name": <property name>
                        "value": <property value>
                    }
                ],
+               "crop": {                                // optional (whole frame if not specified, first camera only)
+                   "x": <left>, "y": <top>, "width": <width>, "height": <height> // in pixels of "width" x "height" frames
+               }
+               "exclude": [                             // optional (nothing excluded if not specified, first camera only)
+                   {
+                       "x": <left>, "y": <top>, "width": <width>, "height": <height>
+                   }
+                   // or
+                   {
+                       "polygon": [[x, y], [x, y], ...]
+                   }
+               ],
+               "processing mode": <"bgr" or "yuyv luma"> // optional ("bgr" if not specified, first camera only)
+               "scene change threshold": <mean gray level difference> // optional (process every frame if not specified)
+               "scene change max skips": <frames>       // optional (15 if not specified)
+               "shared memory export": {                // optional (no export if not specified)
+                   "path": <file to share frames through> // optional ("/dev/shm/vision" if not specified)
+                   "slots": <frames kept>               // optional (4 if not specified)
+               }
+               "frame deadline": <milliseconds>         // optional (search every contour however long it takes if not specified)
+               "stall timeout": <milliseconds>          // optional (rebuild vision after 500 ms without a frame if not specified)
                "stream": {                              // optional
                    "properties": [
                        {
@@ -76,6 +166,7 @@ import java.util.Date;
                "key": <network table key used for selection>
                // if NT value is a string, it's treated as a name
                // if NT value is a double, it's treated as an integer index
+               // how long switches take is published to Vision/<name>Switch
            }
        ]
    }
@@ -100,6 +191,25 @@ public final class Main {
 
   public static int team;
   public static boolean server;
+  public static String udpOutputHost;
+  /*
+   * Thread stages: "processing" and "capture" are the vision threads,
+   * "networktables" the ntcore threads, "stream" cscore's camera and MJPEG server
+   * threads, and "other" everything else, like the JVM's own threads.
+   */
+  public static ThreadPlacement threadPlacement = new ThreadPlacement();
+  public static int udpOutputPort = 5801;
+  /*
+   * Where flight recordings are dumped. The root filesystem is read-only unless
+   * the Pi has been made writable, so the default is /tmp.
+   */
+  public static String recordingDirectory = "/tmp";
+  /*
+   * Keeps the MJPEG streams under the "stream bandwidth" budget, or null. The
+   * field caps the robot at 4 Mbps, so the default of 3 leaves a megabit for
+   * NetworkTables and the driver station's control traffic.
+   */
+  public static StreamBandwidthController streamBandwidth;
   public static List<CameraConfig> cameraConfigs = new ArrayList<>();
   public static List<SwitchedCameraConfig> switchedCameraConfigs = new ArrayList<>();
   public static List<VideoSource> cameras = new ArrayList<>();
@@ -108,6 +218,56 @@ public final class Main {
 
   static long autoAssistConnectionTestLastReceivedTimeStamp;
 
+  static volatile MyPipeline visionPipeline;
+
+  static YuyvCamera yuyvCamera;
+
+  static volatile LatestFrameCapture frameCapture;
+
+  /* The sink frameCapture grabs the first camera's frames from, or null in YUYV mode. */
+  static CvSink visionSink;
+
+  static Thread processingThread;
+
+  /* Bumped every time vision is rebuilt, so an abandoned processing thread knows to quit. */
+  static volatile int visionGeneration;
+
+  static StallWatchdog watchdog;
+
+  /* Shares every processed frame and its targets with local processes, if configured. */
+  static SharedFrameExport sharedFrameExport;
+
+  /* What startVision() builds the first camera's vision from. */
+  static JsonObject visionCameraConfig;
+  static final List<JsonObject> pipelineConfigs = new ArrayList<>();
+  static final List<String> pipelineNames = new ArrayList<>();
+  static final List<NetworkTableEntry> targetEntries = new ArrayList<>();
+  /* Each pipeline's target pose, and the solver that warm starts it from the last frame's. */
+  static final List<NetworkTableEntry> poseEntries = new ArrayList<>();
+  static final List<TargetPoseEstimator> poseEstimators = new ArrayList<>();
+  /* Each pipeline's tracked targets, and the ID of the one the RoboRIO wants, or 0. */
+  static final List<NetworkTableEntry> tracksEntries = new ArrayList<>();
+  static final List<NetworkTableEntry> selectTargetEntries = new ArrayList<>();
+  static CvSource annotatedOutputStream;
+
+  /* Sends every target as a datagram too, if there's a "udp output". */
+  static TargetDatagramSender targetSender;
+
+  /* The first camera's calibrated lens, or null to use a distortion free lens with the FOV. */
+  static LensModel lensModel;
+
+  /* The lens model for the size of the frames being processed. */
+  static LensModel frameLensModel;
+
+  /* The first camera's crop and exclusions, or null to look at the whole frame. */
+  static FrameRegion frameRegion;
+
+  /* Every switched camera's switcher, which measures how long its switches take. */
+  static final List<CameraSwitcher> cameraSwitchers = new ArrayList<>();
+
+  /* Keeps the first camera's threshold mask clean, or null to leave its exposure alone. */
+  static volatile ExposureController exposureController;
+
   private Main() {
   }
 
@@ -216,6 +376,51 @@ public final class Main {
       }
     }
 
+    // threads (optional)
+    if (obj.has("threads")) {
+      for (Map.Entry<String, JsonElement> stage : obj.get("threads").getAsJsonObject().entrySet()) {
+        JsonObject stageConfig = stage.getValue().getAsJsonObject();
+        ThreadPlacement.Placement placement = new ThreadPlacement.Placement();
+        if (stageConfig.has("cpus")) {
+          placement.cpus = stageConfig.get("cpus").getAsString();
+        }
+        if (stageConfig.has("nice")) {
+          placement.nice = stageConfig.get("nice").getAsInt();
+        }
+        if (stageConfig.has("realtime priority")) {
+          placement.realtimePriority = stageConfig.get("realtime priority").getAsInt();
+        }
+        threadPlacement.setStage(stage.getKey(), placement);
+        System.out.println(String.format("Placing %s threads on %s", stage.getKey(), placement));
+      }
+    }
+
+    // udp output (optional)
+    if (obj.has("udp output")) {
+      JsonObject udpOutput = obj.get("udp output").getAsJsonObject();
+      if (udpOutput.has("host")) {
+        udpOutputHost = udpOutput.get("host").getAsString();
+      } else {
+        parseError("udp output: could not read host");
+      }
+      if (udpOutput.has("port")) {
+        udpOutputPort = udpOutput.get("port").getAsInt();
+      }
+    }
+
+    // recording directory (optional)
+    if (obj.has("recording directory")) {
+      recordingDirectory = obj.get("recording directory").getAsString();
+    }
+
+    // stream bandwidth (optional)
+    if (obj.has("stream bandwidth")) {
+      JsonObject bandwidth = obj.get("stream bandwidth").getAsJsonObject();
+      double budget = bandwidth.has("budget") ? bandwidth.get("budget").getAsDouble() : 3.0;
+      streamBandwidth = new StreamBandwidthController(budget * 1.0e6);
+      System.out.println(String.format("Keeping the streams under %.2f Mbps", budget));
+    }
+
     // cameras
     JsonElement camerasElement = obj.get("cameras");
     if (camerasElement == null) {
@@ -259,40 +464,297 @@ public final class Main {
       server.setConfigJson(gson.toJson(config.streamConfig));
     }
 
+    if (streamBandwidth != null) {
+      streamBandwidth.add(config.name, server);
+    }
+
     return camera;
   }
 
+  /**
+   * Start running a camera that's read as raw YUYV frames. The contour pipelines
+   * threshold these on their Y channel, skipping the BGR and HLS conversions.
+   * Returns null if the camera can't be opened this way.
+   */
+  public static YuyvCamera startYuyvCamera(CameraConfig config) {
+    System.out.println("Starting YUYV luma camera '" + config.name + "' on " + config.path);
+    JsonObject json = config.config;
+    YuyvCamera camera = new YuyvCamera(config.name, config.path,
+        json.has("width") ? json.get("width").getAsInt() : 640, json.has("height") ? json.get("height").getAsInt() : 480);
+    if (!camera.open(json.has("fps") ? json.get("fps").getAsInt() : 15)) {
+      System.out.println("Couldn't open '" + config.path + "' for raw YUYV frames. Using cscore instead.");
+      return null;
+    }
+
+    if (json.has("brightness")) {
+      camera.setBrightness(json.get("brightness").getAsInt());
+    }
+    if (json.has("properties")) {
+      for (JsonElement property : json.get("properties").getAsJsonArray()) {
+        JsonObject propertyObject = property.getAsJsonObject();
+        JsonElement value = propertyObject.get("value");
+        String valueString = value.getAsString();
+        if ("true".equals(valueString) || "false".equals(valueString)) {
+          valueString = value.getAsBoolean() ? "1" : "0";
+        }
+        camera.setControl(propertyObject.get("name").getAsString(), valueString);
+      }
+    }
+    return camera;
+  }
+
+  /**
+   * Start controlling the first camera's exposure and brightness, if it has an
+   * "exposure control".
+   *
+   * @return the controller, or null.
+   */
+  static ExposureController startExposureControl(CameraConfig config, VideoSource source) {
+    JsonObject json = config.config;
+    if (!json.has("exposure control")) {
+      return null;
+    }
+    ExposureController.Camera camera;
+    if (yuyvCamera != null) {
+      camera = new ExposureController.Camera() {
+        @Override
+        public void setExposure(int percent) {
+          yuyvCamera.setExposure(percent);
+        }
+
+        @Override
+        public void setBrightness(int percent) {
+          yuyvCamera.setBrightness(percent);
+        }
+      };
+    } else if (source instanceof VideoCamera) {
+      VideoCamera videoCamera = (VideoCamera) source;
+      camera = new ExposureController.Camera() {
+        @Override
+        public void setExposure(int percent) {
+          videoCamera.setExposureManual(percent);
+        }
+
+        @Override
+        public void setBrightness(int percent) {
+          videoCamera.setBrightness(percent);
+        }
+      };
+    } else {
+      parseError("camera '" + config.name + "': can't control the exposure of this camera");
+      return null;
+    }
+
+    ExposureController.Band band = new ExposureController.Band();
+    try {
+      JsonObject control = json.get("exposure control").getAsJsonObject();
+      if (control.has("min lit")) {
+        band.minLitFraction = control.get("min lit").getAsDouble();
+      }
+      if (control.has("max lit")) {
+        band.maxLitFraction = control.get("max lit").getAsDouble();
+      }
+      if (control.has("max contours")) {
+        band.maxContours = control.get("max contours").getAsInt();
+      }
+      if (control.has("min exposure")) {
+        band.minExposure = control.get("min exposure").getAsInt();
+      }
+      if (control.has("max exposure")) {
+        band.maxExposure = control.get("max exposure").getAsInt();
+      }
+      if (control.has("min brightness")) {
+        band.minBrightness = control.get("min brightness").getAsInt();
+      }
+      if (control.has("step interval")) {
+        band.stepInterval = control.get("step interval").getAsLong();
+      }
+    } catch (RuntimeException e) {
+      parseError("camera '" + config.name + "': could not read exposure control: " + e.toString());
+      return null;
+    }
+
+    /* Start from the configured exposure if it's a number, and come back up to the configured brightness. */
+    int exposure = 50;
+    if (json.has("exposure") && json.get("exposure").getAsJsonPrimitive().isNumber()) {
+      exposure = json.get("exposure").getAsInt();
+    }
+    int brightness = json.has("brightness") ? json.get("brightness").getAsInt() : 50;
+    ExposureController controller = new ExposureController(camera, band, exposure, brightness);
+    System.out.println(String.format(
+        "Controlling the exposure of '%s' to keep %.2f%%-%.2f%% of the mask lit and at most %d contours", config.name,
+        band.minLitFraction * 100.0, band.maxLitFraction * 100.0, band.maxContours));
+    return controller;
+  }
+
+  /**
+   * Keep the server CameraServer started for a putVideo() source under the stream
+   * bandwidth budget, if there is one.
+   */
+  static void controlStreamBandwidth(String name) {
+    if (streamBandwidth != null) {
+      VideoSink server = CameraServer.getInstance().getServer("serve_" + name);
+      if (server instanceof MjpegServer) {
+        streamBandwidth.add(name, (MjpegServer) server);
+      }
+    }
+  }
+
   /**
    * Start running the switched camera.
    */
   public static MjpegServer startSwitchedCamera(SwitchedCameraConfig config) {
     System.out.println("Starting switched camera '" + config.name + "' on " + config.key);
     MjpegServer server = CameraServer.getInstance().addSwitchedCamera(config.name);
+    if (streamBandwidth != null) {
+      streamBandwidth.add(config.name, server);
+    }
+
+    /*
+     * Look the cameras up in tables built once; startCamera already keeps each one
+     * streaming, so a selection switches on the camera's next frame.
+     */
+    List<String> names = new ArrayList<>();
+    for (CameraConfig cameraConfig : cameraConfigs) {
+      names.add(cameraConfig.name);
+    }
+    CameraSwitcher switcher = new CameraSwitcher(config.name, server, names, cameras);
+    cameraSwitchers.add(switcher);
 
     NetworkTableInstance.getDefault().getEntry(config.key).addListener(event -> {
       if (event.value.isDouble()) {
-        int i = (int) event.value.getDouble();
-        if (i >= 0 && i < cameras.size()) {
-          server.setSource(cameras.get(i));
-        }
+        switcher.select((int) event.value.getDouble());
       } else if (event.value.isString()) {
-        String str = event.value.getString();
-        for (int i = 0; i < cameraConfigs.size(); i++) {
-          if (str.equals(cameraConfigs.get(i).name)) {
-            server.setSource(cameras.get(i));
-            break;
-          }
-        }
+        switcher.select(event.value.getString());
       }
     }, EntryListenerFlags.kImmediate | EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
 
     return server;
   }
 
+  /**
+   * Read a camera's "lens" calibration.
+   *
+   * @return the lens model, or null if the camera has none or it can't be read.
+   */
+  public static LensModel readLensModel(CameraConfig config) {
+    JsonElement lensElement = config.config.get("lens");
+    if (lensElement == null) {
+      return null;
+    }
+    try {
+      JsonObject lens = lensElement.getAsJsonObject();
+      double[] distortion = new double[0];
+      if (lens.has("distortion")) {
+        JsonArray coefficients = lens.get("distortion").getAsJsonArray();
+        distortion = new double[coefficients.size()];
+        for (int index = 0; index < distortion.length; ++index) {
+          distortion[index] = coefficients.get(index).getAsDouble();
+        }
+      }
+      boolean fisheye = lens.has("model") && lens.get("model").getAsString().equalsIgnoreCase("fisheye");
+      return new LensModel(lens.get("width").getAsInt(), lens.get("height").getAsInt(), lens.get("fx").getAsDouble(),
+          lens.get("fy").getAsDouble(), lens.get("cx").getAsDouble(), lens.get("cy").getAsDouble(), distortion,
+          fisheye);
+    } catch (RuntimeException e) {
+      parseError("camera '" + config.name + "': could not read lens: " + e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Read a camera's "crop" and "exclude" entries. Their coordinates are pixels of
+   * frames the camera's configured size, and are scaled to the frames processed.
+   *
+   * @return the region, or null if the camera has neither.
+   */
+  public static FrameRegion readFrameRegion(CameraConfig config) {
+    JsonObject json = config.config;
+    if (!json.has("crop") && !json.has("exclude")) {
+      return null;
+    }
+    int width = json.has("width") ? json.get("width").getAsInt() : 640;
+    int height = json.has("height") ? json.get("height").getAsInt() : 480;
+    FrameRegion region = new FrameRegion(width, height);
+    try {
+      if (json.has("crop")) {
+        JsonObject crop = json.get("crop").getAsJsonObject();
+        region.setCrop(crop.get("x").getAsInt(), crop.get("y").getAsInt(), crop.get("width").getAsInt(),
+            crop.get("height").getAsInt());
+      }
+      if (json.has("exclude")) {
+        for (JsonElement exclusionElement : json.get("exclude").getAsJsonArray()) {
+          JsonObject exclusion = exclusionElement.getAsJsonObject();
+          if (exclusion.has("polygon")) {
+            JsonArray corners = exclusion.get("polygon").getAsJsonArray();
+            double[] points = new double[corners.size() * 2];
+            for (int index = 0; index < corners.size(); ++index) {
+              JsonArray corner = corners.get(index).getAsJsonArray();
+              points[index * 2] = corner.get(0).getAsDouble();
+              points[index * 2 + 1] = corner.get(1).getAsDouble();
+            }
+            region.excludePolygon(points);
+          } else {
+            region.exclude(exclusion.get("x").getAsInt(), exclusion.get("y").getAsInt(),
+                exclusion.get("width").getAsInt(), exclusion.get("height").getAsInt());
+          }
+        }
+      }
+    } catch (RuntimeException e) {
+      parseError("camera '" + config.name + "': could not read crop or exclude: " + e.toString());
+      return null;
+    }
+    return region;
+  }
+
+  /**
+   * @return the lens model for frames of the given size.
+   */
+  static LensModel lensModelFor(int frameWidth, int frameHeight) {
+    if (frameLensModel == null || frameLensModel.getWidth() != frameWidth
+        || frameLensModel.getHeight() != frameHeight) {
+      frameLensModel = lensModel != null ? lensModel.scaledTo(frameWidth, frameHeight)
+          : LensModel.fromFieldOfView(fieldOfView, frameWidth, frameHeight);
+      System.out.println("Using lens " + frameLensModel);
+    }
+    return frameLensModel;
+  }
+
+  /**
+   * Load the contour pipeline for a camera or one of its "pipelines" entries.
+   * Runs the .grip file named by the "grip" key if there is one, so the pipeline
+   * can be retuned in GRIP without regenerating VisionTargetFilter. If it can't be
+   * loaded, fall back to the generated pipeline.
+   */
+  public static ContourPipeline loadContourPipeline(JsonObject config, StageCache stageCache) {
+    JsonElement gripElement = config.get("grip");
+    if (gripElement != null) {
+      try {
+        GripPipeline gripPipeline = GripPipeline.load(gripElement.getAsString());
+        gripPipeline.setStageCache(stageCache);
+        System.out.println("Loaded GRIP pipeline " + gripPipeline.describe());
+        return gripPipeline;
+      } catch (IOException ex) {
+        System.out.println(
+            String.format("Couldn't load GRIP pipeline:%s. Using VisionTargetFilter instead.", ex.getMessage()));
+      }
+    }
+    return new VisionTargetFilter();
+  }
+
+  /**
+   * Runs every target finder on the same frame. Finders built on GRIP pipelines
+   * sharing the stage cache compute common stages (such as the color conversion)
+   * only once per frame.
+   */
   public static class MyPipeline implements VisionPipeline {
-    static VisionTargetFinder.TargetInformation m_target;
+    final VisionTargetFinder.TargetInformation[] m_targets;
+
+    final VisionTargetFinder.TargetInformation[] currentTargets;
+
+    final List<VisionTargetFinder> targetFinders;
 
-    static final VisionTargetFinder targetFinder = new VisionTargetFinder();
+    final StageCache stageCache;
 
     Object targetLock = new Object();
 
@@ -300,27 +762,206 @@ public final class Main {
 
     Mat annotatedMat;
 
+    SceneChangeDetector sceneChangeDetector;
+
+    CvSource annotatedStream;
+
+    SharedFrameExport frameExport;
+
+    volatile StallWatchdog watchdog;
+
+    /* Nanoseconds a frame's target search may take, or 0 for no limit. */
+    long frameDeadline = 0;
+
+    final Mat bgrMat = new Mat();
+
+    public MyPipeline(List<VisionTargetFinder> targetFinders, StageCache stageCache) {
+      this.targetFinders = targetFinders;
+      this.stageCache = stageCache;
+      m_targets = new VisionTargetFinder.TargetInformation[targetFinders.size()];
+      currentTargets = new VisionTargetFinder.TargetInformation[targetFinders.size()];
+    }
+
+    /**
+     * Skip frames that look the same as the last processed frame. The last targets
+     * are published again, and their age keeps growing from the time they were
+     * found.
+     */
+    public void setSceneChangeDetector(SceneChangeDetector sceneChangeDetector) {
+      this.sceneChangeDetector = sceneChangeDetector;
+    }
+
+    public SceneChangeDetector getSceneChangeDetector() {
+      return sceneChangeDetector;
+    }
+
     @Override
     public void process(Mat mat) {
-      VisionTargetFinder.TargetInformation fCurrentTarget;
+      process(mat, System.currentTimeMillis());
+    }
+
+    /**
+     * Process a frame that arrived from the camera at frameTime (milliseconds since
+     * the epoch). The published age of the targets counts from then.
+     */
+    public void process(Mat mat, long frameTime) {
+      VisionEvents.Frame event = new VisionEvents.Frame();
+      event.begin();
+      event.frameWidth = mat.cols();
+      event.frameHeight = mat.rows();
+      event.pipelineCount = targetFinders.size();
+
+      StallWatchdog frameWatchdog = watchdog;
+
+      if (sceneChangeDetector != null && !sceneChangeDetector.hasChanged(mat)) {
+        export(mat, frameTime);
+        annotate(mat);
+        if (frameWatchdog != null) {
+          for (int index = 0; index < targetFinders.size(); ++index) {
+            frameWatchdog.heartbeat(index);
+          }
+        }
+        event.skipped = true;
+        event.commit();
+        return;
+      }
+
+      m_startingTimeStamp = frameTime;
 
-      m_startingTimeStamp = System.currentTimeMillis();
+      /* Every pipeline's search has to fit in the one deadline. */
+      long deadline = frameDeadline > 0 ? System.nanoTime() + frameDeadline : 0;
 
-      fCurrentTarget = targetFinder.getVisionTargetLocation(mat);
+      stageCache.beginFrame();
+      for (int index = 0; index < targetFinders.size(); ++index) {
+        targetFinders.get(index).setDeadline(deadline);
+        if (index < selectTargetEntries.size()) {
+          targetFinders.get(index).setRequestedTrack((int) selectTargetEntries.get(index).getDouble(0.0));
+        }
+        currentTargets[index] = targetFinders.get(index).getVisionTargetLocation(mat);
+        if (frameWatchdog != null) {
+          frameWatchdog.heartbeat(index);
+        }
+      }
 
       /*
        * Because the VisionPipeline is expected to run in a separate thread, lock
-       * access to the m_target value to ensure no one else is attempting to read it
-       * while this pipeline is writing it.
+       * access to the m_targets values to ensure no one else is attempting to read
+       * them while this pipeline is writing them.
        */
       synchronized (targetLock) {
-        m_target = fCurrentTarget;
+        System.arraycopy(currentTargets, 0, m_targets, 0, m_targets.length);
       }
 
+      /* Let the exposure controller see how clean the first pipeline's mask is. */
+      ExposureController exposure = exposureController;
+      if (exposure != null) {
+        ContourPipeline contourPipeline = targetFinders.get(0).getVisionTargetFilter();
+        exposure.update(ExposureController.litFraction(contourPipeline.hslThresholdOutput()),
+            contourPipeline.rawContourCount(), System.nanoTime());
+      }
+
+      export(mat, frameTime);
+      annotate(mat);
+      event.commit();
+    }
+
+    /**
+     * Share the frame and its targets with local processes, if there's an export.
+     * Called before annotating, which draws on the frame.
+     */
+    void export(Mat mat, long frameTime) {
+      if (frameExport != null) {
+        frameExport.write(mat, frameTime, currentTargets);
+      }
+    }
+
+    /**
+     * @param frameExport shares every frame, as it came from the camera, and its
+     *                    targets, or null.
+     */
+    public void setFrameExport(SharedFrameExport frameExport) {
+      this.frameExport = frameExport;
+    }
+
+    /**
+     * The annotated stream shows what the first pipeline found. A raw YUYV frame is
+     * only converted to BGR and annotated while someone is watching the stream;
+     * otherwise there's no annotated frame.
+     */
+    void annotate(Mat mat) {
+      if (mat.channels() == 2) {
+        if (annotatedStream == null || !annotatedStream.isEnabled()) {
+          annotatedMat = null;
+          return;
+        }
+        Imgproc.cvtColor(mat, bgrMat, Imgproc.COLOR_YUV2BGR_YUYV);
+        mat = bgrMat;
+      }
       annotatedMat = mat;
-      targetFinder.annotateStream(annotatedMat);
+      targetFinders.get(0).annotateStream(annotatedMat);
+    }
+
+    public void setAnnotatedStream(CvSource annotatedStream) {
+      this.annotatedStream = annotatedStream;
+    }
+
+    /**
+     * @param watchdog told each time a pipeline finishes a frame, or null.
+     */
+    public void setWatchdog(StallWatchdog watchdog) {
+      this.watchdog = watchdog;
+    }
+
+    /**
+     * @param milliseconds how long a frame's target search may take, across every
+     *                     pipeline, or 0 for no limit. Past it, each finder returns
+     *                     the best pair among the contours it checked, marked partial.
+     */
+    public void setFrameDeadline(double milliseconds) {
+      frameDeadline = (long) (milliseconds * 1.0e6);
     }
 
+    /**
+     * @return frames whose search was cut short by the deadline, over every pipeline.
+     */
+    public long getDeadlineMisses() {
+      long misses = 0;
+      for (VisionTargetFinder targetFinder : targetFinders) {
+        misses += targetFinder.getDeadlineMisses();
+      }
+      return misses;
+    }
+
+    /**
+     * @return pairs left untracked because a frame had more than the tracker's
+     *         slots, over every pipeline.
+     */
+    public long getDroppedPairs() {
+      long dropped = 0;
+      for (VisionTargetFinder targetFinder : targetFinders) {
+        dropped += targetFinder.getDroppedPairs();
+      }
+      return dropped;
+    }
+
+    /**
+     * @return frames searched, over every pipeline.
+     */
+    public long getFramesSearched() {
+      long searched = 0;
+      for (VisionTargetFinder targetFinder : targetFinders) {
+        searched += targetFinder.getFramesSearched();
+      }
+      return searched;
+    }
+
+    public int getPipelineCount() {
+      return m_targets.length;
+    }
+
+    /**
+     * @return the annotated frame, or null if there isn't one for this frame.
+     */
     public Mat getAnnotatedMat() {
       return annotatedMat;
     }
@@ -329,16 +970,428 @@ public final class Main {
       return m_startingTimeStamp;
     }
 
+    /**
+     * @return the targets of the last frame processed. Only for the processing
+     *         thread; other threads use getTarget().
+     */
+    public VisionTargetFinder.TargetInformation[] getCurrentTargets() {
+      return currentTargets;
+    }
+
     public VisionTargetFinder.TargetInformation getTarget() {
+      return getTarget(0);
+    }
+
+    public VisionTargetFinder.TargetInformation getTarget(int index) {
       VisionTargetFinder.TargetInformation fCurrentTarget;
 
       synchronized (targetLock) {
-        fCurrentTarget = m_target;
+        fCurrentTarget = m_targets[index];
       }
       return fCurrentTarget;
     }
   }
 
+  /*
+   * NetworkTables copies the array when it's set, so one array is reused for
+   * every publish.
+   */
+  static final double[] publishValues = new double[6];
+  static final double[] poseValues = new double[5];
+
+  /*
+   * The robot's heading over the last couple of seconds, from Vision/robotHeading,
+   * so a target can be turned into a field-relative heading using the heading the
+   * robot had when the frame was captured rather than when it was processed.
+   */
+  static final HeadingHistory headingHistory = new HeadingHistory(128, 100);
+
+  /*
+   * The offset between the Pi's clock and the RoboRIO's, estimated from
+   * Vision/autoAssistConnectionTest, for looking up the heading history and
+   * stamping datagrams in the RoboRIO's time.
+   */
+  static final RioClock rioClock = new RioClock();
+
+  /* Undistorted centers of the target pair, reused for every publish. */
+  static final double[] leftRay = new double[2];
+  static final double[] rightRay = new double[2];
+
+  /* Distance between center of targets in inches */
+  static final double TARGET_WIDTH = 11.267601903166458855661396068853;
+
+  /* What measurePair() found: degrees to the pair and inches to it. */
+  static double pairHeading;
+  static double pairDistance;
+
+  /**
+   * Measure the heading and distance to a pair from the pixel centers of its
+   * targets, into pairHeading and pairDistance.
+   */
+  static void measurePair(LensModel lens, double leftX, double leftY, double rightX, double rightY) {
+    lens.undistort(leftX, leftY, leftRay);
+    lens.undistort(rightX, rightY, rightRay);
+    pairHeading = lens.heading((leftRay[0] + rightRay[0]) / 2.0);
+    double separation = LensModel.angleBetween(leftRay[0], leftRay[1], rightRay[0], rightRay[1]);
+    pairDistance = (TARGET_WIDTH / 2.0) / Math.tan(Math.toRadians(separation / 2.0));
+  }
+
+  /*
+   * Every tracked pair, published to Vision/<pipeline>Tracks: the selected track's
+   * ID, then TargetTracker.MAX_TRACKS slots of ID (0 for an empty slot), heading
+   * in degrees, distance in inches and frames since it was last seen.
+   */
+  static final int TRACK_VALUES = 4;
+  static final double[] trackValues = new double[1 + TargetTracker.MAX_TRACKS * TRACK_VALUES];
+
+  static void publishTracks(NetworkTableEntry tracksEntry, VisionTargetFinder.TargetInformation targetDetails) {
+    trackValues[0] = targetDetails.trackId;
+    LensModel lens = targetDetails.frameWidth > 0 ? lensModelFor(targetDetails.frameWidth, targetDetails.frameHeight)
+        : null;
+    for (int slot = 0; slot < TargetTracker.MAX_TRACKS; ++slot) {
+      int track = slot * TargetTracker.FIELDS;
+      int value = 1 + slot * TRACK_VALUES;
+      double id = targetDetails.tracks[track + TargetTracker.ID];
+      trackValues[value] = id;
+      if (id == 0 || lens == null) {
+        trackValues[value + 1] = Double.NaN;
+        trackValues[value + 2] = Double.NaN;
+        trackValues[value + 3] = Double.NaN;
+        continue;
+      }
+      measurePair(lens, targetDetails.tracks[track + TargetTracker.LEFT_X],
+          targetDetails.tracks[track + TargetTracker.LEFT_Y], targetDetails.tracks[track + TargetTracker.RIGHT_X],
+          targetDetails.tracks[track + TargetTracker.RIGHT_Y]);
+      trackValues[value + 1] = pairHeading;
+      trackValues[value + 2] = pairDistance;
+      trackValues[value + 3] = targetDetails.tracks[track + TargetTracker.FRAMES_UNSEEN];
+    }
+    tracksEntry.setDoubleArray(trackValues);
+  }
+
+  /**
+   * Publish one pipeline's target to its Vision table entry, and send it as a
+   * datagram if there's a "udp output".
+   *
+   * @return true if a valid target was published.
+   */
+  public static boolean publishTarget(NetworkTableEntry targetInformation, int pipelineIndex, String name,
+      VisionTargetFinder.TargetInformation targetDetails, long startTime) {
+    VisionEvents.Publish event = new VisionEvents.Publish();
+    event.begin();
+    boolean published = false;
+    double fRelativeTargetHeading = Double.NaN;
+    double fieldRelativeTargetHeading = Double.NaN;
+    long targetProcessingTime = System.currentTimeMillis() - startTime;
+    double targetDistance = Double.NaN;
+
+    /*
+     * Check if the normalized returned heading is NaN (Not a Number). If it's Not a
+     * Number, the target finder failed to find a heading and the value shouldn't be
+     * used. Don't send invalid values to the RoboRIO.
+     */
+    if (!Double.isNaN(targetDetails.normalizedCenter)) {
+
+      /*
+       * To keep the information coherent (so that the heading and the time stamp are
+       * coordinated) combine the numbers into a single array and send the whole array
+       * to the RoboRIO together. That way, both pieces of information show up at
+       * exactly the same time. An example of this output is
+       * 
+       * [3.14529424,150.0,1.40,93.14529424,0.0,3.0]
+       * 
+       * where the first floating point number is the heading and the second is the
+       * age of the information in milliseconds. The third is the distance, and the
+       * fourth is the field-relative heading: the robot's heading when the frame was
+       * captured plus the heading to the target, or NaN if the robot hasn't sent its
+       * heading for that time. The robot can turn to it directly, however far it
+       * has turned since the frame was captured. The fifth is 1.0 if the frame's
+       * deadline cut the search short, so the target is the best of the largest
+       * contours rather than of all of them, and 0.0 otherwise. The sixth is the ID
+       * of the target's track, which stays the same for as long as the target is in
+       * view; every tracked target is published to Vision/<pipeline>Tracks, and the
+       * RoboRIO can aim at one of them by setting Vision/<pipeline>SelectTarget to
+       * its ID.
+       */
+
+      /*
+       * Compute the distance to target using known features of the target, the
+       * resolution and the FOV of the camera.
+       * 
+       * d = Tin*FOVpixel/(2*Tpixel*tanΘ)
+       * 
+       * Where: Θ is 1/2 of the FOV Tin is the actual width of the target, which is
+       * the distance between the centers of the vision targets. FOVpixel is the width
+       * of the display in pixels (the horizontal resolution) Tpixel is the length of
+       * the target in pixels (the distance between the centers of the vision targets
+       * in pixels)
+       * 
+       * dNormalized = FOVPixel/Tpixel
+       * 
+       * 
+       * So, just compute the rest by multiplying dNormalized * Tin / (2*tanΘ)
+       * 
+       * 
+       * 
+       */
+      fieldRelativeTargetHeading = headingHistory.headingAt(rioClock.toRioTime(startTime));
+
+      double targetWidth = TARGET_WIDTH;
+
+      if (!Double.isNaN(targetDetails.leftX)) {
+        /*
+         * That's only true of a lens without distortion, and a wide one is far from
+         * it. Undistort the centers of the two targets instead, and use the real angle
+         * between them: d = (Tin/2) / tan(angle/2). The heading is the angle of the
+         * point halfway between them.
+         */
+        LensModel lens = lensModelFor(targetDetails.frameWidth, targetDetails.frameHeight);
+        measurePair(lens, targetDetails.leftX, targetDetails.leftY, targetDetails.rightX, targetDetails.rightY);
+        fRelativeTargetHeading = pairHeading;
+        targetDistance = pairDistance;
+      } else {
+        fRelativeTargetHeading = targetDetails.normalizedCenter * (double) fieldOfView / 2.0f;
+        targetDistance = targetDetails.distanceToTargetNormalized * targetWidth
+            / (2.0 * Math.tan(Math.toRadians((double) fieldOfView / 2.0)));
+      }
+
+      fieldRelativeTargetHeading += fRelativeTargetHeading;
+
+      publishValues[0] = fRelativeTargetHeading;
+      publishValues[1] = (double) targetProcessingTime;
+      publishValues[2] = targetDistance;
+      publishValues[3] = fieldRelativeTargetHeading;
+      publishValues[4] = targetDetails.partial ? 1.0 : 0.0;
+      publishValues[5] = targetDetails.trackId;
+      targetInformation.setDoubleArray(publishValues);
+      published = true;
+
+      /*
+       * Solve for where the target is and which way it faces from the corners of its
+       * tapes, and publish it to Vision/<pipeline>Pose as
+       *
+       * [-4.2,52.7,3.1,12.5,0.8]
+       *
+       * the target's lateral offset (positive to the right), distance and height
+       * relative to the camera in inches, its yaw in degrees (positive when its right
+       * side is farther away), and the pose's reprojection error in pixels. The robot
+       * can drive straight onto the target from it, without turning to face it first.
+       */
+      TargetPoseEstimator poseEstimator = poseEstimators.get(pipelineIndex);
+      if (poseEstimator.solve(targetDetails.corners,
+          lensModelFor(targetDetails.frameWidth, targetDetails.frameHeight))) {
+        poseValues[0] = poseEstimator.getLateral();
+        poseValues[1] = poseEstimator.getDistance();
+        poseValues[2] = poseEstimator.getVertical();
+        poseValues[3] = poseEstimator.getYaw();
+        poseValues[4] = poseEstimator.getReprojectionError();
+        poseEntries.get(pipelineIndex).setDoubleArray(poseValues);
+      }
+    } else {
+      /* Start the next target's pose from scratch rather than from a stale one. */
+      poseEstimators.get(pipelineIndex).reset();
+    }
+
+    /* The tracks go out every frame, so the RoboRIO sees them go away too. */
+    publishTracks(tracksEntries.get(pipelineIndex), targetDetails);
+
+    /*
+     * The datagram goes out even without a target, so the RoboRIO can tell a
+     * target going away from the datagrams stopping.
+     */
+    if (targetSender != null) {
+      targetSender.send(pipelineIndex, startTime, fRelativeTargetHeading, fieldRelativeTargetHeading, targetDistance,
+          !published ? TargetDatagramSender.STATUS_NO_TARGET
+              : targetDetails.partial ? TargetDatagramSender.STATUS_PARTIAL_TARGET : TargetDatagramSender.STATUS_TARGET);
+    }
+
+    System.out.println(String.format("%s visionTargetError:%3.1f degrees, distance %3.1f, processingTime:%d ms",
+        name, fRelativeTargetHeading, targetDistance, targetProcessingTime));
+
+    if (event.shouldCommit()) {
+      event.pipeline = name;
+      event.valid = published;
+      event.heading = fRelativeTargetHeading;
+      event.age = targetProcessingTime;
+      event.commit();
+    }
+    return published;
+  }
+
+  /**
+   * Write the contents of every running flight recording to a file.
+   *
+   * @param fileName a path, or a file name to write in recordingDirectory
+   * @return what was written, or why nothing was.
+   */
+  public static String dumpFlightRecording(String fileName) {
+    if (!FlightRecorder.isAvailable()) {
+      System.out.println("Flight recorder isn't available in this JVM");
+      return "failed: flight recorder isn't available";
+    }
+    String path = fileName.contains("/") ? fileName : Paths.get(recordingDirectory, fileName).toString();
+    String result = "failed: no recording is running";
+    for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+      try {
+        recording.dump(Paths.get(path));
+        System.out.println(String.format("Dumped flight recording '%s' to %s", recording.getName(), path));
+        result = "wrote " + path;
+      } catch (IOException ex) {
+        System.out.println(String.format("Couldn't dump flight recording '%s':%s", recording.getName(), ex.toString()));
+        result = "failed: " + ex.toString();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Build the first camera's target finders, frame capture and processing
+   * thread. Called again by restartVision() to replace them if they stall.
+   */
+  static synchronized void startVision() {
+    final int generation = ++visionGeneration;
+    final NetworkTableInstance ntinst = NetworkTableInstance.getDefault();
+    final CvSource outputStream = annotatedOutputStream;
+
+    StageCache stageCache = new StageCache();
+    List<VisionTargetFinder> targetFinders = new ArrayList<>();
+
+    JsonElement componentPrefilterElement = visionCameraConfig.get("component prefilter");
+    boolean componentPrefilter = componentPrefilterElement != null && componentPrefilterElement.getAsBoolean();
+    if (componentPrefilter) {
+      System.out.println("Enabled the connected components prefilter");
+    }
+
+    for (JsonObject pipelineConfig : pipelineConfigs) {
+      ContourPipeline contourPipeline = loadContourPipeline(pipelineConfig, stageCache);
+      contourPipeline.setComponentPrefilterEnabled(componentPrefilter);
+      contourPipeline.setRegion(frameRegion);
+      targetFinders.add(new VisionTargetFinder(contourPipeline));
+    }
+
+    MyPipeline myPipeline = new MyPipeline(targetFinders, stageCache);
+
+    JsonElement sceneChangeThresholdElement = visionCameraConfig.get("scene change threshold");
+    if (sceneChangeThresholdElement != null) {
+      JsonElement maxSkipsElement = visionCameraConfig.get("scene change max skips");
+      int maxSkips = maxSkipsElement != null ? maxSkipsElement.getAsInt() : 15;
+      myPipeline.setSceneChangeDetector(new SceneChangeDetector(sceneChangeThresholdElement.getAsDouble(), maxSkips));
+      System.out.println(String.format("Skipping frames that change less than %.1f gray levels, at most %d in a row",
+          sceneChangeThresholdElement.getAsDouble(), maxSkips));
+    }
+
+    JsonElement frameDeadlineElement = visionCameraConfig.get("frame deadline");
+    if (frameDeadlineElement != null) {
+      myPipeline.setFrameDeadline(frameDeadlineElement.getAsDouble());
+      System.out.println(String.format("Cutting the target search short after %.1f ms",
+          frameDeadlineElement.getAsDouble()));
+    }
+
+    myPipeline.setAnnotatedStream(outputStream);
+    myPipeline.setFrameExport(sharedFrameExport);
+    myPipeline.setWatchdog(watchdog);
+    visionPipeline = myPipeline;
+
+    VisionRunner.Listener<MyPipeline> listener = pipeline -> {
+      long startTime = pipeline.getStartTime();
+      boolean published = false;
+
+      for (int index = 0; index < pipeline.getPipelineCount(); ++index) {
+        published |= publishTarget(targetEntries.get(index), index, pipelineNames.get(index),
+            pipeline.getTarget(index), startTime);
+      }
+
+      if (published) {
+        /*
+         * Flush the network table queue to quickly send these network table fields to
+         * the roborio. This reduces the network latency of this information to almost
+         * nothing.
+         */
+        ntinst.flush();
+      }
+
+      if (pipeline.getAnnotatedMat() != null) {
+        outputStream.putFrame(pipeline.getAnnotatedMat());
+      }
+
+    };
+
+    /*
+     * Grab frames on their own thread and always process the newest one, so a slow
+     * frame doesn't leave us working through a backlog of stale ones. cscore can't
+     * hand out raw YUYV frames, so in that mode frames are read straight from the
+     * camera. The camera can't be read from two threads, so its capture is only
+     * replaced if its thread has died.
+     */
+    if (yuyvCamera != null) {
+      if (frameCapture == null || !frameCapture.getThread().isAlive()) {
+        frameCapture = new LatestFrameCapture(yuyvCamera::grabFrame);
+        frameCapture.start("Vision capture", () -> threadPlacement.placeCurrentThread("capture"));
+      }
+    } else {
+      CvSink cvSink = new CvSink("Vision capture " + cameras.get(0).getName() + " " + generation);
+      cvSink.setSource(cameras.get(0));
+      visionSink = cvSink;
+      frameCapture = new LatestFrameCapture(cvSink::grabFrame);
+      frameCapture.start("Vision capture", () -> threadPlacement.placeCurrentThread("capture"));
+    }
+    final LatestFrameCapture capture = frameCapture;
+
+    processingThread = new Thread(() -> {
+      threadPlacement.placeCurrentThread("processing");
+      try {
+        while (generation == visionGeneration) {
+          Mat frame = capture.takeFrame();
+          if (generation != visionGeneration) {
+            return;
+          }
+          myPipeline.process(frame, capture.getFrameTime());
+          /* Don't publish if we were replaced while processing. */
+          if (generation != visionGeneration) {
+            return;
+          }
+          listener.copyPipelineOutputs(myPipeline);
+        }
+      } catch (InterruptedException ex) {
+        return;
+      } catch (RuntimeException ex) {
+        /* The watchdog notices the heartbeats stop and rebuilds. */
+        System.out.println("Vision processing failed:" + ex.toString());
+        ex.printStackTrace();
+      }
+    }, "Vision processing " + generation);
+    processingThread.setDaemon(true);
+    processingThread.start();
+  }
+
+  /**
+   * Abandon the current vision threads and build new ones. A thread hung in
+   * native code can't be stopped; it quits without publishing if it ever returns.
+   */
+  static synchronized void restartVision() {
+    MyPipeline stalledPipeline = visionPipeline;
+    if (stalledPipeline != null) {
+      stalledPipeline.setWatchdog(null);
+    }
+    if (processingThread != null) {
+      processingThread.interrupt();
+    }
+    if (yuyvCamera == null && frameCapture != null) {
+      frameCapture.stop();
+    }
+    /*
+     * Detach the old sink from the camera and free it, or every rebuild leaves
+     * one behind. A grab still waiting on it returns an error, and its thread
+     * quits.
+     */
+    if (visionSink != null) {
+      visionSink.setEnabled(false);
+      visionSink.close();
+      visionSink = null;
+    }
+    startVision();
+  }
+
   /**
    * Main.
    */
@@ -353,20 +1406,36 @@ public final class Main {
     }
 
     // start NetworkTables
+    Set<Integer> threadsBefore = ThreadPlacement.threadIds();
     NetworkTableInstance ntinst = NetworkTableInstance.getDefault();
 
     System.out.println("Setting up NetworkTables client for team " + team);
     ntinst.startClientTeam(team);
+    threadPlacement.placeNewThreads("networktables", threadsBefore);
 
     // start cameras
+    threadsBefore = ThreadPlacement.threadIds();
     for (CameraConfig config : cameraConfigs) {
+      if (cameras.isEmpty() && config.config.has("processing mode")
+          && "yuyv luma".equalsIgnoreCase(config.config.get("processing mode").getAsString())) {
+        yuyvCamera = startYuyvCamera(config);
+        if (yuyvCamera != null) {
+          cameras.add(yuyvCamera.getStream());
+          controlStreamBandwidth(config.name);
+          continue;
+        }
+      }
       cameras.add(startCamera(config));
     }
+    if (!cameraConfigs.isEmpty() && !cameras.isEmpty()) {
+      exposureController = startExposureControl(cameraConfigs.get(0), cameras.get(0));
+    }
 
     // start switched cameras
     for (SwitchedCameraConfig config : switchedCameraConfigs) {
       startSwitchedCamera(config);
     }
+    threadPlacement.placeNewThreads("stream", threadsBefore);
 
     /*
      * Set the update rate to slower than normal, and call the flush() instead to
@@ -376,9 +1445,63 @@ public final class Main {
      */
     ntinst.setUpdateRate(1.0);
 
-    NetworkTableEntry targetInformation = ntinst.getTable("Vision").getEntry("targetInformation");
+    if (udpOutputHost != null) {
+      try {
+        targetSender = new TargetDatagramSender(udpOutputHost, udpOutputPort);
+        targetSender.setClock(rioClock);
+        System.out.println(String.format("Sending target datagrams to %s:%d", udpOutputHost, udpOutputPort));
+      } catch (IOException e) {
+        System.out.println(String.format("Couldn't send target datagrams to %s:%d:%s", udpOutputHost, udpOutputPort,
+            e.toString()));
+      }
+    }
+
     NetworkTableEntry autoAssistConnectionTest = NetworkTableInstance.getDefault().getTable("Vision")
         .getEntry("autoAssistConnectionTest");
+    NetworkTableEntry skippedFrames = ntinst.getTable("Vision").getEntry("skippedFrames");
+    NetworkTableEntry liveNativeMats = ntinst.getTable("Vision").getEntry("liveNativeMats");
+    NetworkTableEntry capturedFrames = ntinst.getTable("Vision").getEntry("capturedFrames");
+    NetworkTableEntry stalls = ntinst.getTable("Vision").getEntry("stalls");
+    NetworkTableEntry deadlineMisses = ntinst.getTable("Vision").getEntry("deadlineMisses");
+    NetworkTableEntry droppedPairs = ntinst.getTable("Vision").getEntry("droppedPairs");
+    NetworkTableEntry streamBandwidthEntry = ntinst.getTable("Vision").getEntry("streamBandwidth");
+    NetworkTableEntry streamSettings = ntinst.getTable("Vision").getEntry("streamSettings");
+    NetworkTableEntry exposureEntry = ntinst.getTable("Vision").getEntry("exposure");
+    List<NetworkTableEntry> switchLatencyEntries = new ArrayList<>();
+    for (CameraSwitcher switcher : cameraSwitchers) {
+      switchLatencyEntries.add(ntinst.getTable("Vision").getEntry(switcher.getName() + "Switch"));
+    }
+
+    /*
+     * Dump the running flight recording (started by runCamera with vision.jfc) when
+     * the RoboRIO or a dashboard sets Vision/dumpRecording to a file name, such as
+     * after a match with a latency spike. A bare file name is written to the
+     * "recording directory". Vision/dumpRecordingResult is set to "wrote <path>" or
+     * "failed: <reason>".
+     */
+    NetworkTableEntry dumpRecordingResult = ntinst.getTable("Vision").getEntry("dumpRecordingResult");
+    ntinst.getTable("Vision").getEntry("dumpRecording").addListener(event -> {
+      if (event.value.isString() && !event.value.getString().isEmpty()) {
+        dumpRecordingResult.setString(dumpFlightRecording(event.value.getString()));
+      }
+    }, EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+    /*
+     * Keep the robot's heading history. The RoboRIO sets Vision/robotHeading to
+     * [milliseconds since the epoch, heading in degrees] every loop, and flushes,
+     * with the time the heading was read on the RoboRIO's clock. Frame capture
+     * times are on the Pi's, so they're turned into the RoboRIO's with rioClock
+     * before the history is looked up.
+     */
+    NetworkTableEntry robotHeading = ntinst.getTable("Vision").getEntry("robotHeading");
+    robotHeading.addListener(event -> {
+      if (event.value.isDoubleArray()) {
+        double[] sample = event.value.getDoubleArray();
+        if (sample.length >= 2) {
+          headingHistory.add((long) sample[0], sample[1]);
+        }
+      }
+    }, EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+
     /*
      * Get a timestamp that represents the last time we received something from the
      * Roborio. This particular signal is transmitted every 500 ms. Thus, this is a
@@ -390,8 +1513,16 @@ public final class Main {
      */
     autoAssistConnectionTest.addListener(event -> {
 
+      long receivedTime = System.currentTimeMillis();
       double millisecondsSinceEpochOnRoboRIO = event.value.getDouble();
 
+      /*
+       * Setting the clock only gets it within half a second, so also keep track of
+       * how far apart the clocks are, for comparing capture times with the
+       * RoboRIO's timestamps.
+       */
+      rioClock.addSample((long) millisecondsSinceEpochOnRoboRIO, receivedTime);
+
       /*
        * Check if the RPi's system time is more than 0.5 seconds different from the
        * RoboRIO's system time.
@@ -418,7 +1549,10 @@ public final class Main {
     // start image processing on camera 0 if present
     if (cameras.size() >= 1) {
 
+      threadsBefore = ThreadPlacement.threadIds();
       CvSource outputStream = CameraServer.getInstance().putVideo("Annotated Vision", 160, 120);
+      controlStreamBandwidth("Annotated Vision");
+      threadPlacement.placeNewThreads("stream", threadsBefore);
       try {
         /*
          * Get the first camera's configuration JSONElement "FOV" if it exists, then
@@ -434,84 +1568,122 @@ public final class Main {
         System.out.println(String.format(
             "Couldn't understand camera's FOV configuration value (ex: FOV: 150 ). Using %d instead.", fieldOfView));
       }
+      lensModel = readLensModel(cameraConfigs.get(0));
+      if (lensModel != null) {
+        System.out.println("Read lens calibration " + lensModel);
+      }
+      frameRegion = readFrameRegion(cameraConfigs.get(0));
+      if (frameRegion != null) {
+        System.out.println("Looking at " + frameRegion);
+      }
 
-      VisionThread visionThread = new VisionThread(cameras.get(0), new MyPipeline(), pipeline -> {
-        long startTime = pipeline.getStartTime();
-
-        VisionTargetFinder.TargetInformation targetDetails = pipeline.getTarget();
-        double fRelativeTargetHeading = targetDetails.normalizedCenter * (double) fieldOfView / 2.0f;
-        long targetProcessingTime = System.currentTimeMillis() - startTime;
-        double targetDistance = Double.NaN;
+      /*
+       * Build one target finder for each of the camera's "pipelines", each
+       * publishing to its own Vision table entry. Without a "pipelines" list, run the
+       * camera's own pipeline and publish to "targetInformation".
+       */
+      visionCameraConfig = cameraConfigs.get(0).config;
+      if (visionCameraConfig.has("pipelines")) {
+        for (JsonElement pipelineElement : visionCameraConfig.get("pipelines").getAsJsonArray()) {
+          JsonObject pipelineConfig = pipelineElement.getAsJsonObject();
+          if (!pipelineConfig.has("name")) {
+            parseError("could not read pipeline name");
+            continue;
+          }
+          pipelineConfigs.add(pipelineConfig);
+          pipelineNames.add(pipelineConfig.get("name").getAsString());
+        }
+      }
+      if (pipelineConfigs.isEmpty()) {
+        pipelineConfigs.add(visionCameraConfig);
+        pipelineNames.add("targetInformation");
+      }
+      for (String pipelineName : pipelineNames) {
+        targetEntries.add(ntinst.getTable("Vision").getEntry(pipelineName));
+        poseEntries.add(ntinst.getTable("Vision").getEntry(pipelineName + "Pose"));
+        poseEstimators.add(new TargetPoseEstimator());
+        tracksEntries.add(ntinst.getTable("Vision").getEntry(pipelineName + "Tracks"));
+        NetworkTableEntry selectTarget = ntinst.getTable("Vision").getEntry(pipelineName + "SelectTarget");
+        selectTarget.setDefaultDouble(0.0);
+        selectTargetEntries.add(selectTarget);
+        System.out.println(String.format("Publishing pipeline results to Vision/%s, Vision/%sPose and Vision/%sTracks",
+            pipelineName, pipelineName, pipelineName));
+      }
+      annotatedOutputStream = outputStream;
 
-        /*
-         * Check if the normalized returned heading is NaN (Not a Number). If it's Not a
-         * Number, the target finder failed to find a heading and the value shouldn't be
-         * used. Don't send invalid values to the RoboRIO.
-         */
-        if (!Double.isNaN(targetDetails.normalizedCenter)) {
-
-          /*
-           * To keep the information coherent (so that the heading and the time stamp are
-           * coordinated) combine the numbers into a single array and send the whole array
-           * to the RoboRIO together. That way, both pieces of information show up at
-           * exactly the same time. An example of this output is
-           * 
-           * [3.14529424,150.0,1.40]
-           * 
-           * where the first floating point number is the heading and the second is the
-           * age of the information in milliseconds.
-           */
-
-          /*
-           * Compute the distance to target using known features of the target, the
-           * resolution and the FOV of the camera.
-           * 
-           * d = Tin*FOVpixel/(2*Tpixel*tanΘ)
-           * 
-           * Where: Θ is 1/2 of the FOV Tin is the actual width of the target, which is
-           * the distance between the centers of the vision targets. FOVpixel is the width
-           * of the display in pixels (the horizontal resolution) Tpixel is the length of
-           * the target in pixels (the distance between the centers of the vision targets
-           * in pixels)
-           * 
-           * dNormalized = FOVPixel/Tpixel
-           * 
-           * 
-           * So, just compute the rest by multiplying dNormalized * Tin / (2*tanΘ)
-           * 
-           * 
-           * 
-           */
-          double targetWidth = 11.267601903166458855661396068853; /* Distance between center of targets in inches */
-          targetDistance = targetDetails.distanceToTargetNormalized * targetWidth
-              / (2.0 * Math.tan(Math.toRadians((double) fieldOfView / 2.0)));
-
-          targetInformation
-              .setDoubleArray(new double[] { fRelativeTargetHeading, (double) targetProcessingTime, targetDistance });
-
-          /*
-           * Flush the network table queue to quickly send this network table field to the
-           * roborio. This reduces the network latency of this information to almost
-           * nothing.
-           */
-          targetInformation.getInstance().flush();
-        }
-
-        System.out.println(String.format("visionTargetError:%3.1f degrees, distance %3.1f, processingTime:%d ms",
-            fRelativeTargetHeading, targetDistance, targetProcessingTime));
+      /*
+       * Watch for a pipeline that stops finishing frames, whether it's hung or its
+       * thread died. Mark the targets stale right away and rebuild everything in
+       * this process, which is far quicker than restarting the JVM.
+       */
+      JsonElement stallTimeoutElement = visionCameraConfig.get("stall timeout");
+      long stallTimeout = stallTimeoutElement != null ? stallTimeoutElement.getAsLong() : 500;
+      NetworkTableEntry stale = ntinst.getTable("Vision").getEntry("stale");
+      stale.setBoolean(false);
+      watchdog = new StallWatchdog(pipelineNames, stallTimeout, 4 * stallTimeout, new StallWatchdog.Listener() {
+        @Override
+        public void stalled(String pipeline, long millisSinceHeartbeat) {
+          stale.setBoolean(true);
+          ntinst.flush();
+          System.out.println(String.format("Pipeline %s stalled; no frame for %d ms. Rebuilding vision.", pipeline,
+              millisSinceHeartbeat));
+        }
 
-        outputStream.putFrame(pipeline.getAnnotatedMat());
+        @Override
+        public void rebuild() {
+          long start = System.nanoTime();
+          restartVision();
+          System.out.println(String.format("Rebuilt vision in %.1f ms", (System.nanoTime() - start) / 1.0e6));
+        }
 
+        @Override
+        public void recovered(long recoveryMillis) {
+          stale.setBoolean(false);
+          ntinst.flush();
+          System.out.println(String.format("Vision recovered %d ms after stalling", recoveryMillis));
+        }
       });
 
-      visionThread.start();
+      JsonElement exportElement = visionCameraConfig.get("shared memory export");
+      if (exportElement != null) {
+        JsonObject exportConfig = exportElement.getAsJsonObject();
+        String exportPath = exportConfig.has("path") ? exportConfig.get("path").getAsString() : "/dev/shm/vision";
+        int slots = exportConfig.has("slots") ? exportConfig.get("slots").getAsInt() : 4;
+        int width = visionCameraConfig.has("width") ? visionCameraConfig.get("width").getAsInt() : 640;
+        int height = visionCameraConfig.has("height") ? visionCameraConfig.get("height").getAsInt() : 480;
+        try {
+          /* Room for a BGR frame, which is bigger than a YUYV one. */
+          sharedFrameExport = new SharedFrameExport(exportPath, slots, width * height * 3);
+          System.out.println(String.format("Sharing frames through %s, %d slots", exportPath, slots));
+        } catch (IOException e) {
+          System.out.println(String.format("Couldn't share frames through %s:%s", exportPath, e.toString()));
+        }
+      }
+
+      startVision();
+      watchdog.start();
+      System.out.println(String.format("Rebuilding vision if a pipeline stalls for %d ms", stallTimeout));
     }
 
     // loop forever
+    boolean placementReported = false;
     for (;;) {
       try {
         Thread.sleep(1000);
 
+        /*
+         * By now the vision threads have placed themselves. Put everything else in
+         * "other" and report where every thread ended up.
+         */
+        if (!placementReported) {
+          threadPlacement.placeRemainingThreads("other");
+          System.out.println("Thread placement:");
+          for (String line : threadPlacement.describe()) {
+            System.out.println("  " + line);
+          }
+          placementReported = true;
+        }
+
         /*
          * Determine how long it's been since we last heard from the roborio. If it's
          * been too long, assume that something's gone amiss with the NetworkTables
@@ -519,6 +1691,108 @@ public final class Main {
          */
         long timeSinceLastRoborioEcho = System.currentTimeMillis() - autoAssistConnectionTestLastReceivedTimeStamp;
 
+        /*
+         * Report how many native Mats the pipelines are holding. This should level off
+         * once the pools have grown; if it keeps climbing, something is leaking.
+         */
+        liveNativeMats.setDouble((double) MatArena.getLiveMats());
+
+        /*
+         * Report how many frames were captured and how many were replaced by a newer
+         * frame before they could be processed, as [captured, overwritten].
+         */
+        if (frameCapture != null) {
+          capturedFrames.setDoubleArray(new double[] { (double) frameCapture.getCapturedFrames(),
+              (double) frameCapture.getOverwrittenFrames() });
+          System.out.println(String.format("Captured %d frames, %d overwritten before processing",
+              frameCapture.getCapturedFrames(), frameCapture.getOverwrittenFrames()));
+        }
+
+        /*
+         * Report how many frames the scene change detector let us skip, as [skipped,
+         * processed].
+         */
+        if (visionPipeline != null && visionPipeline.getSceneChangeDetector() != null) {
+          SceneChangeDetector detector = visionPipeline.getSceneChangeDetector();
+          skippedFrames.setDoubleArray(
+              new double[] { (double) detector.getSkippedFrames(), (double) detector.getProcessedFrames() });
+          System.out.println(String.format("Scene change detector skipped %d frames, processed %d",
+              detector.getSkippedFrames(), detector.getProcessedFrames()));
+        }
+
+        /*
+         * Measure the streams, step them to fit the budget, and report what they're
+         * sending, as [total Mbps, budget Mbps] and one line of settings per stream.
+         */
+        if (streamBandwidth != null) {
+          streamBandwidth.update();
+          streamBandwidthEntry.setDoubleArray(
+              new double[] { streamBandwidth.getTotalBitsPerSecond() / 1.0e6, streamBandwidth.getBudget() / 1.0e6 });
+          String[] settings = streamBandwidth.describe();
+          streamSettings.setStringArray(settings);
+          System.out.println(String.format("Streams sending %.2f of %.2f Mbps: %s",
+              streamBandwidth.getTotalBitsPerSecond() / 1.0e6, streamBandwidth.getBudget() / 1.0e6,
+              String.join(", ", settings)));
+        }
+
+        /*
+         * Report how long each switched camera's switches take to show a frame, as
+         * [switches, last ms, longest ms, switches that showed no frame].
+         */
+        for (int index = 0; index < cameraSwitchers.size(); ++index) {
+          CameraSwitcher switcher = cameraSwitchers.get(index);
+          switchLatencyEntries.get(index).setDoubleArray(new double[] { (double) switcher.getSwitches(),
+              switcher.getLastLatency(), switcher.getMaxLatency(), (double) switcher.getTimeouts() });
+        }
+
+        /*
+         * Report where the exposure controller has the camera and what it's seeing, as
+         * [exposure %, brightness %, lit %, contours].
+         */
+        ExposureController exposure = exposureController;
+        if (exposure != null) {
+          exposureEntry.setDoubleArray(new double[] { exposure.getExposure(), exposure.getBrightness(),
+              exposure.getLitFraction() * 100.0, exposure.getContourCount() });
+          System.out.println("Exposure control: " + exposure);
+        }
+
+        /*
+         * Report how many frames' searches ran past the frame deadline, as [missed,
+         * searched].
+         */
+        if (visionPipeline != null && visionPipeline.frameDeadline > 0) {
+          MyPipeline pipeline = visionPipeline;
+          deadlineMisses.setDoubleArray(
+              new double[] { (double) pipeline.getDeadlineMisses(), (double) pipeline.getFramesSearched() });
+          System.out.println(String.format("Frame deadline cut %d of %d searches short", pipeline.getDeadlineMisses(),
+              pipeline.getFramesSearched()));
+        }
+
+        /*
+         * Report how many pairs were left untracked because there were more in view
+         * than the tracker has slots for.
+         */
+        if (visionPipeline != null && visionPipeline.getDroppedPairs() > 0) {
+          MyPipeline pipeline = visionPipeline;
+          droppedPairs.setDouble(pipeline.getDroppedPairs());
+          System.out.println(String.format("%d pairs past the tracker's %d slots were left untracked",
+              pipeline.getDroppedPairs(), TargetTracker.MAX_TRACKS));
+        }
+
+        /*
+         * Report how often vision stalled and how long it took to come back, as
+         * [stalls, rebuilds, last recovery ms, longest recovery ms].
+         */
+        if (watchdog != null) {
+          stalls.setDoubleArray(new double[] { (double) watchdog.getStalls(), (double) watchdog.getRebuilds(),
+              (double) watchdog.getLastRecoveryMillis(), (double) watchdog.getMaxRecoveryMillis() });
+          if (watchdog.getStalls() > 0) {
+            System.out.println(String.format("Vision stalled %d times, %d rebuilds, last recovery %d ms, longest %d ms",
+                watchdog.getStalls(), watchdog.getRebuilds(), watchdog.getLastRecoveryMillis(),
+                watchdog.getMaxRecoveryMillis()));
+          }
+        }
+
         try {
           if (timeSinceLastRoborioEcho > 1000) {
             /*
@@ -535,8 +1809,10 @@ public final class Main {
             System.out.println(
                 String.format("Restarting networktables client because I haven't heard from the roborio for %d ms",
                     timeSinceLastRoborioEcho));
+            Set<Integer> threadsBeforeRestart = ThreadPlacement.threadIds();
             ntinst.stopClient();
             ntinst.startClientTeam(team);
+            threadPlacement.placeNewThreads("networktables", threadsBeforeRestart);
           }
         } catch (Exception ex) {
           System.out.println(String.format("Exception caught while testing roborio echo delay:%s", ex.toString()));
@@ -0,0 +1,329 @@
+
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2018 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import visiontargetfilter.GripPipeline;
+import visiontargetfinder.VisionTargetFinder;
+
+/*
+   Searches the contour filter thresholds and the target finder's gates for the
+   settings that find the targets in a set of labelled frames, using every core.
+
+   Usage:
+       ParameterSweep <frame directory> [options]
+
+   The frame directory holds the frames and a labels.csv with one line per frame:
+       <file name>,<normalized center>
+   where the normalized center is the -1 to 1 center the finder should report,
+   or "none" if there's no target in the frame.
+
+   Options:
+       --grid <parameter>=<v1>,<v2>,...   try each value; may be repeated, and
+                                          every combination is tried
+       --random <n>                       try n settings drawn from the ranges
+       --range <parameter>=<lo>:<hi>      range for --random; may be repeated
+       --seed <n>                         seed for --random (default 1481)
+       --tolerance <n>                    largest center error that counts as a
+                                          hit (default 0.02)
+       --threads <n>                      worker threads (default: every core)
+       --top <n>                          settings to report (default 10)
+
+   Parameters that aren't swept keep the values the pipeline runs with. They are:
+       lumMin lumMax minArea minRatio maxRatio                 (filter)
+       fillRatio leftAngleMin leftAngleMax rightAngleMin       (finder)
+       rightAngleMax minSimilarArea maxSimilarArea maxPairAngle minDispersion
+
+   Each setting is reported with its accuracy (frames where the finder agreed
+   with the label), its mean center error on the frames it hit, and the mean
+   time getVisionTargetLocation took per frame.
+ */
+public final class ParameterSweep {
+
+  private static final String[] PARAMETERS = { "lumMin", "lumMax", "minArea", "minRatio", "maxRatio", "fillRatio",
+      "leftAngleMin", "leftAngleMax", "rightAngleMin", "rightAngleMax", "minSimilarArea", "maxSimilarArea",
+      "maxPairAngle", "minDispersion" };
+
+  /* The values VisionTargetFilter and VisionTargetFinder run with. */
+  private static final double[] DEFAULTS;
+
+  static {
+    VisionTargetFinder.Tuning tuning = new VisionTargetFinder.Tuning();
+    DEFAULTS = new double[] { 182.1563231496473, 254.8189948985966, 48.0, 0.3333, 0.9, tuning.minFillRatio,
+        tuning.leftAngleMin, tuning.leftAngleMax, tuning.rightAngleMin, tuning.rightAngleMax,
+        tuning.minSimilarArea, tuning.maxSimilarArea, tuning.maxPairAngle, tuning.minDispersion };
+  }
+
+  private static List<Mat> frames = new ArrayList<>();
+  /* Expected normalized center of each frame, NaN for no target. */
+  private static double[] labels;
+  private static double tolerance = 0.02;
+
+  /* One finder per worker thread, reused for every setting that thread runs. */
+  private static final ThreadLocal<VisionTargetFinder> finders = ThreadLocal.withInitial(VisionTargetFinder::new);
+
+  private ParameterSweep() {
+  }
+
+  /**
+   * How one setting did on the frames.
+   */
+  private static class Result {
+    double[] setting;
+    int hits;
+    double totalError;
+    long totalNanos;
+
+    double accuracy() {
+      return (double) hits / frames.size();
+    }
+
+    double meanError() {
+      return hits > 0 ? totalError / hits : Double.NaN;
+    }
+
+    double millisPerFrame() {
+      return totalNanos / 1.0e6 / frames.size();
+    }
+  }
+
+  private static int parameterIndex(String name) {
+    int index = Arrays.asList(PARAMETERS).indexOf(name);
+    if (index < 0) {
+      System.err.println("unknown parameter '" + name + "'");
+      System.exit(2);
+    }
+    return index;
+  }
+
+  /**
+   * Run one setting over every frame on the calling worker thread.
+   */
+  private static Result evaluate(double[] setting) {
+    VisionTargetFinder finder = finders.get();
+    finder.setVisionTargetFilter(GripPipeline.withThresholds(new double[] { setting[0], setting[1] }, setting[2],
+        setting[3], setting[4]));
+    VisionTargetFinder.Tuning tuning = new VisionTargetFinder.Tuning();
+    tuning.minFillRatio = setting[5];
+    tuning.leftAngleMin = setting[6];
+    tuning.leftAngleMax = setting[7];
+    tuning.rightAngleMin = setting[8];
+    tuning.rightAngleMax = setting[9];
+    tuning.minSimilarArea = setting[10];
+    tuning.maxSimilarArea = setting[11];
+    tuning.maxPairAngle = setting[12];
+    tuning.minDispersion = setting[13];
+    finder.setTuning(tuning);
+
+    Result result = new Result();
+    result.setting = setting;
+    for (int frame = 0; frame < frames.size(); ++frame) {
+      long start = System.nanoTime();
+      VisionTargetFinder.TargetInformation target = finder.getVisionTargetLocation(frames.get(frame));
+      result.totalNanos += System.nanoTime() - start;
+
+      boolean found = !Double.isNaN(target.normalizedCenter);
+      if (Double.isNaN(labels[frame])) {
+        if (!found) {
+          ++result.hits;
+        }
+      } else if (found) {
+        double error = Math.abs(target.normalizedCenter - labels[frame]);
+        if (error <= tolerance) {
+          ++result.hits;
+          result.totalError += error;
+        }
+      }
+    }
+    return result;
+  }
+
+  private static void loadFrames(String directory) throws IOException {
+    File labelFile = new File(directory, "labels.csv");
+    if (!labelFile.isFile()) {
+      System.err.println("no labels.csv in '" + directory + "'");
+      System.exit(2);
+    }
+    List<Double> expected = new ArrayList<>();
+    for (String line : Files.readAllLines(labelFile.toPath(), StandardCharsets.UTF_8)) {
+      line = line.trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+      String[] fields = line.split(",");
+      if (fields.length != 2) {
+        System.err.println("bad label line '" + line + "'");
+        System.exit(2);
+      }
+      Mat frame = Imgcodecs.imread(new File(directory, fields[0].trim()).getPath());
+      if (frame.empty()) {
+        System.err.println("couldn't read frame '" + fields[0].trim() + "'");
+        continue;
+      }
+      frames.add(frame);
+      String center = fields[1].trim();
+      expected.add(center.equalsIgnoreCase("none") ? Double.NaN : Double.parseDouble(center));
+    }
+    labels = new double[expected.size()];
+    for (int index = 0; index < labels.length; ++index) {
+      labels[index] = expected.get(index);
+    }
+  }
+
+  /**
+   * Every combination of the grid's values, with the defaults for the rest.
+   */
+  private static List<double[]> gridSettings(Map<Integer, double[]> grid) {
+    List<double[]> settings = new ArrayList<>();
+    settings.add(DEFAULTS.clone());
+    for (Map.Entry<Integer, double[]> axis : grid.entrySet()) {
+      List<double[]> expanded = new ArrayList<>();
+      for (double[] setting : settings) {
+        for (double value : axis.getValue()) {
+          double[] next = setting.clone();
+          next[axis.getKey()] = value;
+          expanded.add(next);
+        }
+      }
+      settings = expanded;
+    }
+    return settings;
+  }
+
+  private static List<double[]> randomSettings(Map<Integer, double[]> ranges, int count, long seed) {
+    Random random = new Random(seed);
+    List<double[]> settings = new ArrayList<>();
+    for (int index = 0; index < count; ++index) {
+      double[] setting = DEFAULTS.clone();
+      for (Map.Entry<Integer, double[]> range : ranges.entrySet()) {
+        double low = range.getValue()[0];
+        double high = range.getValue()[1];
+        setting[range.getKey()] = low + random.nextDouble() * (high - low);
+      }
+      settings.add(setting);
+    }
+    return settings;
+  }
+
+  /**
+   * Main.
+   */
+  public static void main(String... args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("usage: ParameterSweep <frame directory> [--grid parameter=v1,v2,...]... [--random n]"
+          + " [--range parameter=lo:hi]... [--seed n] [--tolerance n] [--threads n] [--top n]");
+      System.exit(2);
+    }
+
+    Map<Integer, double[]> grid = new LinkedHashMap<>();
+    Map<Integer, double[]> ranges = new LinkedHashMap<>();
+    int randomCount = 0;
+    long seed = 1481;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int top = 10;
+    for (int index = 1; index < args.length; ++index) {
+      switch (args[index]) {
+      case "--grid": {
+        String[] axis = args[++index].split("=");
+        double[] values = Arrays.stream(axis[1].split(",")).mapToDouble(Double::parseDouble).toArray();
+        grid.put(parameterIndex(axis[0]), values);
+        break;
+      }
+      case "--range": {
+        String[] range = args[++index].split("=");
+        double[] bounds = Arrays.stream(range[1].split(":")).mapToDouble(Double::parseDouble).toArray();
+        ranges.put(parameterIndex(range[0]), bounds);
+        break;
+      }
+      case "--random":
+        randomCount = Integer.parseInt(args[++index]);
+        break;
+      case "--seed":
+        seed = Long.parseLong(args[++index]);
+        break;
+      case "--tolerance":
+        tolerance = Double.parseDouble(args[++index]);
+        break;
+      case "--threads":
+        threads = Integer.parseInt(args[++index]);
+        break;
+      case "--top":
+        top = Integer.parseInt(args[++index]);
+        break;
+      default:
+        System.err.println("unknown option '" + args[index] + "'");
+        System.exit(2);
+      }
+    }
+    if (randomCount > 0 && !grid.isEmpty()) {
+      System.err.println("use either --grid or --random, not both");
+      System.exit(2);
+    }
+
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    loadFrames(args[0]);
+    if (frames.isEmpty()) {
+      System.err.println("no frames found in '" + args[0] + "'");
+      System.exit(2);
+    }
+
+    List<double[]> settings = randomCount > 0 ? randomSettings(ranges, randomCount, seed) : gridSettings(grid);
+    System.out.println(String.format("%d frames, %d settings, %d threads", frames.size(), settings.size(), threads));
+
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    List<Future<Result>> pending = new ArrayList<>();
+    for (double[] setting : settings) {
+      pending.add(workers.submit(() -> evaluate(setting)));
+    }
+    List<Result> results = new ArrayList<>();
+    for (Future<Result> result : pending) {
+      results.add(result.get());
+    }
+    workers.shutdown();
+
+    results.sort((a, b) -> {
+      if (a.hits != b.hits) {
+        return Integer.compare(b.hits, a.hits);
+      }
+      int byError = Double.compare(a.meanError(), b.meanError());
+      return byError != 0 ? byError : Long.compare(a.totalNanos, b.totalNanos);
+    });
+
+    /* Only show the parameters that were swept. */
+    List<Integer> swept = new ArrayList<>(randomCount > 0 ? ranges.keySet() : grid.keySet());
+    StringBuilder header = new StringBuilder(String.format("%9s %10s %9s", "accuracy", "mean err", "ms/frame"));
+    for (int parameter : swept) {
+      header.append(String.format(" %14s", PARAMETERS[parameter]));
+    }
+    System.out.println(header);
+    for (Result result : results.subList(0, Math.min(top, results.size()))) {
+      StringBuilder row = new StringBuilder(String.format("%8.1f%% %10.4f %9.3f", 100.0 * result.accuracy(),
+          result.meanError(), result.millisPerFrame()));
+      for (int parameter : swept) {
+        row.append(String.format(" %14.4f", result.setting[parameter]));
+      }
+      System.out.println(row);
+    }
+  }
+}
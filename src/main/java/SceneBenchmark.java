@@ -0,0 +1,162 @@
+
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2018 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import visionhelper.SyntheticScene;
+import visiontargetfilter.ContourPipeline;
+import visiontargetfilter.GripPipeline;
+import visiontargetfilter.VisionTargetFilter;
+import visiontargetfinder.VisionTargetFinder;
+
+/*
+   Runs VisionTargetFinder.getVisionTargetLocation on synthetic 2019 target
+   scenes at known poses and reports how far off it was and how long it took, for
+   each resolution and scene complexity.
+
+   Usage:
+       SceneBenchmark [options]
+
+   Options:
+       --frames <n>             scenes per resolution and complexity (default 200)
+       --resolutions <list>     e.g. 160x120,320x240,640x480 (the default)
+       --fov <degrees>          camera's horizontal field of view (default 60)
+       --distance <min>:<max>   target distance in inches (default 24:144)
+       --noise <n>              sensor noise standard deviation (default 6)
+       --seed <n>               (default 1481)
+       --grip <file>            run a .grip file instead of VisionTargetFilter
+       --save <directory>       write every scene there as a PNG
+
+   Complexities are clean (tapes only), noisy (plus sensor noise), glare (plus
+   bright blobs) and decoys (plus ceiling lights and a second pair). Errors are
+   taken over the frames where a target was found: the center error is in
+   normalizedCenter units, the distance error is relative to the true
+   distanceToTargetNormalized. Contours is the mean number the contour pipeline
+   handed the finder, which is what frame time grows with.
+ */
+public final class SceneBenchmark {
+
+  private static final String[] COMPLEXITIES = { "clean", "noisy", "glare", "decoys" };
+
+  private SceneBenchmark() {
+  }
+
+  /**
+   * Main.
+   */
+  public static void main(String... args) throws Exception {
+    int frameCount = 200;
+    String resolutions = "160x120,320x240,640x480";
+    double fieldOfView = 60.0;
+    double minDistance = 24.0;
+    double maxDistance = 144.0;
+    double noiseLevel = 6.0;
+    long seed = 1481;
+    String grip = null;
+    String save = null;
+    for (int index = 0; index < args.length; ++index) {
+      switch (args[index]) {
+      case "--frames":
+        frameCount = Integer.parseInt(args[++index]);
+        break;
+      case "--resolutions":
+        resolutions = args[++index];
+        break;
+      case "--fov":
+        fieldOfView = Double.parseDouble(args[++index]);
+        break;
+      case "--distance":
+        String[] range = args[++index].split(":");
+        minDistance = Double.parseDouble(range[0]);
+        maxDistance = Double.parseDouble(range[1]);
+        break;
+      case "--noise":
+        noiseLevel = Double.parseDouble(args[++index]);
+        break;
+      case "--seed":
+        seed = Long.parseLong(args[++index]);
+        break;
+      case "--grip":
+        grip = args[++index];
+        break;
+      case "--save":
+        save = args[++index];
+        new File(save).mkdirs();
+        break;
+      default:
+        System.err.println("unknown option '" + args[index] + "'");
+        System.exit(2);
+      }
+    }
+
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+    ContourPipeline contourPipeline = grip != null ? GripPipeline.load(grip) : new VisionTargetFilter();
+    VisionTargetFinder targetFinder = new VisionTargetFinder(contourPipeline);
+    Mat frame = new Mat();
+    long[] times = new long[frameCount];
+
+    System.out.println(String.format("%-9s %-7s %6s %10s %10s %9s %9s %9s %9s", "size", "scene", "found",
+        "center err", "dist err", "contours", "mean ms", "p95 ms", "max ms"));
+    for (String resolution : resolutions.split(",")) {
+      String[] size = resolution.split("x");
+      int width = Integer.parseInt(size[0]);
+      int height = Integer.parseInt(size[1]);
+
+      for (int complexity = SyntheticScene.CLEAN; complexity <= SyntheticScene.DECOYS; ++complexity) {
+        /* The same poses for every complexity at a resolution. */
+        SyntheticScene scene = new SyntheticScene(width, height, fieldOfView, seed);
+
+        /* Let the JIT settle on a few frames that aren't counted. */
+        for (int warmup = 0; warmup < 20; ++warmup) {
+          scene.render(frame, scene.randomPose(minDistance, maxDistance), complexity, noiseLevel);
+          targetFinder.getVisionTargetLocation(frame);
+        }
+
+        int found = 0;
+        double centerError = 0.0;
+        double distanceError = 0.0;
+        long contours = 0;
+        for (int index = 0; index < frameCount; ++index) {
+          scene.render(frame, scene.randomPose(minDistance, maxDistance), complexity, noiseLevel);
+          if (save != null) {
+            Imgcodecs.imwrite(new File(save, String.format("%s_%s_%04d.png", resolution, COMPLEXITIES[complexity],
+                index)).getPath(), frame);
+          }
+
+          long start = System.nanoTime();
+          VisionTargetFinder.TargetInformation target = targetFinder.getVisionTargetLocation(frame);
+          times[index] = System.nanoTime() - start;
+          contours += contourPipeline.convexHullsOutput().size();
+
+          if (!Double.isNaN(target.normalizedCenter)) {
+            ++found;
+            centerError += Math.abs(target.normalizedCenter - scene.expectedNormalizedCenter);
+            distanceError += Math.abs(target.distanceToTargetNormalized - scene.expectedDistanceNormalized)
+                / scene.expectedDistanceNormalized;
+          }
+        }
+
+        Arrays.sort(times);
+        long total = 0;
+        for (long time : times) {
+          total += time;
+        }
+        System.out.println(String.format("%-9s %-7s %5.1f%% %10.4f %9.2f%% %9.1f %9.3f %9.3f %9.3f", resolution,
+            COMPLEXITIES[complexity], 100.0 * found / frameCount, found > 0 ? centerError / found : Double.NaN,
+            found > 0 ? 100.0 * distanceError / found : Double.NaN, (double) contours / frameCount,
+            total / 1.0e6 / frameCount, times[(int) (frameCount * 0.95)] / 1.0e6, times[frameCount - 1] / 1.0e6));
+      }
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2018 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+import java.util.List;
+
+import org.opencv.core.Core;
+
+import visiontargetfilter.GripPipeline;
+
+/*
+   Checks that GRIP pipelines sharing a stage cache only share the stages whose
+   output really is the same, by comparing the keys the stages are cached under.
+
+   Usage:
+       StageKeyCheck
+
+   Two pipelines with the same threshold and different Filter Contours bounds
+   should share Find Contours without the component prefilter, and not with it,
+   since the prefilter drops blobs by those bounds. Two identical pipelines
+   should share every stage. Exits with status 1 if any of that doesn't hold.
+ */
+public final class StageKeyCheck {
+
+  private static final double[] LUMINANCE = { 182.1563231496473, 254.8189948985966 };
+
+  /* Where Find Contours is in the chain withThresholds builds. */
+  private static final int FIND_CONTOURS = 1;
+
+  private static boolean passed = true;
+
+  private StageKeyCheck() {
+  }
+
+  /**
+   * Main.
+   */
+  public static void main(String... args) {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+
+    GripPipeline first = GripPipeline.withThresholds(LUMINANCE, 48.0, 0.3333, 0.9);
+    GripPipeline same = GripPipeline.withThresholds(LUMINANCE, 48.0, 0.3333, 0.9);
+    GripPipeline retuned = GripPipeline.withThresholds(LUMINANCE, 96.0, 0.3333, 0.9);
+
+    check("identical pipelines share every stage", first.getCacheKeys(false).equals(same.getCacheKeys(false))
+        && first.getCacheKeys(true).equals(same.getCacheKeys(true)));
+    check("different bounds share Find Contours without the prefilter",
+        key(first, false).equals(key(retuned, false)));
+    check("different bounds don't share Find Contours with the prefilter",
+        !key(first, true).equals(key(retuned, true)));
+
+    System.exit(passed ? 0 : 1);
+  }
+
+  private static String key(GripPipeline pipeline, boolean prefiltered) {
+    List<String> keys = pipeline.getCacheKeys(prefiltered);
+    return keys.get(FIND_CONTOURS);
+  }
+
+  private static void check(String description, boolean result) {
+    System.out.println(String.format("%-4s %s", result ? "ok" : "FAIL", description));
+    passed &= result;
+  }
+}
@@ -0,0 +1,191 @@
+
+/*----------------------------------------------------------------------------*/
+/* Copyright (c) 2018 FIRST. All Rights Reserved.                             */
+/* Open Source Software - may be modified and shared by FRC teams. The code   */
+/* must be accompanied by the FIRST BSD license file in the root directory of */
+/* the project.                                                               */
+/*----------------------------------------------------------------------------*/
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import visionservice.TargetDatagramSender;
+
+/*
+   Stands in for the RoboRIO on the receiving end of the "udp output" target
+   datagrams, and reports how many were lost and how old they were when they
+   arrived.
+
+   Usage:
+       TargetReceiver [options]
+
+   Options:
+       --port <n>          UDP port to listen on (default 5801)
+       --loopback <n>      send n datagrams to ourselves through
+                           TargetDatagramSender instead of waiting for the Pi
+       --rate <n>          datagrams per second for --loopback (default 30)
+       --verbose           print every datagram
+
+   Latency is the receive time less the capture time in the datagram, so it's
+   only one-way latency when the sender's clock matches this one (as it does for
+   --loopback, or on the RoboRIO, whose time the Pi stamps its datagrams in). The
+   send-to-receive time is reported too.
+ */
+public final class TargetReceiver {
+
+  private TargetReceiver() {
+  }
+
+  private static long received;
+  private static long lost;
+  private static long outOfOrder;
+  private static long captureLatencyTotal;
+  private static long captureLatencyMax;
+  private static long transitTotal;
+  private static long transitMax;
+  private static int nextSequence = -1;
+
+  private static void report(String label) {
+    System.out.println(String.format(
+        "%s: received %d, lost %d (%.2f%%), out of order %d, capture to receive mean %.1f ms max %d ms,"
+            + " send to receive mean %.1f ms max %d ms",
+        label, received, lost, received + lost > 0 ? 100.0 * lost / (received + lost) : 0.0, outOfOrder,
+        received > 0 ? (double) captureLatencyTotal / received : 0.0, captureLatencyMax,
+        received > 0 ? (double) transitTotal / received : 0.0, transitMax));
+  }
+
+  /**
+   * Main.
+   */
+  public static void main(String... args) throws Exception {
+    int port = 5801;
+    int loopback = 0;
+    int rate = 30;
+    boolean verbose = false;
+    for (int index = 0; index < args.length; ++index) {
+      switch (args[index]) {
+      case "--port":
+        port = Integer.parseInt(args[++index]);
+        break;
+      case "--loopback":
+        loopback = Integer.parseInt(args[++index]);
+        break;
+      case "--rate":
+        rate = Integer.parseInt(args[++index]);
+        break;
+      case "--verbose":
+        verbose = true;
+        break;
+      default:
+        System.err.println("unknown option '" + args[index] + "'");
+        System.exit(2);
+      }
+    }
+
+    DatagramSocket socket = new DatagramSocket(port);
+    socket.setSoTimeout(1000);
+    System.out.println("Listening for target datagrams on UDP port " + port);
+
+    if (loopback > 0) {
+      final int count = loopback;
+      final long period = 1000000000L / rate;
+      final int loopbackPort = port;
+      Thread sender = new Thread(() -> {
+        try {
+          TargetDatagramSender targetSender = new TargetDatagramSender("127.0.0.1", loopbackPort);
+          long next = System.nanoTime();
+          for (int sent = 0; sent < count; ++sent) {
+            targetSender.send(0, System.currentTimeMillis(), sent % 2 == 0 ? 1.5 : Double.NaN,
+                sent % 2 == 0 ? 91.5 : Double.NaN, 48.0,
+                sent % 2 == 0 ? TargetDatagramSender.STATUS_TARGET : TargetDatagramSender.STATUS_NO_TARGET);
+            next += period;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+              Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+          }
+          targetSender.close();
+        } catch (Exception e) {
+          System.out.println("Loopback sender failed:" + e.toString());
+        }
+      }, "Loopback sender");
+      sender.setDaemon(true);
+      sender.start();
+    }
+
+    byte[] datagram = new byte[TargetDatagramSender.DATAGRAM_SIZE];
+    DatagramPacket packet = new DatagramPacket(datagram, datagram.length);
+    ByteBuffer view = ByteBuffer.wrap(datagram).order(ByteOrder.BIG_ENDIAN);
+    long lastReport = System.currentTimeMillis();
+
+    for (;;) {
+      try {
+        socket.receive(packet);
+      } catch (SocketTimeoutException e) {
+        if (loopback > 0 && received + lost >= loopback) {
+          break;
+        }
+        if (loopback > 0 && received > 0) {
+          /* The sender is done; whatever hasn't arrived by now was lost. */
+          lost += loopback - nextSequence;
+          break;
+        }
+        continue;
+      }
+      long receiveTime = System.currentTimeMillis();
+      if (packet.getLength() != TargetDatagramSender.DATAGRAM_SIZE) {
+        System.out.println(String.format("Ignoring a %d byte datagram", packet.getLength()));
+        continue;
+      }
+
+      int sequence = view.getInt(TargetDatagramSender.SEQUENCE_OFFSET);
+      long captureTime = view.getLong(TargetDatagramSender.CAPTURE_TIME_OFFSET);
+      long sendTime = view.getLong(TargetDatagramSender.SEND_TIME_OFFSET);
+      double heading = view.getDouble(TargetDatagramSender.HEADING_OFFSET);
+      double distance = view.getDouble(TargetDatagramSender.DISTANCE_OFFSET);
+      double fieldHeading = view.getDouble(TargetDatagramSender.FIELD_HEADING_OFFSET);
+      int pipeline = view.get(TargetDatagramSender.PIPELINE_OFFSET);
+      int status = view.get(TargetDatagramSender.STATUS_OFFSET);
+
+      ++received;
+      if (nextSequence < 0 || sequence >= nextSequence) {
+        if (nextSequence >= 0) {
+          lost += sequence - nextSequence;
+        }
+        nextSequence = sequence + 1;
+      } else {
+        /* It was counted as lost when a later one arrived first. */
+        ++outOfOrder;
+        --lost;
+      }
+
+      long captureLatency = receiveTime - captureTime;
+      long transit = receiveTime - sendTime;
+      captureLatencyTotal += captureLatency;
+      captureLatencyMax = Math.max(captureLatencyMax, captureLatency);
+      transitTotal += transit;
+      transitMax = Math.max(transitMax, transit);
+
+      if (verbose) {
+        System.out.println(String.format("#%d pipeline %d %s heading %.2f field heading %.2f distance %.1f, %d ms old",
+            sequence, pipeline, status == TargetDatagramSender.STATUS_NO_TARGET ? "no target"
+                : status == TargetDatagramSender.STATUS_PARTIAL_TARGET ? "partial target" : "target", heading,
+            fieldHeading, distance, captureLatency));
+      }
+
+      if (receiveTime - lastReport >= 1000) {
+        report("So far");
+        lastReport = receiveTime;
+      }
+      if (loopback > 0 && received + lost >= loopback) {
+        break;
+      }
+    }
+
+    report("Total");
+    socket.close();
+  }
+}
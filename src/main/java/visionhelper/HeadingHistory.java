@@ -0,0 +1,112 @@
+package visionhelper;
+
+/**
+ * The robot's recent headings, so the heading it had when a frame was captured
+ * can be looked up after the frame has been processed.
+ *
+ * <p>Samples are kept in a fixed ring of primitive arrays, so adding one
+ * allocates nothing, and looked up by binary search. Headings are in degrees and
+ * may wrap at +/-180 or keep counting past it; interpolation takes the short way
+ * around either way.
+ */
+public class HeadingHistory {
+
+	private final long[] times;
+	private final double[] headings;
+	private final long maxExtrapolation;
+	/* Index of the oldest sample, and how many there are. */
+	private int start = 0;
+	private int count = 0;
+
+	/**
+	 * @param capacity         samples kept; at 50 samples a second, 64 is over a
+	 *                         second of history
+	 * @param maxExtrapolation milliseconds past the newest sample a heading is
+	 *                         extrapolated before it's unknown
+	 */
+	public HeadingHistory(int capacity, long maxExtrapolation) {
+		times = new long[capacity];
+		headings = new double[capacity];
+		this.maxExtrapolation = maxExtrapolation;
+	}
+
+	/**
+	 * Add a sample. Samples older than the newest one are ignored.
+	 *
+	 * @param time    milliseconds since the epoch
+	 * @param heading degrees
+	 */
+	public synchronized void add(long time, double heading) {
+		if (count > 0 && time <= times[index(count - 1)]) {
+			return;
+		}
+		if (count == times.length) {
+			start = (start + 1) % times.length;
+			--count;
+		}
+		int slot = index(count);
+		times[slot] = time;
+		headings[slot] = heading;
+		++count;
+	}
+
+	/**
+	 * @param time milliseconds since the epoch
+	 * @return the heading at that time, or NaN if it's older than the history or
+	 *         too far past it.
+	 */
+	public synchronized double headingAt(long time) {
+		if (count == 0 || time < times[index(0)]) {
+			return Double.NaN;
+		}
+		int newest = index(count - 1);
+		if (time >= times[newest]) {
+			if (time - times[newest] > maxExtrapolation) {
+				return Double.NaN;
+			}
+			if (count == 1) {
+				return headings[newest];
+			}
+			return interpolate(index(count - 2), newest, time);
+		}
+
+		/* Find the last sample at or before the time. */
+		int low = 0;
+		int high = count - 1;
+		while (high - low > 1) {
+			int middle = (low + high) >>> 1;
+			if (times[index(middle)] <= time) {
+				low = middle;
+			} else {
+				high = middle;
+			}
+		}
+		return interpolate(index(low), index(high), time);
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	public synchronized void clear() {
+		start = 0;
+		count = 0;
+	}
+
+	private int index(int offset) {
+		return (start + offset) % times.length;
+	}
+
+	private double interpolate(int before, int after, long time) {
+		double change = headings[after] - headings[before];
+		/* A wrapping heading jumps by about 360 between samples; go the short way. */
+		change -= 360.0 * Math.rint(change / 360.0);
+		double fraction = (double) (time - times[before]) / (times[after] - times[before]);
+		double heading = headings[before] + fraction * change;
+		/* Keep a heading that wraps within +/-180. */
+		if (Math.abs(headings[before]) <= 180.0 && Math.abs(headings[after]) <= 180.0 && Math.abs(heading) > 180.0) {
+			heading -= 360.0 * Math.signum(heading);
+		}
+		return heading;
+	}
+}
@@ -0,0 +1,201 @@
+package visionhelper;
+
+import java.util.Arrays;
+
+/**
+ * A camera's intrinsics and lens distortion, for turning a pixel into the
+ * direction it was seen from.
+ *
+ * <p>Only the few points that matter, like the centers of a target pair, are
+ * undistorted, so nothing is done per pixel. Distortion is either the
+ * Brown-Conrady model OpenCV's calibrateCamera fits (k1, k2, p1, p2, k3) or the
+ * equidistant fisheye model cv::fisheye::calibrate fits (k1, k2, k3, k4). Both are
+ * inverted by fixed point iteration, as cv::undistortPoints does.
+ *
+ * <p>Headings come from a table of the angle of every column of the undistorted
+ * image, built once for the frame size, so a heading costs an interpolation
+ * instead of trigonometry.
+ */
+public class LensModel {
+
+	private static final int UNDISTORT_ITERATIONS = 10;
+
+	private final int width;
+	private final int height;
+	private final double fx;
+	private final double fy;
+	private final double cx;
+	private final double cy;
+	private final double[] distortion;
+	private final boolean fisheye;
+
+	/* Heading in degrees of each column of the undistorted image, from firstColumn on. */
+	private final double[] columnHeadings;
+	private final int firstColumn;
+
+	/**
+	 * @param width        the frame width the intrinsics were calibrated at
+	 * @param height       the frame height the intrinsics were calibrated at
+	 * @param fx           focal length in pixels, horizontally
+	 * @param fy           focal length in pixels, vertically
+	 * @param cx           principal point x
+	 * @param cy           principal point y
+	 * @param distortion   distortion coefficients; missing ones are 0
+	 * @param fisheye      true for the fisheye model, false for Brown-Conrady
+	 */
+	public LensModel(int width, int height, double fx, double fy, double cx, double cy, double[] distortion,
+			boolean fisheye) {
+		this.width = width;
+		this.height = height;
+		this.fx = fx;
+		this.fy = fy;
+		this.cx = cx;
+		this.cy = cy;
+		this.distortion = Arrays.copyOf(distortion, fisheye ? 4 : 5);
+		this.fisheye = fisheye;
+
+		/*
+		 * The undistorted image is wider than the frame for a barrel distorted lens, so
+		 * cover every column a point on the frame's edges can land on.
+		 */
+		double[] normalized = new double[2];
+		double left = 0.0;
+		double right = width;
+		for (int y = 0; y <= height; y += Math.max(1, height / 16)) {
+			undistort(0, y, normalized);
+			left = Math.min(left, fx * normalized[0] + cx);
+			undistort(width - 1, y, normalized);
+			right = Math.max(right, fx * normalized[0] + cx);
+		}
+		firstColumn = (int) Math.floor(left);
+		columnHeadings = new double[(int) Math.ceil(right) - firstColumn + 2];
+		for (int column = 0; column < columnHeadings.length; ++column) {
+			columnHeadings[column] = Math.toDegrees(Math.atan((firstColumn + column - cx) / fx));
+		}
+	}
+
+	/**
+	 * A distortion free model with the given horizontal field of view, for cameras
+	 * that haven't been calibrated.
+	 */
+	public static LensModel fromFieldOfView(double fieldOfView, int width, int height) {
+		double focalLength = (width / 2.0) / Math.tan(Math.toRadians(fieldOfView / 2.0));
+		return new LensModel(width, height, focalLength, focalLength, width / 2.0, height / 2.0, new double[0],
+				false);
+	}
+
+	/**
+	 * @return this model for frames of another size from the same sensor, or this
+	 *         model if the size is the same.
+	 */
+	public LensModel scaledTo(int frameWidth, int frameHeight) {
+		if (frameWidth == width && frameHeight == height) {
+			return this;
+		}
+		double scaleX = (double) frameWidth / width;
+		double scaleY = (double) frameHeight / height;
+		return new LensModel(frameWidth, frameHeight, fx * scaleX, fy * scaleY, cx * scaleX, cy * scaleY,
+				distortion, fisheye);
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the horizontal focal length in pixels, for turning distances on the
+	 *         normalized image plane into pixels.
+	 */
+	public double getFocalLength() {
+		return fx;
+	}
+
+	/**
+	 * Undistort one pixel.
+	 *
+	 * @param normalized receives x and y on the normalized image plane, where the
+	 *                   ray through the pixel is (x, y, 1).
+	 */
+	public void undistort(double pixelX, double pixelY, double[] normalized) {
+		double xd = (pixelX - cx) / fx;
+		double yd = (pixelY - cy) / fy;
+
+		if (fisheye) {
+			/* Solve theta_d = theta (1 + k1 theta^2 + k2 theta^4 + k3 theta^6 + k4 theta^8). */
+			double thetaD = Math.sqrt(xd * xd + yd * yd);
+			if (thetaD < 1e-9) {
+				normalized[0] = xd;
+				normalized[1] = yd;
+				return;
+			}
+			thetaD = Math.min(thetaD, Math.PI / 2.0);
+			double theta = thetaD;
+			for (int iteration = 0; iteration < UNDISTORT_ITERATIONS; ++iteration) {
+				double theta2 = theta * theta;
+				double theta4 = theta2 * theta2;
+				double theta6 = theta4 * theta2;
+				double theta8 = theta4 * theta4;
+				theta = thetaD / (1.0 + distortion[0] * theta2 + distortion[1] * theta4 + distortion[2] * theta6
+						+ distortion[3] * theta8);
+			}
+			double scale = Math.tan(theta) / thetaD;
+			normalized[0] = xd * scale;
+			normalized[1] = yd * scale;
+			return;
+		}
+
+		double k1 = distortion[0];
+		double k2 = distortion[1];
+		double p1 = distortion[2];
+		double p2 = distortion[3];
+		double k3 = distortion[4];
+		double x = xd;
+		double y = yd;
+		for (int iteration = 0; iteration < UNDISTORT_ITERATIONS; ++iteration) {
+			double r2 = x * x + y * y;
+			double radial = 1.0 + ((k3 * r2 + k2) * r2 + k1) * r2;
+			double deltaX = 2.0 * p1 * x * y + p2 * (r2 + 2.0 * x * x);
+			double deltaY = p1 * (r2 + 2.0 * y * y) + 2.0 * p2 * x * y;
+			x = (xd - deltaX) / radial;
+			y = (yd - deltaY) / radial;
+		}
+		normalized[0] = x;
+		normalized[1] = y;
+	}
+
+	/**
+	 * @param normalizedX x on the normalized image plane, from
+	 *                    {@link #undistort(double, double, double[])}
+	 * @return the horizontal angle of the point from the optical axis in degrees,
+	 *         positive to the right.
+	 */
+	public double heading(double normalizedX) {
+		double column = fx * normalizedX + cx - firstColumn;
+		if (column < 0.0 || column >= columnHeadings.length - 1) {
+			return Math.toDegrees(Math.atan(normalizedX));
+		}
+		int index = (int) column;
+		double fraction = column - index;
+		return columnHeadings[index] + fraction * (columnHeadings[index + 1] - columnHeadings[index]);
+	}
+
+	/**
+	 * @return the angle in degrees between the rays through two points on the
+	 *         normalized image plane.
+	 */
+	public static double angleBetween(double x1, double y1, double x2, double y2) {
+		double dot = x1 * x2 + y1 * y2 + 1.0;
+		double length = Math.sqrt((x1 * x1 + y1 * y1 + 1.0) * (x2 * x2 + y2 * y2 + 1.0));
+		return Math.toDegrees(Math.acos(Math.max(-1.0, Math.min(1.0, dot / length))));
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%dx%d fx %.1f fy %.1f cx %.1f cy %.1f %s %s", width, height, fx, fy, cx, cy,
+				fisheye ? "fisheye" : "brown-conrady", Arrays.toString(distortion));
+	}
+}
@@ -0,0 +1,62 @@
+package visionhelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opencv.core.Mat;
+
+/**
+ * Owns the OpenCV objects a pipeline uses for one frame.
+ *
+ * <p>The Java wrappers only free a Mat's native memory when their finalizer runs,
+ * which can be long after the frame that made them. An arena frees that memory
+ * at a known point instead: objects made for one frame, like the contours from
+ * findContours or a crop's submat, are adopted and released when the frame ends.
+ *
+ * <p>Objects from an arena are only valid until the next {@link #endFrame()}. An
+ * arena is used by one thread.
+ */
+public class MatArena {
+
+	private static final AtomicLong liveMats = new AtomicLong();
+
+	private final List<Mat> adopted = new ArrayList<>();
+
+	/**
+	 * @return the number of native Mats made through arenas that haven't been
+	 *         released.
+	 */
+	public static long getLiveMats() {
+		return liveMats.get();
+	}
+
+	/**
+	 * Release a Mat when this frame ends.
+	 */
+	public <T extends Mat> T adopt(T mat) {
+		adopted.add(mat);
+		liveMats.incrementAndGet();
+		return mat;
+	}
+
+	/**
+	 * Release every Mat in the list when this frame ends.
+	 */
+	public void adoptAll(List<? extends Mat> mats) {
+		for (Mat mat : mats) {
+			adopt(mat);
+		}
+	}
+
+	/**
+	 * Release the adopted Mats.
+	 */
+	public void endFrame() {
+		for (Mat mat : adopted) {
+			mat.release();
+		}
+		liveMats.addAndGet(-adopted.size());
+		adopted.clear();
+	}
+}
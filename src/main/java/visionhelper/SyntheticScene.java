@@ -0,0 +1,203 @@
+package visionhelper;
+
+import java.util.Random;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Renders the 2019 vision targets, a pair of tilted retroreflective tapes, into
+ * BGR frames through a pinhole camera, with the answer the finder should give.
+ *
+ * <p>Each tape is 2 by 5.5 inches, tilted 14.5 degrees so their tops lean toward
+ * each other, with their centers 11.27 inches apart. The pair is placed at a
+ * distance, offset and yaw relative to the camera, so tapes seen from the side
+ * are narrower, as they are on the field. On top of that, a scene can have sensor
+ * noise, glare (bright blobs of random size and shape) and decoys (ceiling lights
+ * and a second pair further from the center of the frame than the real one).
+ */
+public class SyntheticScene {
+
+	public static final double TAPE_WIDTH = 2.0;
+	public static final double TAPE_LENGTH = 5.5;
+	public static final double TAPE_TILT = 14.5;
+	public static final double TAPE_SEPARATION = 11.267601903166458855661396068853;
+
+	/* Lit tape, green from the LED ring, and glare, in BGR. */
+	static final Scalar TAPE = new Scalar(160, 255, 160);
+	static final Scalar GLARE = new Scalar(255, 255, 255);
+	static final Scalar BACKGROUND = new Scalar(35, 30, 30);
+
+	/**
+	 * Clean tapes; tapes plus noise; plus glare; plus decoys.
+	 */
+	public static final int CLEAN = 0;
+	public static final int NOISY = 1;
+	public static final int GLARE_BLOBS = 2;
+	public static final int DECOYS = 3;
+
+	/**
+	 * Where the pair is relative to the camera, in inches and degrees. Positive
+	 * lateral is to the right, vertical is up, and yaw turns the pair's right side
+	 * away from the camera.
+	 */
+	public static class Pose {
+		public double distance;
+		public double lateral;
+		public double vertical;
+		public double yaw;
+	}
+
+	private final int width;
+	private final int height;
+	private final double focalLength;
+	private final Random random;
+	private final Mat noise = new Mat();
+	private final Mat noMask = new Mat();
+	private final MatOfPoint polygon = new MatOfPoint();
+	private final Point[] corners = { new Point(), new Point(), new Point(), new Point() };
+
+	/* What the finder should report for the last frame rendered. */
+	public double expectedNormalizedCenter;
+	public double expectedDistanceNormalized;
+
+	/**
+	 * @param fieldOfView horizontal field of view in degrees
+	 * @param seed        seed for poses, noise, glare and decoys
+	 */
+	public SyntheticScene(int width, int height, double fieldOfView, long seed) {
+		this.width = width;
+		this.height = height;
+		focalLength = (width / 2.0) / Math.tan(Math.toRadians(fieldOfView / 2.0));
+		random = new Random(seed);
+	}
+
+	public double getFocalLength() {
+		return focalLength;
+	}
+
+	/**
+	 * @return a pose that keeps the whole pair in view.
+	 */
+	public Pose randomPose(double minDistance, double maxDistance) {
+		Pose pose = new Pose();
+		pose.distance = minDistance + random.nextDouble() * (maxDistance - minDistance);
+		double halfWidth = pose.distance * (width / 2.0) / focalLength - TAPE_SEPARATION;
+		double halfHeight = pose.distance * (height / 2.0) / focalLength - TAPE_LENGTH;
+		pose.lateral = (random.nextDouble() * 2.0 - 1.0) * Math.max(0.0, 0.8 * halfWidth);
+		pose.vertical = (random.nextDouble() * 2.0 - 1.0) * Math.max(0.0, 0.5 * halfHeight);
+		pose.yaw = (random.nextDouble() * 2.0 - 1.0) * 25.0;
+		return pose;
+	}
+
+	/**
+	 * Render a frame.
+	 *
+	 * @param frame      receives the BGR frame
+	 * @param complexity CLEAN, NOISY, GLARE_BLOBS or DECOYS
+	 * @param noiseLevel standard deviation of the sensor noise, in gray levels
+	 */
+	public void render(Mat frame, Pose pose, int complexity, double noiseLevel) {
+		frame.create(height, width, CvType.CV_8UC3);
+		frame.setTo(BACKGROUND);
+
+		if (complexity >= DECOYS) {
+			drawDecoys(frame, pose);
+		}
+
+		/* Tape centers in pixels, for the expected answer. */
+		double[] left = drawTape(frame, pose, -TAPE_SEPARATION / 2.0, TAPE_TILT);
+		double[] right = drawTape(frame, pose, TAPE_SEPARATION / 2.0, -TAPE_TILT);
+		double centerX = (left[0] + right[0]) / 2.0;
+		expectedNormalizedCenter = 2.0 * ((centerX / width) - 0.5);
+		expectedDistanceNormalized = width / Math.hypot(right[0] - left[0], right[1] - left[1]);
+
+		if (complexity >= GLARE_BLOBS) {
+			int blobs = complexity >= DECOYS ? 8 : 3;
+			double scale = width / 320.0;
+			for (int blob = 0; blob < blobs; ++blob) {
+				Point center = new Point(random.nextDouble() * width, random.nextDouble() * height);
+				Size axes = new Size((2 + random.nextDouble() * 12) * scale, (2 + random.nextDouble() * 12) * scale);
+				Imgproc.ellipse(frame, new RotatedRect(center, axes, random.nextDouble() * 180.0), GLARE, -1);
+			}
+		}
+
+		if (complexity >= NOISY && noiseLevel > 0.0) {
+			noise.create(frame.size(), CvType.CV_16SC3);
+			Core.randn(noise, 0.0, noiseLevel);
+			Core.add(frame, noise, frame, noMask, CvType.CV_8UC3);
+		}
+	}
+
+	/**
+	 * Ceiling lights and, if there's room, a second pair further from the center
+	 * of the frame than the real one, so the finder should still pick the real one.
+	 */
+	private void drawDecoys(Mat frame, Pose pose) {
+		for (int light = 0; light < 2; ++light) {
+			double lightWidth = width * (0.05 + random.nextDouble() * 0.1);
+			double x = random.nextDouble() * (width - lightWidth);
+			double y = random.nextDouble() * height * 0.2;
+			Imgproc.rectangle(frame, new Point(x, y), new Point(x + lightWidth, y + Math.max(2.0, height * 0.015)),
+					GLARE, -1);
+		}
+
+		Pose decoy = new Pose();
+		decoy.distance = pose.distance;
+		decoy.vertical = pose.vertical;
+		decoy.yaw = pose.yaw;
+		/* Put it on the far side of the real pair from the center, clear of it. */
+		double side = pose.lateral >= 0.0 ? 1.0 : -1.0;
+		decoy.lateral = pose.lateral + side * 2.5 * TAPE_SEPARATION;
+		double halfWidth = decoy.distance * (width / 2.0) / focalLength;
+		if (Math.abs(decoy.lateral) + TAPE_SEPARATION < halfWidth) {
+			drawTape(frame, decoy, -TAPE_SEPARATION / 2.0, TAPE_TILT);
+			drawTape(frame, decoy, TAPE_SEPARATION / 2.0, -TAPE_TILT);
+		}
+	}
+
+	/**
+	 * Draw one tape centered offset inches from the pair's center.
+	 *
+	 * @param tilt degrees its top leans to the right
+	 * @return the tape's center in pixels.
+	 */
+	private double[] drawTape(Mat frame, Pose pose, double offset, double tilt) {
+		double tiltRadians = Math.toRadians(tilt);
+		double yaw = Math.toRadians(pose.yaw);
+		double[][] local = { { -TAPE_WIDTH / 2.0, TAPE_LENGTH / 2.0 }, { TAPE_WIDTH / 2.0, TAPE_LENGTH / 2.0 },
+				{ TAPE_WIDTH / 2.0, -TAPE_LENGTH / 2.0 }, { -TAPE_WIDTH / 2.0, -TAPE_LENGTH / 2.0 } };
+		for (int corner = 0; corner < 4; ++corner) {
+			double a = local[corner][0];
+			double b = local[corner][1];
+			/* Lean the top to the right by the tilt, then move it out from the center. */
+			double x = a * Math.cos(tiltRadians) + b * Math.sin(tiltRadians) + offset;
+			double y = -a * Math.sin(tiltRadians) + b * Math.cos(tiltRadians);
+			project(pose, x, y, yaw, corners[corner]);
+		}
+		polygon.fromArray(corners);
+		Imgproc.fillConvexPoly(frame, polygon, TAPE, Imgproc.LINE_AA, 0);
+
+		Point center = new Point();
+		project(pose, offset, 0.0, yaw, center);
+		return new double[] { center.x, center.y };
+	}
+
+	/**
+	 * Project a point on the target's plane into the frame.
+	 */
+	private void project(Pose pose, double x, double y, double yaw, Point pixel) {
+		double cameraX = pose.lateral + x * Math.cos(yaw);
+		double cameraY = pose.vertical + y;
+		double cameraZ = pose.distance + x * Math.sin(yaw);
+		pixel.x = width / 2.0 + focalLength * cameraX / cameraZ;
+		pixel.y = height / 2.0 - focalLength * cameraY / cameraZ;
+	}
+}
@@ -0,0 +1,261 @@
+package visionhelper;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+
+/**
+ * Where a target pair is and which way it faces, solved from the corners of its
+ * two tapes with solvePnP.
+ *
+ * <p>The corners are undistorted with the camera's {@link LensModel} first and
+ * solved on the normalized image plane, with an identity camera matrix and no
+ * distortion, so the fisheye model works the same as Brown-Conrady. Each solve
+ * starts from the last frame's pose, which is a few iterations from the answer
+ * when the robot has only moved a frame's worth. If the warm start goes wrong (it
+ * lands behind the camera, or reprojects badly) the frame is solved again from
+ * scratch.
+ *
+ * <p>The pose is in {@link SyntheticScene.Pose}'s terms: inches and degrees from
+ * the camera to the point halfway between the tapes' centers, with positive
+ * lateral to the right, vertical up, and yaw turning the pair's right side away
+ * from the camera.
+ */
+public class TargetPoseEstimator {
+
+	/* Corners of a pair: four for each tape, left tape first. */
+	public static final int CORNERS = 8;
+
+	/* A warm started solve that reprojects worse than this many pixels is done again from scratch. */
+	static final double MAX_WARM_ERROR = 2.0;
+
+	private final MatOfPoint3f model = new MatOfPoint3f();
+	private final MatOfPoint2f image = new MatOfPoint2f();
+	private final MatOfPoint2f reprojected = new MatOfPoint2f();
+	private final Mat cameraMatrix = Mat.eye(3, 3, CvType.CV_64F);
+	private final MatOfDouble noDistortion = new MatOfDouble();
+	private final Mat rvec = new Mat(3, 1, CvType.CV_64F);
+	private final Mat tvec = new Mat(3, 1, CvType.CV_64F);
+	private final Mat rotation = new Mat(3, 3, CvType.CV_64F);
+
+	/* Scratch, reused for every solve. */
+	private final double[] normalized = new double[2];
+	private final float[] imagePoints = new float[CORNERS * 2];
+	private final float[] reprojectedPoints = new float[CORNERS * 2];
+	private final double[] ordered = new double[8];
+	private final double[] translation = new double[3];
+	private final double[] rotationValues = new double[9];
+
+	/* True if rvec and tvec hold the last frame's pose, to start the next solve from. */
+	private boolean solved = false;
+	private boolean warmStarted = false;
+	private long warmSolves = 0;
+	private long coldSolves = 0;
+
+	private double lateral = Double.NaN;
+	private double vertical = Double.NaN;
+	private double distance = Double.NaN;
+	private double yaw = Double.NaN;
+	private double reprojectionError = Double.NaN;
+
+	public TargetPoseEstimator() {
+		/* The tapes as they're drawn by SyntheticScene, with y down like the image's. */
+		float[] corners = new float[CORNERS * 3];
+		addTape(corners, 0, -SyntheticScene.TAPE_SEPARATION / 2.0, SyntheticScene.TAPE_TILT);
+		addTape(corners, 4, SyntheticScene.TAPE_SEPARATION / 2.0, -SyntheticScene.TAPE_TILT);
+		model.create(CORNERS, 1, CvType.CV_32FC3);
+		model.put(0, 0, corners);
+		image.create(CORNERS, 1, CvType.CV_32FC2);
+	}
+
+	/**
+	 * Put a tape's corners into the model, in the order {@link #orderCorners} puts
+	 * the image's in.
+	 *
+	 * @param tilt degrees its top leans to the right
+	 */
+	private void addTape(float[] corners, int first, double offset, double tilt) {
+		double tiltRadians = Math.toRadians(tilt);
+		double halfWidth = SyntheticScene.TAPE_WIDTH / 2.0;
+		double halfLength = SyntheticScene.TAPE_LENGTH / 2.0;
+		double[] local = { -halfWidth, halfLength, halfWidth, halfLength, halfWidth, -halfLength, -halfWidth,
+				-halfLength };
+		for (int corner = 0; corner < 4; ++corner) {
+			double a = local[corner * 2];
+			double b = local[corner * 2 + 1];
+			ordered[corner * 2] = a * Math.cos(tiltRadians) + b * Math.sin(tiltRadians) + offset;
+			ordered[corner * 2 + 1] = -(-a * Math.sin(tiltRadians) + b * Math.cos(tiltRadians));
+		}
+		orderCorners(ordered);
+		for (int corner = 0; corner < 4; ++corner) {
+			corners[(first + corner) * 3] = (float) ordered[corner * 2];
+			corners[(first + corner) * 3 + 1] = (float) ordered[corner * 2 + 1];
+			corners[(first + corner) * 3 + 2] = 0.0f;
+		}
+	}
+
+	/**
+	 * Put a tape's four x,y corners in order: the top two left to right, then the
+	 * bottom two left to right, with y down. A rotated rectangle's corners come in
+	 * an order that depends on its angle, so this matches them to the model's.
+	 */
+	static void orderCorners(double[] xy) {
+		/* Insertion sort by y. */
+		for (int i = 1; i < 4; ++i) {
+			double x = xy[i * 2];
+			double y = xy[i * 2 + 1];
+			int j = i - 1;
+			while (j >= 0 && xy[j * 2 + 1] > y) {
+				xy[(j + 1) * 2] = xy[j * 2];
+				xy[(j + 1) * 2 + 1] = xy[j * 2 + 1];
+				--j;
+			}
+			xy[(j + 1) * 2] = x;
+			xy[(j + 1) * 2 + 1] = y;
+		}
+		for (int pair = 0; pair < 4; pair += 2) {
+			if (xy[pair * 2] > xy[(pair + 1) * 2]) {
+				double x = xy[pair * 2];
+				double y = xy[pair * 2 + 1];
+				xy[pair * 2] = xy[(pair + 1) * 2];
+				xy[pair * 2 + 1] = xy[(pair + 1) * 2 + 1];
+				xy[(pair + 1) * 2] = x;
+				xy[(pair + 1) * 2 + 1] = y;
+			}
+		}
+	}
+
+	/**
+	 * Solve for a pair's pose.
+	 *
+	 * @param corners the corners of the left tape then the right tape, as x,y pixel
+	 *                pairs in any order within each tape
+	 * @param lens    the lens for the frame the corners were found in
+	 * @return true if the pose was solved; otherwise it's NaN, and the next solve
+	 *         starts from scratch.
+	 */
+	public boolean solve(double[] corners, LensModel lens) {
+		for (int tape = 0; tape < 2; ++tape) {
+			System.arraycopy(corners, tape * 8, ordered, 0, 8);
+			for (double value : ordered) {
+				if (Double.isNaN(value)) {
+					reset();
+					return false;
+				}
+			}
+			orderCorners(ordered);
+			for (int corner = 0; corner < 4; ++corner) {
+				lens.undistort(ordered[corner * 2], ordered[corner * 2 + 1], normalized);
+				imagePoints[(tape * 4 + corner) * 2] = (float) normalized[0];
+				imagePoints[(tape * 4 + corner) * 2 + 1] = (float) normalized[1];
+			}
+		}
+		image.put(0, 0, imagePoints);
+
+		warmStarted = solved;
+		boolean good = solveOnce(warmStarted, lens);
+		if (warmStarted && (!good || reprojectionError > MAX_WARM_ERROR)) {
+			warmStarted = false;
+			good = solveOnce(false, lens);
+		}
+		if (warmStarted) {
+			++warmSolves;
+		} else {
+			++coldSolves;
+		}
+		if (!good) {
+			reset();
+			return false;
+		}
+		solved = true;
+
+		lateral = translation[0];
+		vertical = -translation[1];
+		distance = translation[2];
+		/* Where the pair's x axis points in the camera's frame is the first column of the rotation. */
+		Calib3d.Rodrigues(rvec, rotation);
+		rotation.get(0, 0, rotationValues);
+		yaw = Math.toDegrees(Math.atan2(rotationValues[6], rotationValues[0]));
+		return true;
+	}
+
+	/**
+	 * Run solvePnP once and measure how well its pose reprojects.
+	 *
+	 * @return false if it failed or put the pair behind the camera.
+	 */
+	private boolean solveOnce(boolean useGuess, LensModel lens) {
+		if (!Calib3d.solvePnP(model, image, cameraMatrix, noDistortion, rvec, tvec, useGuess,
+				Calib3d.SOLVEPNP_ITERATIVE)) {
+			return false;
+		}
+		tvec.get(0, 0, translation);
+		if (!(translation[2] > 0.0)) {
+			return false;
+		}
+		Calib3d.projectPoints(model, rvec, tvec, cameraMatrix, noDistortion, reprojected);
+		reprojected.get(0, 0, reprojectedPoints);
+		double sum = 0.0;
+		for (int index = 0; index < CORNERS * 2; ++index) {
+			double difference = reprojectedPoints[index] - imagePoints[index];
+			sum += difference * difference;
+		}
+		reprojectionError = Math.sqrt(sum / CORNERS) * lens.getFocalLength();
+		return true;
+	}
+
+	/**
+	 * Forget the last pose, so the next solve starts from scratch.
+	 */
+	public void reset() {
+		solved = false;
+		warmStarted = false;
+		lateral = Double.NaN;
+		vertical = Double.NaN;
+		distance = Double.NaN;
+		yaw = Double.NaN;
+		reprojectionError = Double.NaN;
+	}
+
+	public double getLateral() {
+		return lateral;
+	}
+
+	public double getVertical() {
+		return vertical;
+	}
+
+	public double getDistance() {
+		return distance;
+	}
+
+	public double getYaw() {
+		return yaw;
+	}
+
+	/**
+	 * @return the root mean square distance in pixels between the corners and the
+	 *         solved pose's projection of the model's, on the undistorted image.
+	 */
+	public double getReprojectionError() {
+		return reprojectionError;
+	}
+
+	/**
+	 * @return true if the last solve started from the frame before's pose.
+	 */
+	public boolean wasWarmStarted() {
+		return warmStarted;
+	}
+
+	public long getWarmSolves() {
+		return warmSolves;
+	}
+
+	public long getColdSolves() {
+		return coldSolves;
+	}
+}
@@ -0,0 +1,129 @@
+package visionhelper;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events for each stage of the vision pipeline.
+ *
+ * <p>Each event is timed with begin() and commit() around the work it describes.
+ * When no recording is running, or the event is turned off in the recording's
+ * settings, begin() and commit() do nothing and the event object is usually
+ * optimized away. vision.jfc turns all of them on for a continuous recording
+ * that can be dumped after a match.
+ */
+public final class VisionEvents {
+
+	private VisionEvents() {
+	}
+
+	@Name("vision.Frame")
+	@Label("Vision Frame")
+	@Category("Vision")
+	@Description("One camera frame through every pipeline")
+	public static class Frame extends Event {
+		@Label("Frame Width")
+		public int frameWidth;
+
+		@Label("Frame Height")
+		public int frameHeight;
+
+		@Label("Pipelines")
+		public int pipelineCount;
+
+		@Label("Skipped")
+		@Description("The scene hadn't changed, so the last targets were kept")
+		public boolean skipped;
+	}
+
+	@Name("vision.FilterStep")
+	@Label("Vision Filter Step")
+	@Category("Vision")
+	@Description("One step of a contour pipeline")
+	public static class FilterStep extends Event {
+		@Label("Step")
+		public String step;
+
+		@Label("Input Contours")
+		public int inputCount;
+
+		@Label("Output Contours")
+		public int outputCount;
+
+		@Label("Frame Width")
+		public int frameWidth;
+
+		@Label("Frame Height")
+		public int frameHeight;
+
+		@Label("Shared")
+		@Description("The output was reused from another pipeline on the same frame")
+		public boolean shared;
+	}
+
+	@Name("vision.TargetSearch")
+	@Label("Vision Target Search")
+	@Category("Vision")
+	@Description("VisionTargetFinder.getVisionTargetLocation, including its contour pipeline")
+	public static class TargetSearch extends Event {
+		@Label("Contours")
+		public int contourCount;
+
+		@Label("Candidates")
+		@Description("Contours shaped and tilted like a vision target")
+		public int candidateCount;
+
+		@Label("Pairs")
+		public int pairCount;
+
+		@Label("Untracked Pairs")
+		@Description("Pairs past the tracker's slots, left out as the smallest")
+		public int untrackedPairs;
+
+		@Label("Frame Width")
+		public int frameWidth;
+
+		@Label("Frame Height")
+		public int frameHeight;
+
+		@Label("Found")
+		public boolean found;
+
+		@Label("Partial")
+		@Description("The deadline passed before every contour was checked")
+		public boolean partial;
+	}
+
+	@Name("vision.Annotate")
+	@Label("Vision Annotate")
+	@Category("Vision")
+	public static class Annotate extends Event {
+		@Label("Contours")
+		public int contourCount;
+
+		@Label("Pairs")
+		public int pairCount;
+	}
+
+	@Name("vision.Publish")
+	@Label("Vision Publish")
+	@Category("Vision")
+	@Description("Publishing one pipeline's target to NetworkTables")
+	public static class Publish extends Event {
+		@Label("Pipeline")
+		public String pipeline;
+
+		@Label("Valid")
+		public boolean valid;
+
+		@Label("Heading")
+		public double heading;
+
+		@Label("Age")
+		@Description("Milliseconds from when the frame was captured to when its target was published")
+		public long age;
+	}
+}
@@ -1,6 +1,7 @@
 package visionhelper;
 
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Point;
 import org.opencv.core.MatOfPoint;
 import org.opencv.imgproc.Imgproc;
@@ -10,6 +11,9 @@ import org.opencv.core.RotatedRect;
 
 public class contourHelper {
 
+	/* Reused for every rotated rectangle instead of a new Point[] and MatOfPoint2f. */
+	private final MatOfPoint2f points2f = new MatOfPoint2f();
+
 	public contourHelper() {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 
@@ -31,7 +35,8 @@ public class contourHelper {
 
 	public RotatedRect getRotatedRectangle(MatOfPoint contour) {
 
-		return Imgproc.minAreaRect(new MatOfPoint2f(contour.toArray()));
+		contour.convertTo(points2f, CvType.CV_32F);
+		return Imgproc.minAreaRect(points2f);
 	}
 
 	public double getArea(MatOfPoint contour) {
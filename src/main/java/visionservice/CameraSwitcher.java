@@ -0,0 +1,179 @@
+package visionservice;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opencv.core.Mat;
+
+import edu.wpi.cscore.CvSink;
+import edu.wpi.cscore.MjpegServer;
+import edu.wpi.cscore.VideoSource;
+
+/**
+ * Switches a switched camera's server between the cameras, and measures how long
+ * each switch takes to show a frame.
+ *
+ * <p>Every camera is started with the kKeepOpen connection strategy, so it keeps
+ * streaming while no sink is watching it and a switch only waits for the camera's
+ * next frame. Cameras are looked up by index or name in tables built once, so the
+ * NetworkTables listener does no searching.
+ *
+ * <p>After each switch a probe sink waits for the new camera's next frame on its
+ * own thread; the time from the switch to that frame is the switch's latency.
+ * The probe is only enabled while it's waiting, so it doesn't decode frames the
+ * rest of the time.
+ */
+public class CameraSwitcher {
+
+	/* Longest a probe waits for a frame, in seconds, before the switch counts as timed out. */
+	static final double PROBE_TIMEOUT = 1.0;
+
+	private final String name;
+	private final MjpegServer server;
+	private final VideoSource[] sourcesByIndex;
+	private final Map<String, VideoSource> sourcesByName = new HashMap<>();
+	private VideoSource current;
+
+	private final CvSink probe;
+	private final Mat probeFrame = new Mat();
+	/* The switch the probe should measure, and when it was made. */
+	private boolean pending = false;
+	private VideoSource pendingSource;
+	private long pendingSince;
+
+	private long switches = 0;
+	private long timeouts = 0;
+	private double lastLatency = Double.NaN;
+	private double maxLatency = Double.NaN;
+
+	/**
+	 * @param name    the switched camera's name
+	 * @param server  the switched camera's server
+	 * @param names   each camera's name, in the same order as sources
+	 * @param sources the cameras, in the order they're selected by index
+	 */
+	public CameraSwitcher(String name, MjpegServer server, List<String> names, List<VideoSource> sources) {
+		this.name = name;
+		this.server = server;
+		sourcesByIndex = sources.toArray(new VideoSource[0]);
+		for (int index = 0; index < sourcesByIndex.length; ++index) {
+			/* The first camera of a name wins, as it did when they were searched in order. */
+			sourcesByName.putIfAbsent(names.get(index), sourcesByIndex[index]);
+		}
+
+		probe = new CvSink("switch probe " + name);
+		probe.setEnabled(false);
+		Thread thread = new Thread(this::measureSwitches, "Camera switch " + name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Show the camera at an index.
+	 *
+	 * @return false if there's no camera there.
+	 */
+	public boolean select(int index) {
+		return index >= 0 && index < sourcesByIndex.length && select(sourcesByIndex[index]);
+	}
+
+	/**
+	 * Show the camera with a name.
+	 *
+	 * @return false if there's no camera with that name.
+	 */
+	public boolean select(String cameraName) {
+		VideoSource source = sourcesByName.get(cameraName);
+		return source != null && select(source);
+	}
+
+	private synchronized boolean select(VideoSource source) {
+		if (source == current) {
+			return true;
+		}
+		pendingSince = System.nanoTime();
+		server.setSource(source);
+		current = source;
+		++switches;
+		pending = true;
+		pendingSource = source;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Wait for each switch's first frame, for as long as the process runs.
+	 */
+	private void measureSwitches() {
+		while (true) {
+			VideoSource source;
+			long since;
+			long switchNumber;
+			synchronized (this) {
+				while (!pending) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				source = pendingSource;
+				since = pendingSince;
+				switchNumber = switches;
+			}
+
+			probe.setSource(source);
+			probe.setEnabled(true);
+			long frameTime = probe.grabFrame(probeFrame, PROBE_TIMEOUT);
+			long latency = System.nanoTime() - since;
+			probe.setEnabled(false);
+
+			synchronized (this) {
+				/* A newer switch replaces this one; measure that instead. */
+				if (switches != switchNumber) {
+					continue;
+				}
+				pending = false;
+				pendingSource = null;
+				if (frameTime == 0) {
+					++timeouts;
+					System.out.println(String.format("Switched camera '%s' showed no frame within %.1f s of switching: %s",
+							name, PROBE_TIMEOUT, probe.getError()));
+					continue;
+				}
+				lastLatency = latency / 1.0e6;
+				maxLatency = Double.isNaN(maxLatency) ? lastLatency : Math.max(maxLatency, lastLatency);
+			}
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized long getSwitches() {
+		return switches;
+	}
+
+	/**
+	 * @return switches that showed no frame within PROBE_TIMEOUT seconds.
+	 */
+	public synchronized long getTimeouts() {
+		return timeouts;
+	}
+
+	/**
+	 * @return milliseconds from the last measured switch to its first frame, or NaN.
+	 */
+	public synchronized double getLastLatency() {
+		return lastLatency;
+	}
+
+	/**
+	 * @return the most milliseconds any switch took to its first frame, or NaN.
+	 */
+	public synchronized double getMaxLatency() {
+		return maxLatency;
+	}
+}
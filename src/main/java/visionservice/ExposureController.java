@@ -0,0 +1,216 @@
+package visionservice;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+/**
+ * Adjusts the vision camera's exposure and brightness to keep the threshold mask
+ * clean: enough lit pixels for the target, but not the hundreds of blobs a
+ * bright arena's lights and reflections make at an exposure tuned in the shop.
+ *
+ * <p>Each frame's lit fraction (mask pixels set over all pixels) and contour
+ * count are smoothed. When either is over its band the camera is darkened one
+ * step, exposure first and then brightness once exposure is at its least. When
+ * the mask is nearly empty and there are well under the most contours allowed,
+ * it's brightened again, brightness back to where it started first and then
+ * exposure. Between the two there's a dead band, so it settles instead of
+ * hunting. Steps are multiplicative, at most one every {@link Band#stepInterval}
+ * milliseconds, and the frames captured while a change is taking effect are
+ * ignored.
+ *
+ * <p>Only {@link Camera} is needed from the camera, so the controller can be run
+ * against a simulated one.
+ */
+public class ExposureController {
+
+	/**
+	 * What the controller sets.
+	 */
+	public interface Camera {
+		/**
+		 * @param percent manual exposure, 0-100
+		 */
+		void setExposure(int percent);
+
+		/**
+		 * @param percent brightness, 0-100
+		 */
+		void setBrightness(int percent);
+	}
+
+	/*
+	 * What the controller aims for, and how far and fast it may go. The defaults
+	 * suit a 320x240 frame of the 2019 targets lit by a green ring light.
+	 */
+	public static class Band {
+		/* Least and most fraction of the mask that should be lit. */
+		public double minLitFraction = 0.001;
+		public double maxLitFraction = 0.02;
+		/* Most contours a frame should have; brightening waits until there are half as many. */
+		public int maxContours = 12;
+		/* Range of exposure, in percent. */
+		public int minExposure = 1;
+		public int maxExposure = 60;
+		/* Least brightness, in percent. */
+		public int minBrightness = 10;
+		/* Least milliseconds between steps. */
+		public long stepInterval = 300;
+		/* Milliseconds after a step before frames show it. */
+		public long settleTime = 100;
+		/* Weight of each new frame in the smoothed measurements. */
+		public double smoothing = 0.25;
+	}
+
+	static final double DARKEN_STEP = 0.8;
+	static final double BRIGHTEN_STEP = 1.25;
+	static final int BRIGHTNESS_STEP = 5;
+
+	private final Camera camera;
+	private final Band band;
+	private final int baseBrightness;
+	private int exposure;
+	private int brightness;
+
+	private boolean measured = false;
+	private double litFraction;
+	private double contourCount;
+	private long lastStep;
+	private long settleUntil;
+	private long darkenSteps = 0;
+	private long brightenSteps = 0;
+
+	/**
+	 * Set the camera to the starting exposure and brightness.
+	 *
+	 * @param exposure   starting exposure in percent
+	 * @param brightness starting brightness in percent, and the most it's raised back to
+	 */
+	public ExposureController(Camera camera, Band band, int exposure, int brightness) {
+		this.camera = camera;
+		this.band = band;
+		this.exposure = Math.max(band.minExposure, Math.min(band.maxExposure, exposure));
+		this.brightness = brightness;
+		baseBrightness = brightness;
+		camera.setExposure(this.exposure);
+		camera.setBrightness(this.brightness);
+	}
+
+	/**
+	 * @return the fraction of a threshold mask's pixels that are set.
+	 */
+	public static double litFraction(Mat mask) {
+		double pixels = mask.total();
+		return pixels > 0 ? Core.countNonZero(mask) / pixels : 0.0;
+	}
+
+	/**
+	 * Take one frame's measurements, and step the camera if it's time to.
+	 *
+	 * @param frameLitFraction the fraction of the frame's threshold mask that's lit
+	 * @param frameContours    how many contours the frame's mask has, before any are filtered
+	 * @param now              System.nanoTime(), or a simulated clock in nanoseconds
+	 * @return true if the camera was stepped.
+	 */
+	public boolean update(double frameLitFraction, int frameContours, long now) {
+		if (now - settleUntil < 0) {
+			return false;
+		}
+		if (!measured) {
+			litFraction = frameLitFraction;
+			contourCount = frameContours;
+			measured = true;
+		} else {
+			litFraction += band.smoothing * (frameLitFraction - litFraction);
+			contourCount += band.smoothing * (frameContours - contourCount);
+		}
+		if (now - lastStep < band.stepInterval * 1000000L) {
+			return false;
+		}
+
+		boolean stepped;
+		if (litFraction > band.maxLitFraction || contourCount > band.maxContours) {
+			stepped = darken();
+			if (stepped) {
+				++darkenSteps;
+			}
+		} else if (litFraction < band.minLitFraction && contourCount < band.maxContours / 2.0) {
+			stepped = brighten();
+			if (stepped) {
+				++brightenSteps;
+			}
+		} else {
+			return false;
+		}
+		if (stepped) {
+			lastStep = now;
+			settleUntil = now + band.settleTime * 1000000L;
+			/* Start over with the frames that show the new settings. */
+			measured = false;
+		}
+		return stepped;
+	}
+
+	private boolean darken() {
+		if (exposure > band.minExposure) {
+			exposure = Math.max(band.minExposure, Math.min(exposure - 1, (int) Math.round(exposure * DARKEN_STEP)));
+			camera.setExposure(exposure);
+			return true;
+		}
+		if (brightness > band.minBrightness) {
+			brightness = Math.max(band.minBrightness, brightness - BRIGHTNESS_STEP);
+			camera.setBrightness(brightness);
+			return true;
+		}
+		return false;
+	}
+
+	private boolean brighten() {
+		if (brightness < baseBrightness) {
+			brightness = Math.min(baseBrightness, brightness + BRIGHTNESS_STEP);
+			camera.setBrightness(brightness);
+			return true;
+		}
+		if (exposure < band.maxExposure) {
+			exposure = Math.min(band.maxExposure, Math.max(exposure + 1, (int) Math.round(exposure * BRIGHTEN_STEP)));
+			camera.setExposure(exposure);
+			return true;
+		}
+		return false;
+	}
+
+	public int getExposure() {
+		return exposure;
+	}
+
+	public int getBrightness() {
+		return brightness;
+	}
+
+	/**
+	 * @return the smoothed lit fraction.
+	 */
+	public double getLitFraction() {
+		return litFraction;
+	}
+
+	/**
+	 * @return the smoothed contour count.
+	 */
+	public double getContourCount() {
+		return contourCount;
+	}
+
+	public long getDarkenSteps() {
+		return darkenSteps;
+	}
+
+	public long getBrightenSteps() {
+		return brightenSteps;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("exposure %d%% brightness %d%%, %.2f%% lit, %.1f contours", exposure, brightness,
+				litFraction * 100.0, contourCount);
+	}
+}
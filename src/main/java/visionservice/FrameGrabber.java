@@ -0,0 +1,19 @@
+package visionservice;
+
+import org.opencv.core.Mat;
+
+/**
+ * Anything frames can be grabbed from, such as a cscore CvSink or a
+ * {@link YuyvCamera}.
+ */
+@FunctionalInterface
+public interface FrameGrabber {
+
+	/**
+	 * Wait for the next frame.
+	 *
+	 * @param frame receives the frame.
+	 * @return the frame time, or 0 on error.
+	 */
+	long grabFrame(Mat frame);
+}
@@ -0,0 +1,170 @@
+package visionservice;
+
+import org.opencv.core.Mat;
+
+/**
+ * Grabs frames on its own thread and keeps only the newest one for processing.
+ *
+ * <p>Three buffers rotate between the capture thread (writing), the newest
+ * complete frame (ready) and the processing thread (reading), so neither thread
+ * waits for the other to copy a frame. When the processing thread is slower than
+ * the camera, a ready frame that was never taken is overwritten by the next one
+ * and counted, and the processor always works on the freshest image.
+ *
+ * <p>A grabber that keeps failing, like a camera that was unplugged, fails
+ * without waiting, so after a few errors in a row the capture thread backs off,
+ * doubling its wait up to {@value #MAX_BACKOFF} ms, instead of spinning a core.
+ */
+public class LatestFrameCapture {
+
+	/* Errors in a row before the capture thread starts waiting between grabs. */
+	static final int ERRORS_BEFORE_BACKOFF = 3;
+	/* Longest wait between grabs, in milliseconds. */
+	static final long MAX_BACKOFF = 200;
+
+	private final FrameGrabber grabber;
+	private final Mat[] buffers = { new Mat(), new Mat(), new Mat() };
+	private final Object lock = new Object();
+
+	private int writing = 0;
+	private int ready = 1;
+	private int reading = 2;
+	private boolean readyIsNew = false;
+	private long readyTime;
+	private long readingTime;
+
+	private long capturedFrames = 0;
+	private long overwrittenFrames = 0;
+	private long grabErrors = 0;
+
+	private Thread thread;
+
+	public LatestFrameCapture(FrameGrabber grabber) {
+		this.grabber = grabber;
+	}
+
+	/**
+	 * Start the capture thread.
+	 */
+	public void start(String name) {
+		start(name, null);
+	}
+
+	/**
+	 * Start the capture thread.
+	 *
+	 * @param onThreadStart run first on the capture thread, or null.
+	 */
+	public void start(String name, Runnable onThreadStart) {
+		thread = new Thread(() -> {
+			if (onThreadStart != null) {
+				onThreadStart.run();
+			}
+			captureFrames();
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stop the capture thread. A grab in progress finishes first.
+	 */
+	public void stop() {
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private void captureFrames() {
+		int errorsInARow = 0;
+		while (!Thread.currentThread().isInterrupted()) {
+			if (grabber.grabFrame(buffers[writing]) == 0) {
+				synchronized (lock) {
+					++grabErrors;
+				}
+				if (++errorsInARow >= ERRORS_BEFORE_BACKOFF) {
+					try {
+						Thread.sleep(Math.min(MAX_BACKOFF, 1L << Math.min(errorsInARow - ERRORS_BEFORE_BACKOFF, 8)));
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				continue;
+			}
+			if (errorsInARow >= ERRORS_BEFORE_BACKOFF) {
+				System.out.println(String.format("%s got a frame again after %d failed grabs",
+						Thread.currentThread().getName(), errorsInARow));
+			}
+			errorsInARow = 0;
+			long captureTime = System.currentTimeMillis();
+
+			synchronized (lock) {
+				int newest = writing;
+				writing = ready;
+				ready = newest;
+				if (readyIsNew) {
+					++overwrittenFrames;
+				}
+				readyIsNew = true;
+				readyTime = captureTime;
+				++capturedFrames;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Wait for a frame newer than the last one taken.
+	 *
+	 * @return the frame. It belongs to the caller until the next takeFrame().
+	 */
+	public Mat takeFrame() throws InterruptedException {
+		synchronized (lock) {
+			while (!readyIsNew) {
+				lock.wait();
+			}
+			int newest = ready;
+			ready = reading;
+			reading = newest;
+			readyIsNew = false;
+			readingTime = readyTime;
+			return buffers[reading];
+		}
+	}
+
+	/**
+	 * @return the time, in milliseconds since the epoch, the last taken frame
+	 *         finished arriving from the camera.
+	 */
+	public long getFrameTime() {
+		synchronized (lock) {
+			return readingTime;
+		}
+	}
+
+	public long getCapturedFrames() {
+		synchronized (lock) {
+			return capturedFrames;
+		}
+	}
+
+	/**
+	 * @return how many frames were replaced by a newer one before they could be
+	 *         processed.
+	 */
+	public long getOverwrittenFrames() {
+		synchronized (lock) {
+			return overwrittenFrames;
+		}
+	}
+
+	public long getGrabErrors() {
+		synchronized (lock) {
+			return grabErrors;
+		}
+	}
+
+	public Thread getThread() {
+		return thread;
+	}
+}
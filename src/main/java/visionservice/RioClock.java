@@ -0,0 +1,74 @@
+package visionservice;
+
+/**
+ * Estimates how far the Pi's clock is from the RoboRIO's, so a time taken on the
+ * Pi, like a frame's capture time, can be compared with the RoboRIO's own.
+ *
+ * <p>Setting the Pi's clock with date only gets it within half a second, which is
+ * more than a frame's whole latency. Instead, each RoboRIO timestamp received is
+ * paired with the Pi time it arrived at. Their difference is the offset between
+ * the clocks plus however long the value took to arrive, and that delay is never
+ * negative, so the smallest difference of the last {@value #WINDOW} samples is
+ * the closest to the real offset. A sample far from the estimate means one of the
+ * clocks was stepped, so the window starts over from it.
+ */
+public class RioClock {
+
+	static final int WINDOW = 16;
+
+	/* Milliseconds a sample can be from the estimate before the clocks are taken to have been stepped. */
+	static final long MAX_JUMP = 250;
+
+	private final long[] differences = new long[WINDOW];
+	private int next = 0;
+	private int count = 0;
+	/* Pi time less RoboRIO time, in milliseconds. */
+	private long offset = 0;
+
+	/**
+	 * Add a sample.
+	 *
+	 * @param rioTime the RoboRIO's time when it sent the value, milliseconds since
+	 *                the epoch
+	 * @param piTime  the Pi's time when the value arrived, milliseconds since the
+	 *                epoch
+	 */
+	public synchronized void addSample(long rioTime, long piTime) {
+		long difference = piTime - rioTime;
+		if (count > 0 && Math.abs(difference - offset) > MAX_JUMP) {
+			count = 0;
+			next = 0;
+		}
+		differences[next] = difference;
+		next = (next + 1) % WINDOW;
+		if (count < WINDOW) {
+			++count;
+		}
+		long smallest = Long.MAX_VALUE;
+		for (int index = 0; index < count; ++index) {
+			smallest = Math.min(smallest, differences[index]);
+		}
+		offset = smallest;
+	}
+
+	/**
+	 * @param piTime milliseconds since the epoch on the Pi's clock
+	 * @return the same moment on the RoboRIO's clock, or piTime if nothing has been
+	 *         heard from the RoboRIO yet.
+	 */
+	public synchronized long toRioTime(long piTime) {
+		return count > 0 ? piTime - offset : piTime;
+	}
+
+	/**
+	 * @return milliseconds the Pi's clock is ahead of the RoboRIO's, or 0 with no
+	 *         samples.
+	 */
+	public synchronized long getOffset() {
+		return count > 0 ? offset : 0;
+	}
+
+	public synchronized boolean hasSamples() {
+		return count > 0;
+	}
+}
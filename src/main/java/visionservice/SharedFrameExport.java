@@ -0,0 +1,196 @@
+package visionservice;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.opencv.core.Mat;
+
+import visiontargetfinder.VisionTargetFinder;
+
+/**
+ * Shares each processed frame and its targets with other processes on the Pi
+ * through a ring of slots in a memory mapped file, usually under /dev/shm.
+ *
+ * <p>A reader maps the same file and copies what it wants straight out of memory,
+ * with no JPEG encoding, no sockets and no locks. The writer never waits for
+ * readers; a reader that's too slow just finds its slot overwritten and tries the
+ * newest one again.
+ *
+ * <p>Everything is little endian. The file starts with a 64 byte header:
+ *
+ * <pre>
+ * offset  size  field
+ *  0      4     magic, "VIS1"
+ *  4      4     version, 1
+ *  8      4     slot count
+ * 12      4     slot size in bytes, a multiple of 64
+ * 16      4     slot header size in bytes (256); the frame follows it
+ * 20      4     largest frame in bytes a slot holds
+ * 24      4     most targets a slot holds (4)
+ * 32      8     newest complete frame number, 0 before the first; it's in slot
+ *               (frame number - 1) % slot count
+ * 40      8     writer's process id
+ * </pre>
+ *
+ * <p>Slot n starts at 64 + n * slot size:
+ *
+ * <pre>
+ * offset  size  field
+ *  0      8     sequence: odd while the slot is being written, even when done
+ *  8      8     frame number
+ * 16      8     capture time, milliseconds since the epoch
+ * 24      4     frame width
+ * 28      4     frame height
+ * 32      4     OpenCV type, e.g. CV_8UC3 (16) for BGR or CV_8UC2 (8) for YUYV
+ * 36      4     bytes per row
+ * 40      4     frame bytes, 0 if the frame was too big for the slot
+ * 44      4     target count, one per pipeline
+ * 64      48    each target: normalized center, normalized distance, left x,
+ *               left y, right x, right y (doubles, NaN when there's no target)
+ * 256           the frame's pixels, row after row
+ * </pre>
+ *
+ * <p>To read the newest frame: read the frame number from the header, and the
+ * sequence from its slot. If the sequence is odd, try again. Copy what's needed,
+ * then read the sequence again; if it changed, the slot was overwritten while
+ * copying, so start over.
+ */
+public class SharedFrameExport {
+
+	public static final int MAGIC = 0x31534956;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 64;
+	public static final int SLOT_HEADER_SIZE = 256;
+	public static final int MAX_TARGETS = 4;
+	public static final int TARGET_SIZE = 48;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+			ByteOrder.LITTLE_ENDIAN);
+
+	private final String path;
+	private final MappedByteBuffer buffer;
+	private final int slotCount;
+	private final int slotSize;
+	private final int maxFrameBytes;
+	/* Mats over each slot's pixels, so a frame is copied in with one native copy. */
+	private final Mat[] slotFrames;
+	private long frameNumber = 0;
+
+	/**
+	 * Create, or take over, the shared file.
+	 *
+	 * @param path          the file, e.g. /dev/shm/vision
+	 * @param slotCount     frames kept
+	 * @param maxFrameBytes the largest frame a slot holds
+	 */
+	public SharedFrameExport(String path, int slotCount, int maxFrameBytes) throws IOException {
+		this.path = path;
+		this.slotCount = slotCount;
+		this.maxFrameBytes = maxFrameBytes;
+		slotSize = (SLOT_HEADER_SIZE + maxFrameBytes + 63) / 64 * 64;
+		slotFrames = new Mat[slotCount];
+
+		long size = HEADER_SIZE + (long) slotCount * slotSize;
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, VERSION);
+		buffer.putInt(8, slotCount);
+		buffer.putInt(12, slotSize);
+		buffer.putInt(16, SLOT_HEADER_SIZE);
+		buffer.putInt(20, maxFrameBytes);
+		buffer.putInt(24, MAX_TARGETS);
+		buffer.putLong(40, ProcessHandle.current().pid());
+		LONGS.setRelease(buffer, 32, 0L);
+	}
+
+	/**
+	 * Write a frame and its targets to the next slot. Called from one thread.
+	 *
+	 * @param frame       the processed frame
+	 * @param captureTime when it was captured, milliseconds since the epoch
+	 * @param targets     one per pipeline; only the first MAX_TARGETS are kept
+	 */
+	public void write(Mat frame, long captureTime, VisionTargetFinder.TargetInformation[] targets) {
+		long number = frameNumber + 1;
+		int slot = (int) ((number - 1) % slotCount);
+		int base = HEADER_SIZE + slot * slotSize;
+
+		/* Readers see an odd sequence, and leave the slot alone, until it's complete. */
+		long sequence = (long) LONGS.getOpaque(buffer, base);
+		LONGS.setOpaque(buffer, base, sequence + 1);
+		VarHandle.storeStoreFence();
+
+		long frameBytes = frame.total() * frame.elemSize();
+		boolean fits = frame.isContinuous() && frameBytes <= maxFrameBytes;
+
+		buffer.putLong(base + 8, number);
+		buffer.putLong(base + 16, captureTime);
+		buffer.putInt(base + 24, frame.cols());
+		buffer.putInt(base + 28, frame.rows());
+		buffer.putInt(base + 32, frame.type());
+		buffer.putInt(base + 36, (int) (frame.cols() * frame.elemSize()));
+		buffer.putInt(base + 40, fits ? (int) frameBytes : 0);
+
+		int targetCount = Math.min(targets.length, MAX_TARGETS);
+		buffer.putInt(base + 44, targetCount);
+		for (int index = 0; index < targetCount; ++index) {
+			VisionTargetFinder.TargetInformation target = targets[index];
+			int offset = base + 64 + index * TARGET_SIZE;
+			buffer.putDouble(offset, target != null ? target.normalizedCenter : Double.NaN);
+			buffer.putDouble(offset + 8, target != null ? target.distanceToTargetNormalized : Double.NaN);
+			buffer.putDouble(offset + 16, target != null ? target.leftX : Double.NaN);
+			buffer.putDouble(offset + 24, target != null ? target.leftY : Double.NaN);
+			buffer.putDouble(offset + 32, target != null ? target.rightX : Double.NaN);
+			buffer.putDouble(offset + 40, target != null ? target.rightY : Double.NaN);
+		}
+
+		if (fits) {
+			frame.copyTo(slotFrame(slot, base, frame));
+		}
+
+		LONGS.setRelease(buffer, base, sequence + 2);
+		LONGS.setRelease(buffer, 32, number);
+		frameNumber = number;
+	}
+
+	/**
+	 * @return a Mat over the slot's pixels shaped like the frame. Made again only
+	 *         when the frame's size or type changes.
+	 */
+	private Mat slotFrame(int slot, int base, Mat frame) {
+		Mat slotFrame = slotFrames[slot];
+		if (slotFrame == null || slotFrame.rows() != frame.rows() || slotFrame.cols() != frame.cols()
+				|| slotFrame.type() != frame.type()) {
+			if (slotFrame != null) {
+				slotFrame.release();
+			}
+			/* Mat uses the buffer's address, so slice it to start at the pixels. */
+			ByteBuffer pixels = buffer.duplicate();
+			pixels.position(base + SLOT_HEADER_SIZE);
+			pixels.limit(base + SLOT_HEADER_SIZE + maxFrameBytes);
+			slotFrame = new Mat(frame.rows(), frame.cols(), frame.type(), pixels.slice());
+			slotFrames[slot] = slotFrame;
+		}
+		return slotFrame;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getFramesWritten() {
+		return frameNumber;
+	}
+}
@@ -0,0 +1,103 @@
+package visionservice;
+
+import java.util.Random;
+
+/**
+ * Stands in for the vision camera when running an {@link ExposureController}
+ * without one: a rough model of how the threshold mask's lit fraction and
+ * contour count respond to exposure, brightness and the venue's lighting.
+ *
+ * <p>The lit target tapes reach the threshold at a low exposure and stay about
+ * the same size above it. The rest of the scene (lights, reflections off the
+ * driver station glass and diamond plate) starts crossing the threshold once the
+ * exposure times the lighting gets bright enough, and then breaks up into more
+ * and more blobs. Settings take effect a couple of frames after they're made, as
+ * a real camera's do.
+ */
+public class SimulatedCamera implements ExposureController.Camera {
+
+	/* Frames before a setting shows in the frames. */
+	static final int LATENCY_FRAMES = 2;
+
+	private final Random random;
+	private double lighting;
+	private final double targetFraction;
+
+	private final int[] exposures = new int[LATENCY_FRAMES + 1];
+	private final int[] brightnesses = new int[LATENCY_FRAMES + 1];
+	private int exposure = 50;
+	private int brightness = 50;
+
+	private double litFraction;
+	private int contourCount;
+
+	/**
+	 * @param lighting       how bright the venue is; 1 is a typical shop
+	 * @param targetFraction the fraction of the frame the target's tapes cover
+	 * @param seed           for the frame to frame noise
+	 */
+	public SimulatedCamera(double lighting, double targetFraction, long seed) {
+		this.lighting = lighting;
+		this.targetFraction = targetFraction;
+		random = new Random(seed);
+	}
+
+	@Override
+	public void setExposure(int percent) {
+		exposure = percent;
+	}
+
+	@Override
+	public void setBrightness(int percent) {
+		brightness = percent;
+	}
+
+	/**
+	 * Change the venue's lighting, as when the arena lights come up.
+	 */
+	public void setLighting(double lighting) {
+		this.lighting = lighting;
+	}
+
+	/**
+	 * Capture one frame with the settings made LATENCY_FRAMES frames ago.
+	 */
+	public void nextFrame() {
+		System.arraycopy(exposures, 1, exposures, 0, LATENCY_FRAMES);
+		System.arraycopy(brightnesses, 1, brightnesses, 0, LATENCY_FRAMES);
+		exposures[LATENCY_FRAMES] = exposure;
+		brightnesses[LATENCY_FRAMES] = brightness;
+
+		double signal = exposures[0] / 100.0 * (0.5 + brightnesses[0] / 100.0) * lighting;
+		double target = targetFraction * Math.min(1.0, signal / 0.05);
+		double scene = Math.max(0.0, (signal - 0.2) / 0.8);
+		double junk = 0.3 * Math.min(1.0, scene * scene);
+		double noise = 1.0 + 0.1 * random.nextGaussian();
+
+		litFraction = Math.max(0.0, (target + junk) * noise);
+		contourCount = (target > targetFraction / 4.0 ? 2 : 0)
+				+ (int) Math.round(Math.max(0.0, Math.min(400.0, 800.0 * Math.sqrt(junk)) * noise));
+	}
+
+	public double getLitFraction() {
+		return litFraction;
+	}
+
+	public int getContourCount() {
+		return contourCount;
+	}
+
+	/**
+	 * @return the exposure last set, in percent.
+	 */
+	public int getExposure() {
+		return exposure;
+	}
+
+	/**
+	 * @return the brightness last set, in percent.
+	 */
+	public int getBrightness() {
+		return brightness;
+	}
+}
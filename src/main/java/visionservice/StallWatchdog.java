@@ -0,0 +1,177 @@
+package visionservice;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Notices when a pipeline stops finishing frames and has it rebuilt.
+ *
+ * <p>Each pipeline calls {@link #heartbeat(int)} when it finishes a frame. If any
+ * pipeline hasn't for the stall timeout, whether it's hung in native code or its
+ * thread died, the listener is told right away so it can mark the targets stale,
+ * and is then asked to rebuild. A rebuild that doesn't bring every heartbeat back
+ * within another timeout is tried again. The stall is over when every pipeline
+ * has finished a frame since the rebuild.
+ */
+public class StallWatchdog {
+
+	/**
+	 * Called on the watchdog's thread.
+	 */
+	public interface Listener {
+		/**
+		 * A pipeline stalled. Mark its results stale.
+		 */
+		void stalled(String pipeline, long millisSinceHeartbeat);
+
+		/**
+		 * Replace the capture, pipelines and processing thread. The stalled thread
+		 * can't be stopped if it's hung in native code, so it must be abandoned and
+		 * kept from publishing if it ever comes back.
+		 */
+		void rebuild();
+
+		/**
+		 * Every pipeline is finishing frames again.
+		 *
+		 * @param recoveryMillis time from noticing the stall to now
+		 */
+		void recovered(long recoveryMillis);
+	}
+
+	private final List<String> names;
+	private final long stallTimeout;
+	private final long startupTimeout;
+	private final Listener listener;
+	/* System.nanoTime() of each pipeline's last heartbeat. */
+	private final AtomicLongArray heartbeats;
+
+	private Thread thread;
+
+	private volatile boolean stalled = false;
+	private volatile long stalls = 0;
+	private volatile long rebuilds = 0;
+	private volatile long lastRecoveryMillis = 0;
+	private volatile long maxRecoveryMillis = 0;
+
+	/**
+	 * @param names          the pipelines, in heartbeat index order
+	 * @param stallTimeout   milliseconds without a heartbeat that count as a stall
+	 * @param startupTimeout milliseconds allowed for the first frame after
+	 *                       starting, or after a rebuild, which includes opening
+	 *                       the camera
+	 */
+	public StallWatchdog(List<String> names, long stallTimeout, long startupTimeout, Listener listener) {
+		this.names = names;
+		this.stallTimeout = stallTimeout;
+		this.startupTimeout = startupTimeout;
+		this.listener = listener;
+		heartbeats = new AtomicLongArray(names.size());
+	}
+
+	/**
+	 * Record that a pipeline finished a frame. Safe to call from any thread, and
+	 * allocates nothing.
+	 */
+	public void heartbeat(int pipeline) {
+		heartbeats.set(pipeline, System.nanoTime());
+	}
+
+	/**
+	 * Start watching. The pipelines get the startup timeout for their first frame.
+	 */
+	public void start() {
+		thread = new Thread(this::watch, "Vision watchdog");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public void stop() {
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private void watch() {
+		long checkPeriod = Math.max(1, stallTimeout / 4);
+		/* Heartbeats before this don't count. It moves forward with every rebuild. */
+		long since = System.nanoTime();
+		for (int index = 0; index < heartbeats.length(); ++index) {
+			heartbeats.set(index, since);
+		}
+		long deadline = since + startupTimeout * 1000000L;
+		long stallStart = 0;
+
+		try {
+			for (;;) {
+				Thread.sleep(checkPeriod);
+				long now = System.nanoTime();
+
+				/* Find the pipeline that's been quiet longest. */
+				int oldest = 0;
+				for (int index = 1; index < heartbeats.length(); ++index) {
+					if (heartbeats.get(index) - heartbeats.get(oldest) < 0) {
+						oldest = index;
+					}
+				}
+				long oldestBeat = heartbeats.get(oldest);
+				boolean allBeatSince = oldestBeat - since > 0;
+
+				if (stalled) {
+					if (allBeatSince) {
+						long recovery = (now - stallStart) / 1000000L;
+						lastRecoveryMillis = recovery;
+						maxRecoveryMillis = Math.max(maxRecoveryMillis, recovery);
+						stalled = false;
+						listener.recovered(recovery);
+						deadline = oldestBeat + stallTimeout * 1000000L;
+					} else if (now - deadline > 0) {
+						/* The rebuild didn't take. Try again. */
+						since = System.nanoTime();
+						++rebuilds;
+						listener.rebuild();
+						deadline = System.nanoTime() + startupTimeout * 1000000L;
+					}
+					continue;
+				}
+
+				if (allBeatSince) {
+					deadline = oldestBeat + stallTimeout * 1000000L;
+				}
+				if (now - deadline > 0) {
+					stalled = true;
+					++stalls;
+					stallStart = now;
+					listener.stalled(names.get(oldest), allBeatSince ? (now - oldestBeat) / 1000000L
+							: (now - since) / 1000000L);
+					since = System.nanoTime();
+					++rebuilds;
+					listener.rebuild();
+					deadline = System.nanoTime() + startupTimeout * 1000000L;
+				}
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+	}
+
+	public boolean isStalled() {
+		return stalled;
+	}
+
+	public long getStalls() {
+		return stalls;
+	}
+
+	public long getRebuilds() {
+		return rebuilds;
+	}
+
+	public long getLastRecoveryMillis() {
+		return lastRecoveryMillis;
+	}
+
+	public long getMaxRecoveryMillis() {
+		return maxRecoveryMillis;
+	}
+}
@@ -0,0 +1,343 @@
+package visionservice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.wpi.cscore.MjpegServer;
+import edu.wpi.cscore.VideoMode;
+import edu.wpi.cscore.VideoProperty;
+import edu.wpi.cscore.VideoSource;
+
+/**
+ * Keeps the MJPEG streams' total traffic under a budget by stepping their JPEG
+ * quality, frame rate and resolution down when they send too much, and back up
+ * when there's room.
+ *
+ * <p>cscore doesn't count what its servers send, so the bytes each server's
+ * clients have acknowledged are read from the kernel's TCP statistics with
+ * {@code ss}, once a period. That's what actually crossed the radio, whatever
+ * the camera and the dashboards asked for.
+ *
+ * <p>Each stream sits on a level of {@link #LEVELS}. Level 0 is the server's
+ * settings as they were configured, from frc.json's "stream" properties or
+ * cscore's defaults; nothing is changed until a stream has been measured, and
+ * lower levels are never less strict than what was configured. When the total is over the
+ * budget, the busiest streams step down, one level each, until the expected total
+ * fits; a step is taken to save about 30%. Only after the total has stayed under
+ * 60% of the budget for a few periods does the most degraded busy stream step
+ * back up, so a stream doesn't flap between two levels. A stream nobody is
+ * watching waits at the level of the most degraded busy one, so a dashboard
+ * opening it can't blow the budget for a period before it's measured.
+ *
+ * <p>Dashboards that set their own compression, fps or resolution in the stream
+ * URL override the server's settings, and aren't controlled.
+ */
+public class StreamBandwidthController {
+
+	/*
+	 * JPEG quality (-1 passes an MJPEG camera's frames through unchanged), most
+	 * frames a second (0 for the source's rate), and how many times smaller than
+	 * the configured or source size the frames are, best first. Level 0 stands for
+	 * the configured settings.
+	 */
+	static final int[][] LEVELS = { { -1, 0, 1 }, { 70, 0, 1 }, { 50, 0, 1 }, { 50, 15, 1 }, { 40, 15, 2 },
+			{ 30, 10, 2 }, { 30, 10, 4 }, { 20, 5, 4 } };
+
+	static final double STEP_SAVING = 0.7;
+	static final double STEP_UP_FRACTION = 0.6;
+	static final int STEP_UP_PERIODS = 3;
+
+	public static class Stream {
+		final String name;
+		final MjpegServer server;
+		final int port;
+		/* The server's settings as configured: quality, fps and size, -1 or 0 for the source's. */
+		final int configuredQuality;
+		final int configuredFps;
+		final int configuredWidth;
+		final int configuredHeight;
+		int level = 0;
+		double bitsPerSecond;
+		int quality;
+		int fps;
+		int width;
+		int height;
+
+		Stream(String name, MjpegServer server) {
+			this.name = name;
+			this.server = server;
+			port = server.getPort();
+			configuredQuality = readProperty(server, "compression", -1);
+			configuredFps = readProperty(server, "fps", 0);
+			configuredWidth = readProperty(server, "width", 0);
+			configuredHeight = readProperty(server, "height", 0);
+			quality = configuredQuality;
+			fps = configuredFps;
+			width = configuredWidth;
+			height = configuredHeight;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public double getBitsPerSecond() {
+			return bitsPerSecond;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s %s %s %.2f Mbps", name, quality < 0 ? "camera JPEG" : "quality " + quality,
+					fps > 0 ? fps + " fps" : "source fps", width > 0 ? width + "x" + height : "source size",
+					bitsPerSecond / 1.0e6);
+		}
+	}
+
+	private final double budget;
+	private final List<Stream> streams = new ArrayList<>();
+	/* Bytes acknowledged so far on each connection, by "local peer" address. */
+	private final Map<String, Long> connectionBytes = new HashMap<>();
+	private final Map<String, Long> currentBytes = new HashMap<>();
+	private long lastUpdate = 0;
+	private double totalBitsPerSecond = 0;
+	private int quietPeriods = 0;
+	private boolean measuring = true;
+
+	/**
+	 * @param budget most bits a second all the streams together may send
+	 */
+	public StreamBandwidthController(double budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Control a server's stream, starting with its settings as they're configured,
+	 * which are left alone until it's measured.
+	 */
+	public synchronized void add(String name, MjpegServer server) {
+		streams.add(new Stream(name, server));
+	}
+
+	/**
+	 * @return a server property's value, or otherwise if it doesn't have it.
+	 */
+	static int readProperty(MjpegServer server, String property, int otherwise) {
+		VideoProperty value = server.getProperty(property);
+		return value.getKind() != VideoProperty.Kind.kNone ? value.get() : otherwise;
+	}
+
+	/**
+	 * Measure the last period's traffic and adjust the streams. Call about once a
+	 * second.
+	 */
+	public synchronized void update() {
+		if (!measuring) {
+			return;
+		}
+		long now = System.nanoTime();
+		try {
+			readConnections(currentBytes);
+		} catch (IOException e) {
+			System.out.println("Couldn't read the streams' traffic with ss, so leaving them as they are:" + e.toString());
+			measuring = false;
+			return;
+		}
+
+		boolean first = lastUpdate == 0;
+		double seconds = (now - lastUpdate) / 1.0e9;
+		lastUpdate = now;
+		totalBitsPerSecond = 0;
+		for (Stream stream : streams) {
+			long bytes = 0;
+			String localPort = ":" + stream.port;
+			for (Map.Entry<String, Long> connection : currentBytes.entrySet()) {
+				String key = connection.getKey();
+				if (key.substring(0, key.indexOf(' ')).endsWith(localPort)) {
+					Long previous = connectionBytes.get(connection.getKey());
+					bytes += connection.getValue() - (previous != null ? previous : 0);
+				}
+			}
+			stream.bitsPerSecond = first ? 0 : 8.0 * bytes / seconds;
+			totalBitsPerSecond += stream.bitsPerSecond;
+		}
+		connectionBytes.clear();
+		connectionBytes.putAll(currentBytes);
+		if (first) {
+			return;
+		}
+
+		adjust();
+	}
+
+	private void adjust() {
+		List<Stream> busy = new ArrayList<>();
+		for (Stream stream : streams) {
+			if (stream.bitsPerSecond > 0) {
+				busy.add(stream);
+			}
+		}
+		busy.sort((a, b) -> Double.compare(b.bitsPerSecond, a.bitsPerSecond));
+
+		if (totalBitsPerSecond > budget) {
+			quietPeriods = 0;
+			double expected = totalBitsPerSecond;
+			for (Stream stream : busy) {
+				if (expected <= budget) {
+					break;
+				}
+				if (stream.level < LEVELS.length - 1 && setLevel(stream, stream.level + 1)) {
+					expected -= stream.bitsPerSecond * (1.0 - STEP_SAVING);
+				}
+			}
+		} else if (totalBitsPerSecond < STEP_UP_FRACTION * budget && ++quietPeriods >= STEP_UP_PERIODS) {
+			quietPeriods = 0;
+			Stream worst = null;
+			for (Stream stream : busy) {
+				if (stream.level > 0 && (worst == null || stream.level > worst.level)) {
+					worst = stream;
+				}
+			}
+			if (worst != null) {
+				setLevel(worst, worst.level - 1);
+			}
+		}
+
+		int busiestLevel = -1;
+		for (Stream stream : busy) {
+			busiestLevel = Math.max(busiestLevel, stream.level);
+		}
+		if (busiestLevel >= 0) {
+			for (Stream stream : streams) {
+				if (stream.bitsPerSecond == 0 && stream.level != busiestLevel) {
+					setLevel(stream, busiestLevel);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Apply a level to a stream's server. Level 0 puts back the configured
+	 * settings; the others are never less strict than them, and shrink the
+	 * configured size, or the source's if none was configured.
+	 *
+	 * @return false if the level needs the source's size and it isn't known yet,
+	 *         so the stream was left as it is.
+	 */
+	private boolean setLevel(Stream stream, int level) {
+		int quality = stream.configuredQuality;
+		int fps = stream.configuredFps;
+		int width = stream.configuredWidth;
+		int height = stream.configuredHeight;
+		if (level > 0) {
+			int[] settings = LEVELS[level];
+			if (settings[0] >= 0) {
+				quality = quality >= 0 ? Math.min(quality, settings[0]) : settings[0];
+			}
+			if (settings[1] > 0) {
+				fps = fps > 0 ? Math.min(fps, settings[1]) : settings[1];
+			}
+			if (settings[2] > 1) {
+				if (width <= 0 || height <= 0) {
+					VideoSource source = stream.server.getSource();
+					VideoMode mode = source != null ? source.getVideoMode() : null;
+					if (mode == null || mode.width <= 0 || mode.height <= 0) {
+						return false;
+					}
+					width = mode.width;
+					height = mode.height;
+				}
+				width /= settings[2];
+				height /= settings[2];
+			}
+		}
+
+		stream.level = level;
+		stream.quality = quality;
+		stream.fps = fps;
+		stream.width = width;
+		stream.height = height;
+		stream.server.setCompression(quality);
+		stream.server.setFPS(fps);
+		stream.server.setResolution(width, height);
+		return true;
+	}
+
+	/**
+	 * Read the bytes acknowledged on every established TCP connection.
+	 */
+	private static void readConnections(Map<String, Long> connections) throws IOException {
+		Process process = new ProcessBuilder("ss", "-tin", "state", "established").redirectErrorStream(true).start();
+		String output;
+		try (InputStream input = process.getInputStream()) {
+			output = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+		}
+		try {
+			if (process.waitFor() != 0) {
+				throw new IOException("ss failed with status " + process.exitValue());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		parseConnections(output, connections);
+	}
+
+	/**
+	 * Parse {@code ss -tin state established}: a line with the queues and the local
+	 * and peer addresses, then an indented line of statistics, for each connection.
+	 * Connections are keyed by "local peer" address.
+	 */
+	static void parseConnections(String output, Map<String, Long> connections) {
+		connections.clear();
+		String connection = null;
+		for (String line : output.split("\n")) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			if (!Character.isWhitespace(line.charAt(0))) {
+				String[] fields = line.trim().split("\\s+");
+				connection = fields.length >= 4 && Character.isDigit(fields[0].charAt(0))
+						? fields[fields.length - 2] + " " + fields[fields.length - 1]
+						: null;
+				continue;
+			}
+			if (connection == null) {
+				continue;
+			}
+			int start = line.indexOf("bytes_acked:");
+			if (start >= 0) {
+				start += "bytes_acked:".length();
+				int end = start;
+				while (end < line.length() && Character.isDigit(line.charAt(end))) {
+					++end;
+				}
+				connections.put(connection, Long.parseLong(line.substring(start, end)));
+			}
+			connection = null;
+		}
+	}
+
+	public double getBudget() {
+		return budget;
+	}
+
+	public synchronized double getTotalBitsPerSecond() {
+		return totalBitsPerSecond;
+	}
+
+	/**
+	 * @return each stream's settings and traffic, one line per stream.
+	 */
+	public synchronized String[] describe() {
+		String[] lines = new String[streams.size()];
+		for (int index = 0; index < lines.length; ++index) {
+			lines[index] = streams.get(index).toString();
+		}
+		return lines;
+	}
+}
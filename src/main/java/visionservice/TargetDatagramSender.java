@@ -0,0 +1,130 @@
+package visionservice;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends each frame's target to the RoboRIO as one UDP datagram, next to
+ * NetworkTables.
+ *
+ * <p>A datagram goes out as soon as it's written, with none of the batching
+ * NetworkTables does, so the RoboRIO sees it with the network's latency and
+ * nothing more. Datagrams can be lost or arrive out of order, which the sequence
+ * number shows. The datagram is {@value #DATAGRAM_SIZE} bytes, big endian:
+ *
+ * <pre>
+ * offset  size  field
+ *  0      4     sequence number, one more for every datagram sent
+ *  4      8     capture time, milliseconds since the epoch
+ * 12      8     send time, milliseconds since the epoch
+ * 20      8     heading to the target in degrees (double)
+ * 28      8     distance to the target in inches (double)
+ * 36      1     pipeline index, in the camera's "pipelines" order
+ * 37      1     status, STATUS_NO_TARGET, STATUS_TARGET or STATUS_PARTIAL_TARGET
+ * 38      2     reserved, 0
+ * 40      8     field-relative heading to the target in degrees (double): the
+ *               robot's heading at capture time plus the heading to the target
+ * </pre>
+ *
+ * <p>Setting the Pi's clock from the RoboRIO's leaves them up to half a second
+ * apart, so with a {@link RioClock} the capture and send times are turned into
+ * the RoboRIO's time before they're sent, and the RoboRIO can subtract the
+ * capture time from its own clock to get the target's age. Without one they're
+ * the Pi's own times.
+ */
+public class TargetDatagramSender {
+
+	public static final int DATAGRAM_SIZE = 48;
+
+	public static final int SEQUENCE_OFFSET = 0;
+	public static final int CAPTURE_TIME_OFFSET = 4;
+	public static final int SEND_TIME_OFFSET = 12;
+	public static final int HEADING_OFFSET = 20;
+	public static final int DISTANCE_OFFSET = 28;
+	public static final int PIPELINE_OFFSET = 36;
+	public static final int STATUS_OFFSET = 37;
+	public static final int FIELD_HEADING_OFFSET = 40;
+
+	public static final byte STATUS_NO_TARGET = 0;
+	public static final byte STATUS_TARGET = 1;
+	/* A target found before the frame's deadline cut the search short. */
+	public static final byte STATUS_PARTIAL_TARGET = 2;
+
+	private final DatagramChannel channel;
+	/* Written in place for every datagram, so sending allocates nothing. */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(DATAGRAM_SIZE).order(ByteOrder.BIG_ENDIAN);
+	private int sequence = 0;
+	private long sendErrors = 0;
+	private volatile RioClock clock;
+
+	/**
+	 * @param host the receiver's host name or address
+	 * @param port the receiver's UDP port
+	 */
+	public TargetDatagramSender(String host, int port) throws IOException {
+		channel = DatagramChannel.open();
+		channel.connect(new InetSocketAddress(host, port));
+		/* Never hold up the vision thread; a datagram that can't go now is dropped. */
+		channel.configureBlocking(false);
+	}
+
+	/**
+	 * @param clock turns the Pi's times into the RoboRIO's before they're sent, or
+	 *              null to send the Pi's own
+	 */
+	public void setClock(RioClock clock) {
+		this.clock = clock;
+	}
+
+	/**
+	 * Send one target.
+	 *
+	 * @param pipeline     the pipeline's index
+	 * @param captureTime  when the frame was captured, milliseconds since the epoch on
+	 *                     the Pi's clock
+	 * @param heading      degrees, or NaN
+	 * @param fieldHeading field-relative degrees, or NaN
+	 * @param distance     inches, or NaN
+	 * @param status       STATUS_NO_TARGET, STATUS_TARGET or STATUS_PARTIAL_TARGET
+	 * @return true if the datagram was sent.
+	 */
+	public boolean send(int pipeline, long captureTime, double heading, double fieldHeading, double distance,
+			byte status) {
+		buffer.clear();
+		buffer.putInt(SEQUENCE_OFFSET, sequence++);
+		RioClock rio = clock;
+		long sendTime = System.currentTimeMillis();
+		buffer.putLong(CAPTURE_TIME_OFFSET, rio != null ? rio.toRioTime(captureTime) : captureTime);
+		buffer.putLong(SEND_TIME_OFFSET, rio != null ? rio.toRioTime(sendTime) : sendTime);
+		buffer.putDouble(HEADING_OFFSET, heading);
+		buffer.putDouble(DISTANCE_OFFSET, distance);
+		buffer.put(PIPELINE_OFFSET, (byte) pipeline);
+		buffer.put(STATUS_OFFSET, status);
+		buffer.putShort(STATUS_OFFSET + 1, (short) 0);
+		buffer.putDouble(FIELD_HEADING_OFFSET, fieldHeading);
+		try {
+			if (channel.write(buffer) == DATAGRAM_SIZE) {
+				return true;
+			}
+		} catch (IOException e) {
+			/* Usually nothing is listening yet (ICMP port unreachable); keep sending. */
+		}
+		++sendErrors;
+		return false;
+	}
+
+	public int getSequence() {
+		return sequence;
+	}
+
+	public long getSendErrors() {
+		return sendErrors;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
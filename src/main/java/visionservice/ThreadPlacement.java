@@ -0,0 +1,197 @@
+package visionservice;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Pins threads to cores and sets their scheduling, by stage.
+ *
+ * <p>Java can't do either, so the Linux thread ids are found under /proc and the
+ * usual tools are run on them: taskset for the cores, renice for the nice level
+ * and chrt for a real time priority. Raising priority needs root, so renice and
+ * chrt go through sudo, as setting the clock does.
+ *
+ * <p>Our own threads place themselves when they start. Threads that ntcore and
+ * cscore start can't be told apart by name, so they're found by taking the
+ * threads that appeared while NetworkTables or a camera was being started. Linux
+ * threads inherit their creator's placement, so threads cscore starts later for
+ * each stream client end up where the stream's threads are.
+ */
+public class ThreadPlacement {
+
+	/**
+	 * Where one stage's threads go. Null fields are left alone.
+	 */
+	public static class Placement {
+		/* taskset's cpu list, like "3" or "0-2". */
+		public String cpus;
+		public Integer nice;
+		/* SCHED_FIFO priority, 1-99. */
+		public Integer realtimePriority;
+
+		@Override
+		public String toString() {
+			return String.format("cpus %s nice %s realtime %s", cpus != null ? cpus : "-",
+					nice != null ? nice.toString() : "-", realtimePriority != null ? realtimePriority.toString() : "-");
+		}
+	}
+
+	private final Map<String, Placement> stages = new LinkedHashMap<>();
+	/* The stage each thread was placed in, by Linux thread id. */
+	private final Map<Integer, String> placed = new TreeMap<>();
+
+	public void setStage(String stage, Placement placement) {
+		stages.put(stage, placement);
+	}
+
+	public boolean isEmpty() {
+		return stages.isEmpty();
+	}
+
+	/**
+	 * @return the Linux thread id of the calling thread, or -1 if it can't be
+	 *         found.
+	 */
+	public static int currentThreadId() {
+		try {
+			return Integer.parseInt(Files.readSymbolicLink(Paths.get("/proc/thread-self")).getFileName().toString());
+		} catch (IOException | RuntimeException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the Linux thread ids of every thread in this process.
+	 */
+	public static Set<Integer> threadIds() {
+		Set<Integer> ids = new HashSet<>();
+		String[] tasks = new File("/proc/self/task").list();
+		if (tasks != null) {
+			for (String task : tasks) {
+				ids.add(Integer.parseInt(task));
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * Place the calling thread.
+	 */
+	public void placeCurrentThread(String stage) {
+		int id = currentThreadId();
+		if (id > 0) {
+			placeThread(stage, id);
+		}
+	}
+
+	/**
+	 * Place every thread that wasn't running when the snapshot was taken.
+	 *
+	 * @param before {@link #threadIds()} from before the stage's threads started
+	 */
+	public void placeNewThreads(String stage, Set<Integer> before) {
+		for (int id : threadIds()) {
+			if (!before.contains(id)) {
+				placeThread(stage, id);
+			}
+		}
+	}
+
+	/**
+	 * Place every thread that hasn't been placed yet, such as the JVM's own.
+	 */
+	public void placeRemainingThreads(String stage) {
+		for (int id : threadIds()) {
+			boolean unplaced;
+			synchronized (placed) {
+				unplaced = !placed.containsKey(id);
+			}
+			if (unplaced) {
+				placeThread(stage, id);
+			}
+		}
+	}
+
+	public void placeThread(String stage, int id) {
+		synchronized (placed) {
+			placed.put(id, stage);
+		}
+		Placement placement = stages.get(stage);
+		if (placement == null) {
+			return;
+		}
+		String thread = Integer.toString(id);
+		if (placement.cpus != null) {
+			run("taskset", "-p", "-c", placement.cpus, thread);
+		}
+		if (placement.nice != null) {
+			run("sudo", "-n", "renice", "-n", placement.nice.toString(), "-p", thread);
+		}
+		if (placement.realtimePriority != null) {
+			run("sudo", "-n", "chrt", "-f", "-p", placement.realtimePriority.toString(), thread);
+		}
+	}
+
+	private static void run(String... command) {
+		try {
+			Process process = new ProcessBuilder(command).redirectErrorStream(true)
+					.redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+			if (process.waitFor() != 0) {
+				System.out.println(String.format("'%s' failed with status %d", String.join(" ", command),
+						process.exitValue()));
+			}
+		} catch (IOException | InterruptedException e) {
+			System.out.println(String.format("Couldn't run '%s':%s", String.join(" ", command), e.toString()));
+		}
+	}
+
+	/**
+	 * Read back where every placed thread actually ended up, from /proc, one line
+	 * per thread.
+	 */
+	public List<String> describe() {
+		List<String> lines = new ArrayList<>();
+		Map<Integer, String> threads;
+		synchronized (placed) {
+			threads = new TreeMap<>(placed);
+		}
+		Set<Integer> running = threadIds();
+		for (Map.Entry<Integer, String> thread : threads.entrySet()) {
+			int id = thread.getKey();
+			if (!running.contains(id)) {
+				continue;
+			}
+			String task = "/proc/self/task/" + id;
+			try {
+				String name = new String(Files.readAllBytes(Paths.get(task, "comm")), StandardCharsets.UTF_8).trim();
+				String cpus = "?";
+				for (String line : Files.readAllLines(Paths.get(task, "status"), StandardCharsets.UTF_8)) {
+					if (line.startsWith("Cpus_allowed_list:")) {
+						cpus = line.substring("Cpus_allowed_list:".length()).trim();
+					}
+				}
+				/* The fields after the name, which is in parentheses and may hold spaces. */
+				String stat = new String(Files.readAllBytes(Paths.get(task, "stat")), StandardCharsets.UTF_8);
+				String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+				String nice = fields[16];
+				String realtimePriority = fields[37];
+				String policy = fields[38].equals("1") ? "fifo" : fields[38].equals("2") ? "rr" : "other";
+				lines.add(String.format("%-10s %6d %-16s cpus %-8s nice %3s %s %s", thread.getValue(), id, name, cpus,
+						nice, policy, policy.equals("other") ? "" : realtimePriority));
+			} catch (IOException | RuntimeException e) {
+				lines.add(String.format("%-10s %6d couldn't read placement:%s", thread.getValue(), id, e.toString()));
+			}
+		}
+		return lines;
+	}
+}
@@ -0,0 +1,197 @@
+package visionservice;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.VideoWriter;
+import org.opencv.videoio.Videoio;
+
+import edu.wpi.cscore.CvSource;
+import edu.wpi.first.cameraserver.CameraServer;
+
+/**
+ * A USB camera read directly as raw YUYV frames.
+ *
+ * <p>cscore only hands out BGR frames, so a camera used this way is opened with
+ * OpenCV instead, with RGB conversion turned off. The frames come back as two
+ * channel Mats, Y in channel 0 and U/V alternating in channel 1, which the
+ * contour pipelines threshold on the Y channel directly.
+ *
+ * <p>The camera's own MJPEG stream is fed from here, and frames are converted to
+ * BGR for it only while someone is watching it.
+ */
+public class YuyvCamera {
+
+	private final String name;
+	private final String path;
+	private final int width;
+	private final int height;
+	private final VideoCapture capture = new VideoCapture();
+	private final Mat raw = new Mat();
+	private final Mat bgr = new Mat();
+	private CvSource stream;
+	/* True from a failed grab until the next good one, so a run of failures is logged once. */
+	private boolean failing = false;
+
+	public YuyvCamera(String name, String path, int width, int height) {
+		this.name = name;
+		this.path = path;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Open the camera and start its stream.
+	 *
+	 * @param fps the frame rate to ask the camera for.
+	 * @return true if the camera opened and the driver took the YUYV format and
+	 *         the size asked for.
+	 */
+	public boolean open(int fps) {
+		if (!capture.open(path, Videoio.CAP_V4L2)) {
+			return false;
+		}
+		int yuyv = VideoWriter.fourcc('Y', 'U', 'Y', 'V');
+		capture.set(Videoio.CAP_PROP_FOURCC, yuyv);
+		capture.set(Videoio.CAP_PROP_FRAME_WIDTH, width);
+		capture.set(Videoio.CAP_PROP_FRAME_HEIGHT, height);
+		capture.set(Videoio.CAP_PROP_FPS, fps);
+		capture.set(Videoio.CAP_PROP_CONVERT_RGB, 0);
+		/* Keep as few frames queued as the driver allows so frames are fresh. */
+		capture.set(Videoio.CAP_PROP_BUFFERSIZE, 1);
+
+		/*
+		 * The driver quietly picks the nearest mode it has, and every frame of any
+		 * other format or size would fail grabFrame's size check.
+		 */
+		int fourcc = (int) capture.get(Videoio.CAP_PROP_FOURCC);
+		int actualWidth = (int) capture.get(Videoio.CAP_PROP_FRAME_WIDTH);
+		int actualHeight = (int) capture.get(Videoio.CAP_PROP_FRAME_HEIGHT);
+		if (fourcc != yuyv || actualWidth != width || actualHeight != height) {
+			System.out.println(String.format("'%s' gave %s %dx%d instead of YUYV %dx%d", path, fourccName(fourcc),
+					actualWidth, actualHeight, width, height));
+			capture.release();
+			return false;
+		}
+
+		stream = CameraServer.getInstance().putVideo(name, width, height);
+		return true;
+	}
+
+	/**
+	 * @param percent brightness, 0-100.
+	 */
+	public void setBrightness(int percent) {
+		capture.set(Videoio.CAP_PROP_BRIGHTNESS, percent / 100.0);
+	}
+
+	/**
+	 * Turn off auto exposure and set it by hand.
+	 *
+	 * @param percent exposure, 0-100.
+	 */
+	public void setExposure(int percent) {
+		/* The V4L2 backend takes 0.25 for manual exposure and 0.75 for auto. */
+		capture.set(Videoio.CAP_PROP_AUTO_EXPOSURE, 0.25);
+		capture.set(Videoio.CAP_PROP_EXPOSURE, percent / 100.0);
+	}
+
+	/**
+	 * Set a V4L2 control by name, the same names cscore uses for camera properties.
+	 */
+	public void setControl(String control, String value) {
+		List<String> command = new ArrayList<>();
+		command.add("v4l2-ctl");
+		command.add("-d");
+		command.add(path);
+		command.add("--set-ctrl=" + control + "=" + value);
+		try {
+			new ProcessBuilder(command).inheritIO().start().waitFor();
+		} catch (IOException | InterruptedException e) {
+			System.out.println(String.format("Couldn't set %s to %s on %s:%s", control, value, path, e.toString()));
+		}
+	}
+
+	/**
+	 * Wait for the next frame.
+	 *
+	 * @param frame receives the raw frame as a height x width, 2 channel Mat.
+	 * @return the time the frame was read in microseconds, or 0 on error.
+	 */
+	public long grabFrame(Mat frame) {
+		if (!capture.read(raw) || raw.empty()) {
+			return fail("no frame could be read; is it still plugged in?");
+		}
+		long time = System.currentTimeMillis() * 1000;
+
+		/* Some V4L2 builds return the buffer as one row of bytes. */
+		if (raw.channels() == 2) {
+			raw.copyTo(frame);
+		} else if (raw.total() * raw.channels() == (long) width * height * 2) {
+			raw.reshape(2, height).copyTo(frame);
+		} else {
+			return fail(String.format("a frame of %d bytes came back instead of %dx%d YUYV",
+					raw.total() * raw.channels(), width, height));
+		}
+		failing = false;
+
+		if (stream != null && stream.isEnabled()) {
+			Imgproc.cvtColor(frame, bgr, Imgproc.COLOR_YUV2BGR_YUYV);
+			stream.putFrame(bgr);
+		}
+		return time;
+	}
+
+	/**
+	 * Log the first failed grab of a run.
+	 *
+	 * @return 0, for grabFrame to return.
+	 */
+	private long fail(String reason) {
+		if (!failing) {
+			failing = true;
+			System.out.println(String.format("Couldn't grab a frame from '%s': %s", path, reason));
+		}
+		return 0;
+	}
+
+	private static String fourccName(int fourcc) {
+		char[] name = new char[4];
+		for (int index = 0; index < 4; ++index) {
+			name[index] = (char) ((fourcc >> (8 * index)) & 0xff);
+		}
+		return new String(name);
+	}
+
+	/**
+	 * @return the MJPEG stream's source, which stands in for the camera when
+	 *         switching cameras.
+	 */
+	public CvSource getStream() {
+		return stream;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Build a YUYV frame with the given luma and neutral chroma, for feeding
+	 * synthetic frames to the pipelines.
+	 *
+	 * @param luma single channel 8 bit image.
+	 * @param yuyv receives the 2 channel frame.
+	 */
+	public static void lumaToYuyv(Mat luma, Mat yuyv) {
+		Mat chroma = new Mat(luma.size(), CvType.CV_8UC1, new Scalar(128));
+		List<Mat> planes = new ArrayList<>();
+		planes.add(luma);
+		planes.add(chroma);
+		Core.merge(planes, yuyv);
+		chroma.release();
+	}
+}
@@ -0,0 +1,167 @@
+package visiontargetfilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Finds contours only for the blobs of a binary mask that can survive a
+ * Filter_Contours step.
+ *
+ * <p>Every 8-connected blob in the mask is measured with connectedComponentsWithStats
+ * and rejected by its bounding box, aspect ratio and pixel count before any contour
+ * is traced. The pixel count of a blob is never smaller than the area of its traced
+ * contour, so nothing that Filter_Contours would keep is rejected here. The surviving
+ * blobs are traced one at a time inside their own bounding box.
+ *
+ * <p>When only external contours are wanted, a blob sitting in the hole of another
+ * blob is dropped, as the RETR_EXTERNAL trace of the whole mask would never see it.
+ * Only a blob whose bounding box is inside another's can be in a hole, so the
+ * background is only labelled on frames that have one: the blob is in a hole if
+ * the background just left of it doesn't reach the edge of the mask.
+ *
+ * <p>All the scratch buffers are kept between frames. The contours are new Mats
+ * that the caller owns.
+ */
+public class ComponentPrefilter {
+
+	private final Mat labels = new Mat();
+	private final Mat stats = new Mat();
+	private final Mat centroids = new Mat();
+	private final Mat componentMask = new Mat();
+	private final Mat hierarchy = new Mat();
+	private final Mat background = new Mat();
+	private final Mat backgroundLabels = new Mat();
+	private final Mat backgroundStats = new Mat();
+	private final Mat backgroundCentroids = new Mat();
+	private final Scalar labelValue = new Scalar(0);
+	private final Point traceOffset = new Point();
+	private final ArrayList<MatOfPoint> componentContours = new ArrayList<MatOfPoint>();
+	private int[] statsBuffer = new int[0];
+	private int[] backgroundStatsBuffer = new int[0];
+	private int[] columnBuffer = new int[0];
+	private final int[] labelBuffer = new int[1];
+	private boolean backgroundLabelled;
+	private int componentCount;
+
+	/**
+	 * @param input The binary image on which to find contours.
+	 * @param offset where the input's top left corner is in the frame the contours are for.
+	 * @param externalOnly if true, only external contours are found.
+	 * @param minArea minimum pixel count of a blob
+	 * @param minWidth minimum width of a blob
+	 * @param maxWidth maximum width
+	 * @param minHeight minimum height
+	 * @param maxHeight maximum height
+	 * @param minRatio minimum ratio of width to height
+	 * @param maxRatio maximum ratio of width to height
+	 * @param contours The list in which to store the contours of the surviving blobs.
+	 */
+	public void process(Mat input, Point offset, boolean externalOnly, double minArea,
+		double minWidth, double maxWidth, double minHeight, double maxHeight, double minRatio,
+		double maxRatio, List<MatOfPoint> contours) {
+		contours.clear();
+		int count = Imgproc.connectedComponentsWithStats(input, labels, stats, centroids, 8,
+			CvType.CV_32S);
+		componentCount = count - 1;
+		if (statsBuffer.length < count * 5) {
+			statsBuffer = new int[count * 5];
+		}
+		stats.get(0, 0, statsBuffer);
+		int mode = externalOnly ? Imgproc.RETR_EXTERNAL : Imgproc.RETR_LIST;
+		backgroundLabelled = false;
+		// Label 0 is the background.
+		for (int label = 1; label < count; label++) {
+			final int row = label * 5;
+			final int left = statsBuffer[row + Imgproc.CC_STAT_LEFT];
+			final int top = statsBuffer[row + Imgproc.CC_STAT_TOP];
+			final int width = statsBuffer[row + Imgproc.CC_STAT_WIDTH];
+			final int height = statsBuffer[row + Imgproc.CC_STAT_HEIGHT];
+			if (width < minWidth || width > maxWidth) continue;
+			if (height < minHeight || height > maxHeight) continue;
+			if (statsBuffer[row + Imgproc.CC_STAT_AREA] < minArea) continue;
+			final double ratio = width / (double)height;
+			if (ratio < minRatio || ratio > maxRatio) continue;
+			if (externalOnly && isInHole(input, label, count)) continue;
+			final Mat labelsRoi = labels.submat(top, top + height, left, left + width);
+			labelValue.val[0] = label;
+			Core.compare(labelsRoi, labelValue, componentMask, Core.CMP_EQ);
+			labelsRoi.release();
+			traceOffset.x = left + offset.x;
+			traceOffset.y = top + offset.y;
+			Imgproc.findContours(componentMask, componentContours, hierarchy, mode,
+				Imgproc.CHAIN_APPROX_SIMPLE, traceOffset);
+			contours.addAll(componentContours);
+		}
+	}
+
+	/**
+	 * @return how many blobs the last mask had, before any were rejected.
+	 */
+	public int getComponentCount() {
+		return componentCount;
+	}
+
+	/**
+	 * @return true if a blob lies in a hole of another blob.
+	 */
+	private boolean isInHole(Mat input, int label, int count) {
+		final int row = label * 5;
+		final int left = statsBuffer[row + Imgproc.CC_STAT_LEFT];
+		final int top = statsBuffer[row + Imgproc.CC_STAT_TOP];
+		final int right = left + statsBuffer[row + Imgproc.CC_STAT_WIDTH];
+		final int bottom = top + statsBuffer[row + Imgproc.CC_STAT_HEIGHT];
+		if (left == 0) return false;
+
+		// Only a blob inside another's bounding box can be in its hole.
+		boolean enclosed = false;
+		for (int other = 1; other < count && !enclosed; other++) {
+			final int otherRow = other * 5;
+			final int otherLeft = statsBuffer[otherRow + Imgproc.CC_STAT_LEFT];
+			final int otherTop = statsBuffer[otherRow + Imgproc.CC_STAT_TOP];
+			enclosed = other != label && otherLeft < left && otherTop < top
+				&& otherLeft + statsBuffer[otherRow + Imgproc.CC_STAT_WIDTH] > right
+				&& otherTop + statsBuffer[otherRow + Imgproc.CC_STAT_HEIGHT] > bottom;
+		}
+		if (!enclosed) return false;
+
+		// The background is 4-connected where the blobs are 8-connected.
+		if (!backgroundLabelled) {
+			Core.bitwise_not(input, background);
+			int backgroundCount = Imgproc.connectedComponentsWithStats(background, backgroundLabels,
+				backgroundStats, backgroundCentroids, 4, CvType.CV_32S);
+			if (backgroundStatsBuffer.length < backgroundCount * 5) {
+				backgroundStatsBuffer = new int[backgroundCount * 5];
+			}
+			backgroundStats.get(0, 0, backgroundStatsBuffer);
+			backgroundLabelled = true;
+		}
+
+		// Find a pixel of the blob in its leftmost column; the pixel left of it is background outside the blob.
+		final int height = bottom - top;
+		if (columnBuffer.length < height) {
+			columnBuffer = new int[height];
+		}
+		final Mat column = labels.submat(top, bottom, left, left + 1);
+		column.get(0, 0, columnBuffer);
+		column.release();
+		int y = top;
+		while (y < bottom - 1 && columnBuffer[y - top] != label) {
+			y++;
+		}
+		backgroundLabels.get(y, left - 1, labelBuffer);
+		final int backgroundRow = labelBuffer[0] * 5;
+		final int backgroundLeft = backgroundStatsBuffer[backgroundRow + Imgproc.CC_STAT_LEFT];
+		final int backgroundTop = backgroundStatsBuffer[backgroundRow + Imgproc.CC_STAT_TOP];
+		return backgroundLeft > 0 && backgroundTop > 0
+			&& backgroundLeft + backgroundStatsBuffer[backgroundRow + Imgproc.CC_STAT_WIDTH] < input.cols()
+			&& backgroundTop + backgroundStatsBuffer[backgroundRow + Imgproc.CC_STAT_HEIGHT] < input.rows();
+	}
+}
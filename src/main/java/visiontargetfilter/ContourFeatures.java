@@ -0,0 +1,299 @@
+package visiontargetfilter;
+
+import java.util.ArrayList;
+
+import org.opencv.core.CvType;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.RotatedRect;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * One contour and the geometry measured on it, each measured the first time
+ * something asks for it and kept for everything after: the contour filter's
+ * tests, the convex hull step and the target finder all share one record per
+ * contour instead of measuring it again.
+ *
+ * <p>The contour's points are copied out of native memory once, and the
+ * bounding box, perimeter and hull are worked out from that copy. A hull gets
+ * its own record, made from its contour's, which starts out knowing the
+ * bounding box (a hull's is the same), its area and its rotated rectangle (the
+ * same too) if they're already known.
+ *
+ * <p>Records come from a {@link Pool} and are only valid until its next
+ * {@link Pool#endFrame()}.
+ */
+public class ContourFeatures {
+
+	private final Pool pool;
+	private MatOfPoint contour;
+
+	/* The points as x,y pairs; ownPoints unless they came with the record. */
+	private int[] ownPoints = new int[0];
+	private int[] points;
+	private int pointCount = -1;
+
+	private boolean boundsKnown;
+	private int boundsX;
+	private int boundsY;
+	private int boundsWidth;
+	private int boundsHeight;
+
+	private double area;
+	private double perimeter;
+	private double hullArea;
+	private RotatedRect rotatedRect;
+
+	/*
+	 * The hull's points as x,y pairs, and a MatOfPoint with them, both reused from
+	 * frame to frame; a hull's record borrows its contour's.
+	 */
+	private int[] ownHullPoints = new int[0];
+	private int[] hullPoints;
+	private int hullPointCount = -1;
+	private MatOfPoint ownHull;
+	private MatOfPoint hull;
+
+	private ContourFeatures(Pool pool) {
+		this.pool = pool;
+	}
+
+	private void reset(MatOfPoint contour) {
+		this.contour = contour;
+		points = ownPoints;
+		pointCount = -1;
+		boundsKnown = false;
+		area = Double.NaN;
+		perimeter = Double.NaN;
+		hullArea = Double.NaN;
+		rotatedRect = null;
+		hullPoints = ownHullPoints;
+		hullPointCount = -1;
+		hull = null;
+	}
+
+	/**
+	 * @return the contour, in the frame's coordinates.
+	 */
+	public MatOfPoint contour() {
+		return contour;
+	}
+
+	public int vertexCount() {
+		return contour.rows();
+	}
+
+	/**
+	 * @return the contour's points as x,y pairs; only the first 2 * vertexCount()
+	 *         are the contour's.
+	 */
+	public int[] points() {
+		if (pointCount < 0) {
+			pointCount = (int) contour.total();
+			if (ownPoints.length < pointCount * 2) {
+				ownPoints = new int[pointCount * 2];
+			}
+			points = ownPoints;
+			contour.get(0, 0, points);
+		}
+		return points;
+	}
+
+	private void measureBounds() {
+		if (boundsKnown) {
+			return;
+		}
+		if (pointCount >= 0) {
+			/* The points are already here; don't go back to native memory for them. */
+			int minX = Integer.MAX_VALUE;
+			int minY = Integer.MAX_VALUE;
+			int maxX = Integer.MIN_VALUE;
+			int maxY = Integer.MIN_VALUE;
+			for (int j = 0; j < pointCount; j++) {
+				minX = Math.min(minX, points[j * 2]);
+				maxX = Math.max(maxX, points[j * 2]);
+				minY = Math.min(minY, points[j * 2 + 1]);
+				maxY = Math.max(maxY, points[j * 2 + 1]);
+			}
+			setBounds(minX, minY, maxX - minX + 1, maxY - minY + 1);
+		} else {
+			Rect bounds = Imgproc.boundingRect(contour);
+			setBounds(bounds.x, bounds.y, bounds.width, bounds.height);
+		}
+	}
+
+	private void setBounds(int x, int y, int width, int height) {
+		boundsX = x;
+		boundsY = y;
+		boundsWidth = width;
+		boundsHeight = height;
+		boundsKnown = true;
+	}
+
+	public int boundsX() {
+		measureBounds();
+		return boundsX;
+	}
+
+	public int boundsY() {
+		measureBounds();
+		return boundsY;
+	}
+
+	public int boundsWidth() {
+		measureBounds();
+		return boundsWidth;
+	}
+
+	public int boundsHeight() {
+		measureBounds();
+		return boundsHeight;
+	}
+
+	public double area() {
+		if (Double.isNaN(area)) {
+			area = Imgproc.contourArea(contour);
+		}
+		return area;
+	}
+
+	/**
+	 * @return the length of the closed polygon through the points.
+	 */
+	public double perimeter() {
+		if (Double.isNaN(perimeter)) {
+			int[] xy = points();
+			double length = 0;
+			for (int j = 0; j < pointCount; j++) {
+				int next = (j + 1) % pointCount;
+				length += Math.hypot(xy[next * 2] - xy[j * 2], xy[next * 2 + 1] - xy[j * 2 + 1]);
+			}
+			perimeter = length;
+		}
+		return perimeter;
+	}
+
+	/**
+	 * @return the convex hull, reused from frame to frame.
+	 */
+	public MatOfPoint hull() {
+		if (hull == null) {
+			int[] xy = points();
+			Imgproc.convexHull(contour, pool.hullIndices);
+			int count = (int) pool.hullIndices.total();
+			if (pool.indexBuffer.length < count) {
+				pool.indexBuffer = new int[count];
+			}
+			if (ownHullPoints.length < count * 2) {
+				ownHullPoints = new int[count * 2];
+			}
+			hullPoints = ownHullPoints;
+			pool.hullIndices.get(0, 0, pool.indexBuffer);
+			for (int j = 0; j < count; j++) {
+				hullPoints[j * 2] = xy[pool.indexBuffer[j] * 2];
+				hullPoints[j * 2 + 1] = xy[pool.indexBuffer[j] * 2 + 1];
+			}
+			hullPointCount = count;
+			if (ownHull == null) {
+				ownHull = new MatOfPoint();
+			}
+			ownHull.create(count, 1, CvType.CV_32SC2);
+			ownHull.put(0, 0, hullPoints);
+			hull = ownHull;
+		}
+		return hull;
+	}
+
+	public double hullArea() {
+		if (Double.isNaN(hullArea)) {
+			MatOfPoint convex = hull();
+			/* An already convex contour is its own hull. */
+			hullArea = hullPointCount == vertexCount() ? area() : Imgproc.contourArea(convex);
+		}
+		return hullArea;
+	}
+
+	/**
+	 * @return the smallest rotated rectangle around the contour, which is the
+	 *         same as the one around its hull.
+	 */
+	public RotatedRect rotatedRect() {
+		if (rotatedRect == null) {
+			/* The hull has fewer points to copy and search, if it's been made. */
+			int[] xy = hull != null ? hullPoints : points();
+			int count = hull != null ? hullPointCount : pointCount;
+			if (pool.floatBuffer.length < count * 2) {
+				pool.floatBuffer = new float[count * 2];
+			}
+			for (int j = 0; j < count * 2; j++) {
+				pool.floatBuffer[j] = xy[j];
+			}
+			pool.points2f.create(count, 1, CvType.CV_32FC2);
+			pool.points2f.put(0, 0, pool.floatBuffer);
+			rotatedRect = Imgproc.minAreaRect(pool.points2f);
+		}
+		return rotatedRect;
+	}
+
+	/**
+	 * Hands out records, reusing them and their buffers from frame to frame. Used
+	 * by one thread.
+	 */
+	public static class Pool {
+		private final ArrayList<ContourFeatures> records = new ArrayList<>();
+		private int used = 0;
+
+		/* Scratch shared by the pool's records. */
+		private final MatOfInt hullIndices = new MatOfInt();
+		private final MatOfPoint2f points2f = new MatOfPoint2f();
+		private int[] indexBuffer = new int[0];
+		private float[] floatBuffer = new float[0];
+
+		private ContourFeatures next() {
+			if (used == records.size()) {
+				records.add(new ContourFeatures(this));
+			}
+			return records.get(used++);
+		}
+
+		/**
+		 * @return a record for a contour, with nothing measured yet.
+		 */
+		public ContourFeatures of(MatOfPoint contour) {
+			ContourFeatures features = next();
+			features.reset(contour);
+			return features;
+		}
+
+		/**
+		 * @return a record for a contour's convex hull, starting out with what's
+		 *         already known about it from the contour's record.
+		 */
+		public ContourFeatures hullOf(ContourFeatures source) {
+			ContourFeatures features = next();
+			MatOfPoint hull = source.hull();
+			features.reset(hull);
+			features.points = source.hullPoints;
+			features.pointCount = source.hullPointCount;
+			features.hull = hull;
+			features.hullPoints = source.hullPoints;
+			features.hullPointCount = source.hullPointCount;
+			if (source.boundsKnown) {
+				features.setBounds(source.boundsX, source.boundsY, source.boundsWidth, source.boundsHeight);
+			}
+			features.area = source.hullArea;
+			features.hullArea = source.hullArea;
+			features.rotatedRect = source.rotatedRect;
+			return features;
+		}
+
+		/**
+		 * Hand the records out again; the ones handed out so far are no longer valid.
+		 */
+		public void endFrame() {
+			used = 0;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package visiontargetfilter;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Orders a frame's contours largest bounding box first, so a filter that runs
+ * out of time has already looked at the contours most likely to be the target.
+ *
+ * <p>The bounding boxes are measured on the contours' feature records, where the
+ * filter's width, height and ratio tests find them again. The order is sorted as
+ * packed longs, area in the high half and index in the low, so it allocates
+ * nothing once its array is as big as the largest frame's contour count.
+ */
+class ContourOrder {
+
+	private long[] keys = new long[0];
+	private int count = 0;
+
+	/**
+	 * Measure and order the contours.
+	 */
+	void sort(List<ContourFeatures> contours) {
+		count = contours.size();
+		if (keys.length < count) {
+			keys = new long[Math.max(count, keys.length * 2)];
+		}
+		for (int i = 0; i < count; i++) {
+			ContourFeatures features = contours.get(i);
+			keys[i] = (long) features.boundsWidth() * features.boundsHeight() << 32 | i;
+		}
+		Arrays.sort(keys, 0, count);
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @param rank 0 for the largest contour
+	 * @return the contour's index in the list that was sorted.
+	 */
+	int index(int rank) {
+		return (int) keys[count - 1 - rank];
+	}
+}
@@ -0,0 +1,71 @@
+package visiontargetfilter;
+
+import java.util.ArrayList;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+
+/**
+ * A contour pipeline turns a camera frame into the list of candidate target
+ * contours handed to the target finder.
+ *
+ * <p>Implemented by the GRIP generated {@link VisionTargetFilter} and by
+ * {@link GripPipeline}, which runs a .grip file loaded at startup.
+ */
+public interface ContourPipeline {
+
+	/**
+	 * Runs the entire pipeline and updates the outputs.
+	 * @param source0 the camera frame to process.
+	 */
+	void process(Mat source0);
+
+	/**
+	 * @return the binary mask produced by the threshold step.
+	 */
+	Mat hslThresholdOutput();
+
+	/**
+	 * @return the contours produced by the last step of the pipeline.
+	 */
+	ArrayList<MatOfPoint> convexHullsOutput();
+
+	/**
+	 * @return the features of the contours produced by the last step, in the same
+	 * order, with whatever the pipeline already measured on them.
+	 */
+	ArrayList<ContourFeatures> convexHullsFeatures();
+
+	/**
+	 * @return how many contours the last frame's mask had before any were filtered,
+	 * or with the component prefilter, how many blobs it had before any were rejected.
+	 */
+	int rawContourCount();
+
+	/**
+	 * Enables or disables the connected components prefilter that runs between the
+	 * threshold and the contour trace.
+	 * @param enabled true to reject blobs by their component statistics before tracing.
+	 */
+	void setComponentPrefilterEnabled(boolean enabled);
+
+	/**
+	 * Sets the part of the frame to look at. Pixels outside it are 0 in the
+	 * threshold output and never traced.
+	 * @param region the crop and exclusions, or null for the whole frame.
+	 */
+	void setRegion(FrameRegion region);
+
+	/**
+	 * Sets when contour filtering has to stop. Contours are filtered largest first,
+	 * and any still unchecked when the deadline passes are dropped.
+	 * @param deadline the System.nanoTime() to stop at, or 0 for no deadline.
+	 */
+	void setDeadline(long deadline);
+
+	/**
+	 * @return true if the last frame's filtering stopped at its deadline, leaving
+	 * contours unchecked.
+	 */
+	boolean missedDeadline();
+}
@@ -0,0 +1,240 @@
+package visiontargetfilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import visionhelper.MatArena;
+
+/**
+ * The part of a camera's frames a contour pipeline looks at: a crop rectangle,
+ * less static exclusions like the robot's own bumper and intake, or everything
+ * above the field perimeter.
+ *
+ * <p>Everything is worked out once for a frame size. Exclusions that cover a
+ * whole edge of the crop shrink it, so their pixels are never color converted,
+ * thresholded or traced. The rest are drawn into a mask that's ANDed with the
+ * thresholded crop, so they're converted but never traced. Outside the crop the
+ * threshold output stays 0, and contours are traced in the crop and offset back
+ * to frame coordinates, so the finder sees the frame it always did.
+ *
+ * <p>Coordinates are pixels in frames of the size given to the constructor, and
+ * are scaled to the frames actually processed.
+ */
+public class FrameRegion {
+
+	private static final Scalar ZERO = new Scalar(0);
+	private static final Scalar KEEP = new Scalar(255);
+
+	private final int width;
+	private final int height;
+	private int[] crop;
+	private final List<int[]> rectangles = new ArrayList<>();
+	private final List<double[]> polygons = new ArrayList<>();
+
+	/* Worked out for the last frame size. */
+	private int preparedWidth = -1;
+	private int preparedHeight = -1;
+	private final Rect roi = new Rect();
+	private final Point offset = new Point();
+	private Mat keep;
+
+	/**
+	 * @param width  width of the frames the coordinates are in
+	 * @param height height of the frames the coordinates are in
+	 */
+	public FrameRegion(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Only look inside this rectangle.
+	 */
+	public void setCrop(int x, int y, int cropWidth, int cropHeight) {
+		crop = new int[] { x, y, cropWidth, cropHeight };
+		preparedWidth = -1;
+	}
+
+	/**
+	 * Never look inside this rectangle.
+	 */
+	public void exclude(int x, int y, int excludeWidth, int excludeHeight) {
+		rectangles.add(new int[] { x, y, excludeWidth, excludeHeight });
+		preparedWidth = -1;
+	}
+
+	/**
+	 * Never look inside this polygon.
+	 * @param points x0, y0, x1, y1, ...
+	 */
+	public void excludePolygon(double[] points) {
+		polygons.add(points.clone());
+		preparedWidth = -1;
+	}
+
+	/**
+	 * Work out the crop and the exclusion mask for a frame size, unless they
+	 * already are.
+	 */
+	void prepare(int frameWidth, int frameHeight) {
+		if (frameWidth == preparedWidth && frameHeight == preparedHeight) {
+			return;
+		}
+		preparedWidth = frameWidth;
+		preparedHeight = frameHeight;
+		double scaleX = frameWidth / (double) width;
+		double scaleY = frameHeight / (double) height;
+
+		int left = 0;
+		int top = 0;
+		int right = frameWidth;
+		int bottom = frameHeight;
+		if (crop != null) {
+			left = clamp((int) Math.floor(crop[0] * scaleX), 0, frameWidth - 1);
+			top = clamp((int) Math.floor(crop[1] * scaleY), 0, frameHeight - 1);
+			right = clamp((int) Math.ceil((crop[0] + crop[2]) * scaleX), left + 1, frameWidth);
+			bottom = clamp((int) Math.ceil((crop[1] + crop[3]) * scaleY), top + 1, frameHeight);
+		}
+
+		/* Scaled exclusions, as left, top, right, bottom. */
+		int[][] excluded = new int[rectangles.size()][];
+		for (int index = 0; index < excluded.length; ++index) {
+			int[] rectangle = rectangles.get(index);
+			excluded[index] = new int[] { (int) Math.floor(rectangle[0] * scaleX), (int) Math.floor(rectangle[1] * scaleY),
+					(int) Math.ceil((rectangle[0] + rectangle[2]) * scaleX),
+					(int) Math.ceil((rectangle[1] + rectangle[3]) * scaleY) };
+		}
+
+		/* Shrink the crop past exclusions that cover a whole edge of it, until none do. */
+		boolean shrunk = true;
+		while (shrunk) {
+			shrunk = false;
+			for (int[] rectangle : excluded) {
+				boolean fullWidth = rectangle[0] <= left && rectangle[2] >= right;
+				boolean fullHeight = rectangle[1] <= top && rectangle[3] >= bottom;
+				if (fullWidth && rectangle[1] <= top && rectangle[3] > top && rectangle[3] < bottom) {
+					top = rectangle[3];
+					shrunk = true;
+				} else if (fullWidth && rectangle[3] >= bottom && rectangle[1] < bottom && rectangle[1] > top) {
+					bottom = rectangle[1];
+					shrunk = true;
+				} else if (fullHeight && rectangle[0] <= left && rectangle[2] > left && rectangle[2] < right) {
+					left = rectangle[2];
+					shrunk = true;
+				} else if (fullHeight && rectangle[2] >= right && rectangle[0] < right && rectangle[0] > left) {
+					right = rectangle[0];
+					shrunk = true;
+				}
+			}
+		}
+		roi.x = left;
+		roi.y = top;
+		roi.width = right - left;
+		roi.height = bottom - top;
+		offset.x = left;
+		offset.y = top;
+
+		/* Draw the exclusions left inside the crop into the mask. */
+		if (keep != null) {
+			keep.release();
+			keep = null;
+		}
+		for (int[] rectangle : excluded) {
+			if (rectangle[0] < right && rectangle[2] > left && rectangle[1] < bottom && rectangle[3] > top) {
+				Imgproc.rectangle(keepMask(), new Point(rectangle[0] - left, rectangle[1] - top),
+						new Point(rectangle[2] - left - 1, rectangle[3] - top - 1), ZERO, -1);
+			}
+		}
+		for (double[] polygon : polygons) {
+			Point[] points = new Point[polygon.length / 2];
+			for (int index = 0; index < points.length; ++index) {
+				points[index] = new Point(polygon[index * 2] * scaleX - left, polygon[index * 2 + 1] * scaleY - top);
+			}
+			MatOfPoint outline = new MatOfPoint(points);
+			Imgproc.fillPoly(keepMask(), Arrays.asList(outline), ZERO);
+			outline.release();
+		}
+	}
+
+	private Mat keepMask() {
+		if (keep == null) {
+			keep = new Mat(roi.height, roi.width, CvType.CV_8UC1, KEEP);
+		}
+		return keep;
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(max, value));
+	}
+
+	/**
+	 * @return the crop of the frame to threshold, valid until the arena's frame ends.
+	 */
+	Mat crop(Mat frame, MatArena arena) {
+		prepare(frame.cols(), frame.rows());
+		return arena.adopt(frame.submat(roi));
+	}
+
+	/**
+	 * Make the threshold output a mask the size of the frame, 0 outside the crop.
+	 * @return the crop of the output to threshold into, valid until the arena's
+	 * frame ends.
+	 */
+	Mat thresholdCrop(Mat frame, Mat output, MatArena arena) {
+		prepare(frame.cols(), frame.rows());
+		if (output.rows() != frame.rows() || output.cols() != frame.cols() || output.type() != CvType.CV_8UC1) {
+			output.create(frame.rows(), frame.cols(), CvType.CV_8UC1);
+			output.setTo(ZERO);
+		}
+		return arena.adopt(output.submat(roi));
+	}
+
+	/**
+	 * Clear the excluded pixels left inside the thresholded crop.
+	 */
+	void applyExclusions(Mat thresholdCrop) {
+		if (keep != null) {
+			Core.bitwise_and(thresholdCrop, keep, thresholdCrop);
+		}
+	}
+
+	/**
+	 * @return the crop of a frame size mask to trace, valid until the arena's frame ends.
+	 */
+	Mat traceCrop(Mat mask, MatArena arena) {
+		prepare(mask.cols(), mask.rows());
+		return arena.adopt(mask.submat(roi));
+	}
+
+	/**
+	 * @return where the crop's top left corner is in the frame.
+	 */
+	Point offset() {
+		return offset;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder description = new StringBuilder();
+		description.append(crop != null ? "crop " + Arrays.toString(crop) : "whole frame");
+		if (!rectangles.isEmpty() || !polygons.isEmpty()) {
+			description.append(String.format(" less %d rectangles and %d polygons", rectangles.size(), polygons.size()));
+		}
+		description.append(String.format(" of %dx%d", width, height));
+		if (preparedWidth > 0) {
+			description.append(String.format(", looking at %dx%d at (%d, %d) of %dx%d frames", roi.width, roi.height, roi.x,
+					roi.y, preparedWidth, preparedHeight));
+		}
+		return description.toString();
+	}
+}
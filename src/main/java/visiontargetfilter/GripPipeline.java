@@ -0,0 +1,733 @@
+package visiontargetfilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.*;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import visionhelper.MatArena;
+import visionhelper.VisionEvents;
+
+/**
+ * GripPipeline class.
+ *
+ * <p>Runs a pipeline saved by GRIP (a .grip file) without generating and
+ * compiling code for it. The file is parsed once at startup into a chain of
+ * stages. Supported steps are HSL Threshold, Find Contours, Filter Contours
+ * and Convex Hulls, connected one after the other starting at the camera.
+ *
+ * <p>Adjacent stages are fused where they can share work:
+ * <ul>
+ * <li>Find Contours followed by Filter Contours traces contours with the
+ * filter's bounds known, so the component prefilter can run on the fresh mask.
+ * <li>Filter Contours followed by Convex Hulls emits the hull computed for the
+ * solidity test instead of computing it a second time.
+ * </ul>
+ *
+ * <p>All Mats, point buffers and output hulls are kept between frames.
+ *
+ * <p>Pipelines given the same {@link StageCache} share the output of any stage
+ * that does the same work on the same frame, such as the BGR to HLS conversion
+ * or an identical threshold.
+ */
+public class GripPipeline implements ContourPipeline {
+
+	static {
+		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+	}
+
+	/** What flows between two stages. */
+	private enum Kind {
+		IMAGE, MASK, CONTOURS
+	}
+
+	/** A step as it was read from the .grip file. */
+	private static class GripStep {
+		final String name;
+		final List<List<String>> inputs = new ArrayList<>();
+
+		GripStep(String name) {
+			this.name = name;
+		}
+
+		List<String> input(int socket) throws IOException {
+			if (socket >= inputs.size() || inputs.get(socket).isEmpty()) {
+				throw new IOException("step '" + name + "' has no value for socket " + socket);
+			}
+			return inputs.get(socket);
+		}
+
+		double number(int socket) throws IOException {
+			return Double.parseDouble(input(socket).get(0));
+		}
+
+		double[] range(int socket) throws IOException {
+			List<String> values = input(socket);
+			if (values.size() != 2) {
+				throw new IOException("step '" + name + "' socket " + socket + " is not a range");
+			}
+			return new double[] { Double.parseDouble(values.get(0)), Double.parseDouble(values.get(1)) };
+		}
+
+		boolean bool(int socket) throws IOException {
+			return Boolean.parseBoolean(input(socket).get(0));
+		}
+	}
+
+	private final String description;
+	private final List<Stage> stages = new ArrayList<>();
+
+	//Outputs
+	private final Mat hls = new Mat();
+	private final Mat hslThresholdOutput = new Mat();
+	private final ArrayList<MatOfPoint> findContoursOutput = new ArrayList<MatOfPoint>();
+	private final ArrayList<MatOfPoint> filterContoursOutput = new ArrayList<MatOfPoint>();
+	private final ArrayList<MatOfPoint> convexHullsOutput = new ArrayList<MatOfPoint>();
+
+	/*
+	 * Contour stages hand each other, and the cache, feature records, so a contour
+	 * is measured once however many stages and pipelines look at it.
+	 */
+	private final ContourFeatures.Pool featurePool = new ContourFeatures.Pool();
+	private final ArrayList<ContourFeatures> findContoursFeatures = new ArrayList<ContourFeatures>();
+	private final ArrayList<ContourFeatures> filterContoursFeatures = new ArrayList<ContourFeatures>();
+	private final ArrayList<ContourFeatures> convexHullsFeatures = new ArrayList<ContourFeatures>();
+	private static final ArrayList<ContourFeatures> NO_FEATURES = new ArrayList<ContourFeatures>();
+
+	private Mat currentImage;
+	private Mat currentMask = hslThresholdOutput;
+	private ArrayList<ContourFeatures> currentFeatures;
+
+	private static final String CONVERSION_KEY = "source|BGR2HLS";
+	private StageCache stageCache;
+
+	private boolean componentPrefilterEnabled = false;
+	private final ComponentPrefilter componentPrefilter = new ComponentPrefilter();
+	private int rawContourCount = 0;
+
+	/* The crop and exclusions shared by every pipeline of the camera, or null. */
+	private FrameRegion region;
+	private static final Point NO_OFFSET = new Point();
+
+	/* When filtering has to stop, 0 for never, and whether this frame's did. */
+	private long deadline = 0;
+	private boolean deadlineMissed = false;
+
+	/* Owns the contours findContours makes, until the next frame. */
+	private final MatArena arena = new MatArena();
+
+	/**
+	 * Loads a .grip file.
+	 * @param path the .grip file to load.
+	 * @return the pipeline, ready to process frames.
+	 * @throws IOException if the file can't be read or uses steps that aren't supported.
+	 */
+	public static GripPipeline load(String path) throws IOException {
+		Document document;
+		try {
+			document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(path));
+		} catch (ParserConfigurationException | SAXException e) {
+			throw new IOException("could not parse '" + path + "': " + e.getMessage(), e);
+		}
+
+		List<GripStep> steps = new ArrayList<>();
+		NodeList stepNodes = document.getElementsByTagName("grip:Step");
+		for (int index = 0; index < stepNodes.getLength(); ++index) {
+			Element stepElement = (Element) stepNodes.item(index);
+			GripStep step = new GripStep(stepElement.getAttribute("name"));
+			for (Element input : childElements(stepElement, "grip:Input")) {
+				int socket = Integer.parseInt(input.getAttribute("socket"));
+				while (step.inputs.size() <= socket) {
+					step.inputs.add(new ArrayList<>());
+				}
+				for (Element value : childElements(input, "value")) {
+					List<Element> items = childElements(value, null);
+					if (items.isEmpty()) {
+						step.inputs.get(socket).add(value.getTextContent().trim());
+					}
+					for (Element item : items) {
+						step.inputs.get(socket).add(item.getTextContent().trim());
+					}
+				}
+			}
+			steps.add(step);
+		}
+
+		/*
+		 * upstream[i] is the step feeding step i, or -1 for the camera. Only socket 0
+		 * of each step may be connected; everything else has to be a constant.
+		 */
+		int[] upstream = new int[steps.size()];
+		Arrays.fill(upstream, -2);
+		NodeList connectionNodes = document.getElementsByTagName("grip:Connection");
+		for (int index = 0; index < connectionNodes.getLength(); ++index) {
+			Element connection = (Element) connectionNodes.item(index);
+			List<Element> outputs = childElements(connection, "grip:Output");
+			List<Element> inputs = childElements(connection, "grip:Input");
+			if (outputs.size() != 1 || inputs.size() != 1) {
+				throw new IOException("'" + path + "' has a malformed connection");
+			}
+			Element output = outputs.get(0);
+			Element input = inputs.get(0);
+			int inputStep = Integer.parseInt(input.getAttribute("step"));
+			if (!"0".equals(input.getAttribute("socket")) || !"0".equals(output.getAttribute("socket"))
+					|| inputStep < 0 || inputStep >= steps.size()) {
+				throw new IOException("'" + path + "' connects sockets other than the main input and output");
+			}
+			upstream[inputStep] = output.hasAttribute("source") ? -1 : Integer.parseInt(output.getAttribute("step"));
+		}
+
+		/* Follow the connections from the camera to put the steps in running order. */
+		List<GripStep> chain = new ArrayList<>();
+		int previous = -1;
+		for (int link = 0; link < steps.size(); ++link) {
+			int next = -1;
+			for (int index = 0; index < steps.size(); ++index) {
+				if (upstream[index] == previous) {
+					next = index;
+					break;
+				}
+			}
+			if (next < 0) {
+				break;
+			}
+			chain.add(steps.get(next));
+			previous = next;
+		}
+		if (chain.isEmpty() || chain.size() != steps.size()) {
+			throw new IOException("'" + path + "' isn't a single chain of steps starting at the camera");
+		}
+
+		return new GripPipeline(path, chain);
+	}
+
+	/**
+	 * Builds the chain VisionTargetFilter was generated from (HSL Threshold, Find
+	 * Contours, Filter Contours, Convex Hulls) with the given thresholds and
+	 * VisionTargetFilter's values for everything else.
+	 * @param luminance the min and max luminance
+	 * @param minArea minimum area of a contour that will be kept
+	 * @param minRatio minimum ratio of width to height
+	 * @param maxRatio maximum ratio of width to height
+	 * @return the pipeline, ready to process frames.
+	 */
+	public static GripPipeline withThresholds(double[] luminance, double minArea, double minRatio,
+			double maxRatio) {
+		GripStep threshold = new GripStep("HSL Threshold");
+		threshold.inputs.add(new ArrayList<>());
+		threshold.inputs.add(Arrays.asList("0.0", "180.0"));
+		threshold.inputs.add(Arrays.asList("0.0", "255.0"));
+		threshold.inputs.add(Arrays.asList(Double.toString(luminance[0]), Double.toString(luminance[1])));
+
+		GripStep contours = new GripStep("Find Contours");
+		contours.inputs.add(new ArrayList<>());
+		contours.inputs.add(Arrays.asList("true"));
+
+		GripStep filter = new GripStep("Filter Contours");
+		filter.inputs.add(new ArrayList<>());
+		for (double value : new double[] { minArea, 17.0, 0.0, 1000.0, 0.0, 1000.0 }) {
+			filter.inputs.add(Arrays.asList(Double.toString(value)));
+		}
+		filter.inputs.add(Arrays.asList("0", "100"));
+		for (double value : new double[] { 10000.0, 0.0, minRatio, maxRatio }) {
+			filter.inputs.add(Arrays.asList(Double.toString(value)));
+		}
+
+		GripStep hulls = new GripStep("Convex Hulls");
+		hulls.inputs.add(new ArrayList<>());
+
+		try {
+			return new GripPipeline("thresholds", Arrays.asList(threshold, contours, filter, hulls));
+		} catch (IOException e) {
+			/* The chain is built right here, so it's always valid. */
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static List<Element> childElements(Element parent, String tagName) {
+		List<Element> children = new ArrayList<>();
+		for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node instanceof Element && (tagName == null || tagName.equals(node.getNodeName()))) {
+				children.add((Element) node);
+			}
+		}
+		return children;
+	}
+
+	private GripPipeline(String path, List<GripStep> chain) throws IOException {
+		Kind kind = Kind.IMAGE;
+		for (GripStep step : chain) {
+			switch (step.name) {
+			case "HSL Threshold":
+				expect(kind, Kind.IMAGE, step);
+				stages.add(new HslThresholdStage(step.range(1), step.range(2), step.range(3)));
+				kind = Kind.MASK;
+				break;
+			case "Find Contours":
+				expect(kind, Kind.MASK, step);
+				stages.add(new FindContoursStage(step.bool(1)));
+				kind = Kind.CONTOURS;
+				break;
+			case "Filter Contours":
+				expect(kind, Kind.CONTOURS, step);
+				stages.add(new FilterContoursStage(step.number(1), step.number(2), step.number(3),
+						step.number(4), step.number(5), step.number(6), step.range(7), step.number(8),
+						step.number(9), step.number(10), step.number(11)));
+				break;
+			case "Convex Hulls":
+				expect(kind, Kind.CONTOURS, step);
+				stages.add(new ConvexHullsStage());
+				break;
+			default:
+				throw new IOException("'" + path + "' uses the unsupported step '" + step.name + "'");
+			}
+		}
+		if (kind != Kind.CONTOURS) {
+			throw new IOException("'" + path + "' doesn't produce contours");
+		}
+
+		fuseStages();
+		assignKeys();
+
+		StringBuilder builder = new StringBuilder(new File(path).getName()).append(": ");
+		for (int index = 0; index < stages.size(); ++index) {
+			builder.append(index == 0 ? "" : " -> ").append(stages.get(index).name);
+		}
+		description = builder.toString();
+	}
+
+	private static void expect(Kind actual, Kind expected, GripStep step) throws IOException {
+		if (actual != expected) {
+			throw new IOException("step '" + step.name + "' can't take " + actual + " as its input");
+		}
+	}
+
+	private void fuseStages() {
+		for (int index = 0; index + 1 < stages.size(); ++index) {
+			Stage stage = stages.get(index);
+			Stage next = stages.get(index + 1);
+			if (stage instanceof FindContoursStage && next instanceof FilterContoursStage) {
+				((FindContoursStage) stage).bounds = (FilterContoursStage) next;
+			} else if (stage instanceof FilterContoursStage && next instanceof ConvexHullsStage) {
+				((FilterContoursStage) stage).emitHulls = true;
+				stage.name = stage.name + "+" + next.name;
+				stages.remove(index + 1);
+			}
+		}
+	}
+
+	/**
+	 * Chains each stage's parameters onto the key of the stage feeding it, both
+	 * with and without the component prefilter. A prefiltered Find Contours drops
+	 * blobs by the Filter Contours bounds, so those are part of its key.
+	 */
+	private void assignKeys() {
+		String key = "source";
+		String prefilteredKey = "source";
+		for (Stage stage : stages) {
+			key = key + "|" + stage.parameters();
+			prefilteredKey = prefilteredKey + "|" + stage.parameters();
+			if (stage instanceof FindContoursStage && ((FindContoursStage) stage).bounds != null) {
+				prefilteredKey = prefilteredKey + "+prefilter" + ((FindContoursStage) stage).bounds.parameters();
+			}
+			stage.key = key;
+			stage.prefilteredKey = prefilteredKey;
+		}
+	}
+
+	/**
+	 * @param prefiltered true for the keys used with the component prefilter on
+	 * @return the key each stage's output is shared under, in running order.
+	 */
+	public List<String> getCacheKeys(boolean prefiltered) {
+		List<String> keys = new ArrayList<>();
+		for (Stage stage : stages) {
+			keys.add(prefiltered ? stage.prefilteredKey : stage.key);
+		}
+		return keys;
+	}
+
+	/**
+	 * Shares stage outputs with the other pipelines using the same cache.
+	 * @param stageCache the cache for the frame being processed, or null to share nothing.
+	 */
+	public void setStageCache(StageCache stageCache) {
+		this.stageCache = stageCache;
+	}
+
+	/**
+	 * @return a one line description of the stages that run, after fusion.
+	 */
+	public String describe() {
+		return description;
+	}
+
+	/**
+	 * Runs the entire pipeline and updates the outputs.
+	 */
+	@Override
+	public void process(Mat source0) {
+		arena.endFrame();
+		featurePool.endFrame();
+		currentImage = source0;
+		currentMask = hslThresholdOutput;
+		currentFeatures = null;
+		deadlineMissed = false;
+		for (Stage stage : stages) {
+			stage.run();
+		}
+		convexHullsOutput.clear();
+		for (ContourFeatures features : convexHullsFeatures()) {
+			convexHullsOutput.add(features.contour());
+		}
+	}
+
+	@Override
+	public void setComponentPrefilterEnabled(boolean enabled) {
+		componentPrefilterEnabled = enabled;
+	}
+
+	@Override
+	public void setRegion(FrameRegion region) {
+		this.region = region;
+		/* Outside the region the output has to start out 0. */
+		hslThresholdOutput.release();
+	}
+
+	@Override
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	@Override
+	public boolean missedDeadline() {
+		return deadlineMissed;
+	}
+
+	/**
+	 * @return Mat output from HSL_Threshold.
+	 */
+	@Override
+	public Mat hslThresholdOutput() {
+		return currentMask;
+	}
+
+	/**
+	 * @return ArrayList<MatOfPoint> output from Find_Contours.
+	 */
+	public ArrayList<MatOfPoint> findContoursOutput() {
+		return findContoursOutput;
+	}
+
+	/**
+	 * @return ArrayList<MatOfPoint> output from Filter_Contours. Empty when the
+	 *         filter is fused with Convex_Hulls.
+	 */
+	public ArrayList<MatOfPoint> filterContoursOutput() {
+		return filterContoursOutput;
+	}
+
+	/**
+	 * @return the contours produced by the last stage of the pipeline.
+	 */
+	@Override
+	public ArrayList<MatOfPoint> convexHullsOutput() {
+		return convexHullsOutput;
+	}
+
+	@Override
+	public ArrayList<ContourFeatures> convexHullsFeatures() {
+		return currentFeatures != null ? currentFeatures : NO_FEATURES;
+	}
+
+	@Override
+	public int rawContourCount() {
+		return rawContourCount;
+	}
+
+	private abstract class Stage {
+		String name;
+		String key;
+		String prefilteredKey;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return the parameters that decide this stage's output for a given input.
+		 */
+		abstract String parameters();
+
+		/**
+		 * @return the Mat or feature list this stage produced from the current input.
+		 */
+		abstract Object compute();
+
+		void run() {
+			VisionEvents.FilterStep event = new VisionEvents.FilterStep();
+			event.begin();
+			int inputCount = currentFeatures != null ? currentFeatures.size() : 0;
+			String cacheKey = componentPrefilterEnabled ? prefilteredKey : key;
+			Object output = stageCache != null ? stageCache.get(cacheKey) : null;
+			event.shared = output != null;
+			if (output == null) {
+				output = compute();
+				/* Don't share a partial output; a pipeline with time left should redo it. */
+				if (stageCache != null && !deadlineMissed) {
+					stageCache.put(cacheKey, output);
+				}
+			}
+			if (output instanceof Mat) {
+				currentImage = (Mat) output;
+				currentMask = currentImage;
+			} else {
+				@SuppressWarnings("unchecked")
+				ArrayList<ContourFeatures> features = (ArrayList<ContourFeatures>) output;
+				currentFeatures = features;
+			}
+			if (event.shouldCommit()) {
+				event.step = name;
+				event.inputCount = inputCount;
+				event.outputCount = currentFeatures != null ? currentFeatures.size() : 0;
+				event.frameWidth = currentImage.cols();
+				event.frameHeight = currentImage.rows();
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Segment an image based on hue, saturation, and luminance ranges. A raw YUYV
+	 * frame (two channels) is segmented on its Y channel alone, using the luminance
+	 * range, without any color conversion.
+	 */
+	private class HslThresholdStage extends Stage {
+		private final Scalar low;
+		private final Scalar high;
+		private final Scalar lumaLow;
+		private final Scalar lumaHigh;
+
+		HslThresholdStage(double[] hue, double[] sat, double[] lum) {
+			super("HSL Threshold");
+			low = new Scalar(hue[0], lum[0], sat[0]);
+			high = new Scalar(hue[1], lum[1], sat[1]);
+			lumaLow = new Scalar(lum[0], 0);
+			lumaHigh = new Scalar(lum[1], 255);
+		}
+
+		@Override
+		String parameters() {
+			return "HSL" + low + high;
+		}
+
+		@Override
+		Object compute() {
+			/* With a region, only its crop is converted and thresholded. */
+			Mat input = currentImage;
+			Mat output = hslThresholdOutput;
+			if (region != null) {
+				input = region.crop(currentImage, arena);
+				output = region.thresholdCrop(currentImage, hslThresholdOutput, arena);
+			}
+			if (input.channels() == 2) {
+				Core.inRange(input, lumaLow, lumaHigh, output);
+			} else {
+				Mat converted = stageCache != null ? (Mat) stageCache.get(CONVERSION_KEY) : null;
+				if (converted == null) {
+					Imgproc.cvtColor(input, hls, Imgproc.COLOR_BGR2HLS);
+					converted = hls;
+					if (stageCache != null) {
+						stageCache.put(CONVERSION_KEY, converted);
+					}
+				}
+				Core.inRange(converted, low, high, output);
+			}
+			if (region != null) {
+				region.applyExclusions(output);
+			}
+			return hslThresholdOutput;
+		}
+	}
+
+	private class FindContoursStage extends Stage {
+		private final boolean externalOnly;
+		private final Mat hierarchy = new Mat();
+		FilterContoursStage bounds;
+
+		FindContoursStage(boolean externalOnly) {
+			super("Find Contours");
+			this.externalOnly = externalOnly;
+		}
+
+		@Override
+		String parameters() {
+			return "Contours" + externalOnly;
+		}
+
+		/**
+		 * The raw count is shared alongside the contours, under its own key, so a
+		 * pipeline that reuses another's contours reports the same count.
+		 */
+		@Override
+		void run() {
+			super.run();
+			Object shared = stageCache != null ? stageCache.get(rawCountKey()) : null;
+			if (shared != null) {
+				rawContourCount = (Integer) shared;
+			}
+		}
+
+		private String rawCountKey() {
+			return (componentPrefilterEnabled ? prefilteredKey : key) + "|raw";
+		}
+
+		@Override
+		Object compute() {
+			/* With a region, only its crop of the mask is traced. */
+			Mat input = region != null ? region.traceCrop(currentImage, arena) : currentImage;
+			Point offset = region != null ? region.offset() : NO_OFFSET;
+			if (componentPrefilterEnabled && bounds != null) {
+				componentPrefilter.process(input, offset, externalOnly, bounds.minArea, bounds.minWidth,
+						bounds.maxWidth, bounds.minHeight, bounds.maxHeight, bounds.minRatio, bounds.maxRatio,
+						findContoursOutput);
+			} else {
+				findContoursOutput.clear();
+				Imgproc.findContours(input, findContoursOutput, hierarchy,
+						externalOnly ? Imgproc.RETR_EXTERNAL : Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE, offset);
+			}
+			arena.adoptAll(findContoursOutput);
+			rawContourCount = componentPrefilterEnabled && bounds != null ? componentPrefilter.getComponentCount()
+					: findContoursOutput.size();
+			if (stageCache != null) {
+				stageCache.put(rawCountKey(), rawContourCount);
+			}
+			findContoursFeatures.clear();
+			for (MatOfPoint contour : findContoursOutput) {
+				findContoursFeatures.add(featurePool.of(contour));
+			}
+			return findContoursFeatures;
+		}
+	}
+
+	/**
+	 * Filters out contours that do not meet certain criteria. The cheap tests run
+	 * first, and the perimeter is measured on the contour's own points instead of a
+	 * MatOfPoint2f copy. Fused with Convex_Hulls, it hands on the hulls its
+	 * solidity test made.
+	 */
+	private class FilterContoursStage extends Stage {
+		final double minArea;
+		final double minPerimeter;
+		final double minWidth;
+		final double maxWidth;
+		final double minHeight;
+		final double maxHeight;
+		final double[] solidity;
+		final double maxVertexCount;
+		final double minVertexCount;
+		final double minRatio;
+		final double maxRatio;
+		private final boolean solidityActive;
+		private final ContourOrder contourOrder = new ContourOrder();
+		boolean emitHulls = false;
+
+		FilterContoursStage(double minArea, double minPerimeter, double minWidth, double maxWidth,
+				double minHeight, double maxHeight, double[] solidity, double maxVertexCount,
+				double minVertexCount, double minRatio, double maxRatio) {
+			super("Filter Contours");
+			this.minArea = minArea;
+			this.minPerimeter = minPerimeter;
+			this.minWidth = minWidth;
+			this.maxWidth = maxWidth;
+			this.minHeight = minHeight;
+			this.maxHeight = maxHeight;
+			this.solidity = solidity;
+			this.maxVertexCount = maxVertexCount;
+			this.minVertexCount = minVertexCount;
+			this.minRatio = minRatio;
+			this.maxRatio = maxRatio;
+			solidityActive = solidity[0] > 0 || solidity[1] < 100;
+		}
+
+		@Override
+		String parameters() {
+			return "Filter" + Arrays.toString(new double[] { minArea, minPerimeter, minWidth, maxWidth,
+					minHeight, maxHeight, solidity[0], solidity[1], maxVertexCount, minVertexCount, minRatio,
+					maxRatio }) + (emitHulls ? "+Hulls" : "");
+		}
+
+		@Override
+		Object compute() {
+			ArrayList<ContourFeatures> output = emitHulls ? convexHullsFeatures : filterContoursFeatures;
+			output.clear();
+			filterContoursOutput.clear();
+			/* Largest first, so a missed deadline drops the smallest contours. */
+			contourOrder.sort(currentFeatures);
+			for (int rank = 0; rank < contourOrder.size(); rank++) {
+				if (deadline != 0 && System.nanoTime() - deadline > 0) {
+					deadlineMissed = true;
+					break;
+				}
+				final ContourFeatures contour = currentFeatures.get(contourOrder.index(rank));
+				final int vertices = contour.vertexCount();
+				if (vertices < minVertexCount || vertices > maxVertexCount) continue;
+				final int width = contour.boundsWidth();
+				final int height = contour.boundsHeight();
+				if (width < minWidth || width > maxWidth) continue;
+				if (height < minHeight || height > maxHeight) continue;
+				final double ratio = width / (double) height;
+				if (ratio < minRatio || ratio > maxRatio) continue;
+				final double area = contour.area();
+				if (area < minArea) continue;
+				if (contour.perimeter() < minPerimeter) continue;
+				if (solidityActive) {
+					final double solid = 100 * area / contour.hullArea();
+					if (solid < solidity[0] || solid > solidity[1]) continue;
+				}
+				if (emitHulls) {
+					output.add(featurePool.hullOf(contour));
+				} else {
+					output.add(contour);
+					filterContoursOutput.add(contour.contour());
+				}
+			}
+			return output;
+		}
+	}
+
+	/**
+	 * Compute the convex hulls of contours.
+	 */
+	private class ConvexHullsStage extends Stage {
+		ConvexHullsStage() {
+			super("Convex Hulls");
+		}
+
+		@Override
+		String parameters() {
+			return "Hulls";
+		}
+
+		@Override
+		Object compute() {
+			convexHullsFeatures.clear();
+			for (ContourFeatures contour : currentFeatures) {
+				convexHullsFeatures.add(featurePool.hullOf(contour));
+			}
+			return convexHullsFeatures;
+		}
+	}
+}
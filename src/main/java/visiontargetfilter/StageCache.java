@@ -0,0 +1,63 @@
+package visiontargetfilter;
+
+import java.util.HashMap;
+
+/**
+ * Holds the stage outputs of the frame currently being processed so that
+ * several pipelines run on the same frame compute a shared stage only once.
+ *
+ * <p>Stages are looked up by a key made of their parameters and the key of the
+ * stage feeding them, so two stages share an output only if they did the same
+ * work on the same input. Every pipeline sharing a cache must be given the same
+ * frame, and {@link #beginFrame()} must be called before the first of them runs.
+ * A cache is used from the vision thread only and isn't synchronized.
+ */
+public class StageCache {
+
+	private final HashMap<String, Object> outputs = new HashMap<>();
+	private long hits;
+	private long misses;
+
+	/**
+	 * Forgets the outputs of the previous frame.
+	 */
+	public void beginFrame() {
+		outputs.clear();
+	}
+
+	/**
+	 * @param key the key of the stage.
+	 * @return the output that stage produced for this frame, or null if it hasn't run yet.
+	 */
+	public Object get(String key) {
+		Object output = outputs.get(key);
+		if (output != null) {
+			hits++;
+		} else {
+			misses++;
+		}
+		return output;
+	}
+
+	/**
+	 * Shares a stage's output with the other pipelines for the rest of this frame.
+	 * The output must not be modified until the next frame begins.
+	 */
+	public void put(String key, Object output) {
+		outputs.put(key, output);
+	}
+
+	/**
+	 * @return how many stage runs were saved by reusing a shared output.
+	 */
+	public long getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return how many stage runs had to be computed.
+	 */
+	public long getMisses() {
+		return misses;
+	}
+}
@@ -16,6 +16,9 @@ import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.*;
 import org.opencv.objdetect.*;
 
+import visionhelper.MatArena;
+import visionhelper.VisionEvents;
+
 /**
 * VisionTargetFilter class.
 *
@@ -23,7 +26,7 @@ import org.opencv.objdetect.*;
 *
 * @author GRIP
 */
-public class VisionTargetFilter {
+public class VisionTargetFilter implements ContourPipeline {
 
 	//Outputs
 	private Mat hslThresholdOutput = new Mat();
@@ -31,6 +34,31 @@ public class VisionTargetFilter {
 	private ArrayList<MatOfPoint> filterContoursOutput = new ArrayList<MatOfPoint>();
 	private ArrayList<MatOfPoint> convexHullsOutput = new ArrayList<MatOfPoint>();
 
+	//Each output contour's features, measured once and shared with the finder
+	private ContourFeatures.Pool featurePool = new ContourFeatures.Pool();
+	private ArrayList<ContourFeatures> findContoursFeatures = new ArrayList<ContourFeatures>();
+	private ArrayList<ContourFeatures> filterContoursFeatures = new ArrayList<ContourFeatures>();
+	private ArrayList<ContourFeatures> convexHullsFeatures = new ArrayList<ContourFeatures>();
+
+	//Connected components prefilter
+	private boolean componentPrefilterEnabled = false;
+	private ComponentPrefilter componentPrefilter = new ComponentPrefilter();
+	private int rawContourCount = 0;
+
+	//Crop and exclusions, or null for the whole frame
+	private FrameRegion region = null;
+	private Mat hls = new Mat();
+	private static final Point NO_OFFSET = new Point();
+
+	//Processing deadline
+	private long deadline = 0;
+	private boolean deadlineMissed = false;
+	private ContourOrder contourOrder = new ContourOrder();
+
+	//Native objects for the current frame
+	private MatArena arena = new MatArena();
+	private Mat findContoursHierarchy = new Mat();
+
 	static {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 	}
@@ -38,21 +66,33 @@ public class VisionTargetFilter {
 	/**
 	 * This is the primary method that runs the entire pipeline and updates the outputs.
 	 */
+	@Override
 	public void process(Mat source0) {
-		// Step HSL_Threshold0:
+		// Release the contours and hulls of the previous frame.
+		arena.endFrame();
+		featurePool.endFrame();
+		deadlineMissed = false;
+
+		VisionEvents.FilterStep stepEvent = new VisionEvents.FilterStep();
+		stepEvent.begin();
+
+		// Step HSL_Threshold0 (on the region's crop only, if there is one):
 		Mat hslThresholdInput = source0;
+		Mat hslThresholdMask = hslThresholdOutput;
+		if (region != null) {
+			hslThresholdInput = region.crop(source0, arena);
+			hslThresholdMask = region.thresholdCrop(source0, hslThresholdOutput, arena);
+		}
 		double[] hslThresholdHue = {0.0, 180.0};
 		double[] hslThresholdSaturation = {0.0, 255.0};
 		double[] hslThresholdLuminance = {182.1563231496473, 254.8189948985966};
-		hslThreshold(hslThresholdInput, hslThresholdHue, hslThresholdSaturation, hslThresholdLuminance, hslThresholdOutput);
-
-		// Step Find_Contours0:
-		Mat findContoursInput = hslThresholdOutput;
-		boolean findContoursExternalOnly = true;
-		findContours(findContoursInput, findContoursExternalOnly, findContoursOutput);
+		hslThreshold(hslThresholdInput, hslThresholdHue, hslThresholdSaturation, hslThresholdLuminance, hslThresholdMask);
+		if (region != null) {
+			region.applyExclusions(hslThresholdMask);
+		}
+		stepEvent = commitStep(stepEvent, "HSL_Threshold0", source0, 0, 0);
 
-		// Step Filter_Contours0:
-		ArrayList<MatOfPoint> filterContoursContours = findContoursOutput;
+		// Step Filter_Contours0 (bounds are declared early so Find_Contours0 can prefilter with them):
 		double filterContoursMinArea = 48.0;
 		double filterContoursMinPerimeter = 17.0;
 		double filterContoursMinWidth = 0.0;
@@ -64,18 +104,93 @@ public class VisionTargetFilter {
 		double filterContoursMinVertices = 0.0;
 		double filterContoursMinRatio = 0.3333;
 		double filterContoursMaxRatio = 0.9;
-		filterContours(filterContoursContours, filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth, filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight, filterContoursSolidity, filterContoursMaxVertices, filterContoursMinVertices, filterContoursMinRatio, filterContoursMaxRatio, filterContoursOutput);
+
+		// Step Find_Contours0:
+		Mat findContoursInput = hslThresholdMask;
+		Point findContoursOffset = region != null ? region.offset() : NO_OFFSET;
+		boolean findContoursExternalOnly = true;
+		if (componentPrefilterEnabled) {
+			componentPrefilter.process(findContoursInput, findContoursOffset, findContoursExternalOnly, filterContoursMinArea, filterContoursMinWidth, filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight, filterContoursMinRatio, filterContoursMaxRatio, findContoursOutput);
+		}
+		else {
+			findContours(findContoursInput, findContoursOffset, findContoursExternalOnly, findContoursOutput);
+		}
+		arena.adoptAll(findContoursOutput);
+		rawContourCount = componentPrefilterEnabled ? componentPrefilter.getComponentCount() : findContoursOutput.size();
+		findContoursFeatures.clear();
+		for (MatOfPoint contour : findContoursOutput) {
+			findContoursFeatures.add(featurePool.of(contour));
+		}
+		stepEvent = commitStep(stepEvent, componentPrefilterEnabled ? "Find_Contours0+Prefilter" : "Find_Contours0", source0, 0, findContoursOutput.size());
+
+		ArrayList<ContourFeatures> filterContoursContours = findContoursFeatures;
+		filterContours(filterContoursContours, filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth, filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight, filterContoursSolidity, filterContoursMaxVertices, filterContoursMinVertices, filterContoursMinRatio, filterContoursMaxRatio, filterContoursOutput, filterContoursFeatures);
+		stepEvent = commitStep(stepEvent, "Filter_Contours0", source0, filterContoursContours.size(), filterContoursOutput.size());
 
 		// Step Convex_Hulls0:
-		ArrayList<MatOfPoint> convexHullsContours = filterContoursOutput;
-		convexHulls(convexHullsContours, convexHullsOutput);
+		ArrayList<ContourFeatures> convexHullsContours = filterContoursFeatures;
+		convexHulls(convexHullsContours, convexHullsOutput, convexHullsFeatures);
+		commitStep(stepEvent, "Convex_Hulls0", source0, convexHullsContours.size(), convexHullsOutput.size());
+
+	}
+
+	/**
+	 * Commits the flight recorder event timing a step and begins the one for the next step.
+	 */
+	private VisionEvents.FilterStep commitStep(VisionEvents.FilterStep event, String step, Mat source,
+		int inputCount, int outputCount) {
+		if (event.shouldCommit()) {
+			event.step = step;
+			event.inputCount = inputCount;
+			event.outputCount = outputCount;
+			event.frameWidth = source.cols();
+			event.frameHeight = source.rows();
+			event.commit();
+		}
+		VisionEvents.FilterStep next = new VisionEvents.FilterStep();
+		next.begin();
+		return next;
+	}
+
+	@Override
+	public void setComponentPrefilterEnabled(boolean enabled) {
+		componentPrefilterEnabled = enabled;
+	}
+
+	@Override
+	public void setRegion(FrameRegion region) {
+		this.region = region;
+		// Outside the region the output has to start out 0.
+		hslThresholdOutput.release();
+	}
+
+	@Override
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+	}
+
+	@Override
+	public boolean missedDeadline() {
+		return deadlineMissed;
+	}
 
+	@Override
+	public int rawContourCount() {
+		return rawContourCount;
+	}
+
+	/**
+	 * @return true if the connected components prefilter is enabled.
+	 */
+	public boolean isComponentPrefilterEnabled() {
+		return componentPrefilterEnabled;
 	}
 
 	/**
 	 * This method is a generated getter for the output of a HSL_Threshold.
 	 * @return Mat output from HSL_Threshold.
 	 */
+	@Override
 	public Mat hslThresholdOutput() {
 		return hslThresholdOutput;
 	}
@@ -100,14 +215,23 @@ public class VisionTargetFilter {
 	 * This method is a generated getter for the output of a Convex_Hulls.
 	 * @return ArrayList<MatOfPoint> output from Convex_Hulls.
 	 */
+	@Override
 	public ArrayList<MatOfPoint> convexHullsOutput() {
 		return convexHullsOutput;
 	}
 
+	@Override
+	public ArrayList<ContourFeatures> convexHullsFeatures() {
+		return convexHullsFeatures;
+	}
+
 
 	/**
 	 * Segment an image based on hue, saturation, and luminance ranges.
 	 *
+	 * <p>A raw YUYV frame (two channels) is segmented on its Y channel alone, using
+	 * the luminance range, without any color conversion.
+	 *
 	 * @param input The image on which to perform the HSL threshold.
 	 * @param hue The min and max hue
 	 * @param sat The min and max saturation
@@ -116,8 +240,12 @@ public class VisionTargetFilter {
 	 */
 	private void hslThreshold(Mat input, double[] hue, double[] sat, double[] lum,
 		Mat out) {
-		Imgproc.cvtColor(input, out, Imgproc.COLOR_BGR2HLS);
-		Core.inRange(out, new Scalar(hue[0], lum[0], sat[0]),
+		if (input.channels() == 2) {
+			Core.inRange(input, new Scalar(lum[0], 0), new Scalar(lum[1], 255), out);
+			return;
+		}
+		Imgproc.cvtColor(input, hls, Imgproc.COLOR_BGR2HLS);
+		Core.inRange(hls, new Scalar(hue[0], lum[0], sat[0]),
 			new Scalar(hue[1], lum[1], sat[1]), out);
 	}
 
@@ -128,9 +256,9 @@ public class VisionTargetFilter {
 	 * @param maskSize the size of the mask.
 	 * @param output The image in which to store the output.
 	 */
-	private void findContours(Mat input, boolean externalOnly,
+	private void findContours(Mat input, Point offset, boolean externalOnly,
 		List<MatOfPoint> contours) {
-		Mat hierarchy = new Mat();
+		Mat hierarchy = findContoursHierarchy;
 		contours.clear();
 		int mode;
 		if (externalOnly) {
@@ -140,14 +268,15 @@ public class VisionTargetFilter {
 			mode = Imgproc.RETR_LIST;
 		}
 		int method = Imgproc.CHAIN_APPROX_SIMPLE;
-		Imgproc.findContours(input, contours, hierarchy, mode, method);
+		Imgproc.findContours(input, contours, hierarchy, mode, method, offset);
 	}
 
 
 	/**
 	 * Filters out contours that do not meet certain criteria.
-	 * @param inputContours is the input list of contours
+	 * @param inputContours is the input list of contours, with their features
 	 * @param output is the the output list of contours
+	 * @param outputFeatures receives the features of the output contours
 	 * @param minArea is the minimum area of a contour that will be kept
 	 * @param minPerimeter is the minimum perimeter of a contour that will be kept
 	 * @param minWidth minimum width of a contour
@@ -160,58 +289,53 @@ public class VisionTargetFilter {
 	 * @param minRatio minimum ratio of width to height
 	 * @param maxRatio maximum ratio of width to height
 	 */
-	private void filterContours(List<MatOfPoint> inputContours, double minArea,
+	private void filterContours(List<ContourFeatures> inputContours, double minArea,
 		double minPerimeter, double minWidth, double maxWidth, double minHeight, double
 		maxHeight, double[] solidity, double maxVertexCount, double minVertexCount, double
-		minRatio, double maxRatio, List<MatOfPoint> output) {
-		final MatOfInt hull = new MatOfInt();
+		minRatio, double maxRatio, List<MatOfPoint> output, List<ContourFeatures> outputFeatures) {
 		output.clear();
-		//operation
-		for (int i = 0; i < inputContours.size(); i++) {
-			final MatOfPoint contour = inputContours.get(i);
-			final Rect bb = Imgproc.boundingRect(contour);
-			if (bb.width < minWidth || bb.width > maxWidth) continue;
-			if (bb.height < minHeight || bb.height > maxHeight) continue;
-			final double area = Imgproc.contourArea(contour);
-			if (area < minArea) continue;
-			if (Imgproc.arcLength(new MatOfPoint2f(contour.toArray()), true) < minPerimeter) continue;
-			Imgproc.convexHull(contour, hull);
-			MatOfPoint mopHull = new MatOfPoint();
-			mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
-			for (int j = 0; j < hull.size().height; j++) {
-				int index = (int)hull.get(j, 0)[0];
-				double[] point = new double[] { contour.get(index, 0)[0], contour.get(index, 0)[1]};
-				mopHull.put(j, 0, point);
+		outputFeatures.clear();
+		//operation, largest contours first so a missed deadline drops the smallest
+		contourOrder.sort(inputContours);
+		for (int rank = 0; rank < contourOrder.size(); rank++) {
+			if (deadline != 0 && System.nanoTime() - deadline > 0) {
+				deadlineMissed = true;
+				break;
 			}
-			final double solid = 100 * area / Imgproc.contourArea(mopHull);
+			final int i = contourOrder.index(rank);
+			final ContourFeatures contour = inputContours.get(i);
+			final int width = contour.boundsWidth();
+			final int height = contour.boundsHeight();
+			if (width < minWidth || width > maxWidth) continue;
+			if (height < minHeight || height > maxHeight) continue;
+			final double area = contour.area();
+			if (area < minArea) continue;
+			if (contour.perimeter() < minPerimeter) continue;
+			final double solid = 100 * area / contour.hullArea();
 			if (solid < solidity[0] || solid > solidity[1]) continue;
-			if (contour.rows() < minVertexCount || contour.rows() > maxVertexCount)	continue;
-			final double ratio = bb.width / (double)bb.height;
+			if (contour.vertexCount() < minVertexCount || contour.vertexCount() > maxVertexCount)	continue;
+			final double ratio = width / (double)height;
 			if (ratio < minRatio || ratio > maxRatio) continue;
-			output.add(contour);
+			output.add(contour.contour());
+			outputFeatures.add(contour);
 		}
 	}
 
 	/**
 	 * Compute the convex hulls of contours.
+	 * The filter has already made each hull, for its solidity test.
 	 * @param inputContours The contours on which to perform the operation.
 	 * @param outputContours The contours where the output will be stored.
+	 * @param outputFeatures The hulls' features, starting out with what's known from their contours'.
 	 */
-	private void convexHulls(List<MatOfPoint> inputContours,
-		ArrayList<MatOfPoint> outputContours) {
-		final MatOfInt hull = new MatOfInt();
+	private void convexHulls(List<ContourFeatures> inputContours,
+		ArrayList<MatOfPoint> outputContours, ArrayList<ContourFeatures> outputFeatures) {
 		outputContours.clear();
+		outputFeatures.clear();
 		for (int i = 0; i < inputContours.size(); i++) {
-			final MatOfPoint contour = inputContours.get(i);
-			final MatOfPoint mopHull = new MatOfPoint();
-			Imgproc.convexHull(contour, hull);
-			mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
-			for (int j = 0; j < hull.size().height; j++) {
-				int index = (int) hull.get(j, 0)[0];
-				double[] point = new double[] {contour.get(index, 0)[0], contour.get(index, 0)[1]};
-				mopHull.put(j, 0, point);
-			}
-			outputContours.add(mopHull);
+			final ContourFeatures hull = featurePool.hullOf(inputContours.get(i));
+			outputContours.add(hull.contour());
+			outputFeatures.add(hull);
 		}
 	}
 
@@ -0,0 +1,92 @@
+package visiontargetfinder;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Decides if a frame looks different enough from the last processed frame to be
+ * worth running the whole vision pipeline on.
+ *
+ * <p>Each frame is shrunk to a small grayscale signature, and the mean absolute
+ * difference between that signature and the signature of the last processed frame
+ * is compared to a threshold. Skipped frames are compared against the last
+ * processed frame rather than their predecessor, so a slow drift still adds up to
+ * a change. After maxSkippedFrames skips in a row the next frame is processed
+ * regardless.
+ */
+public class SceneChangeDetector {
+
+	private final Size signatureSize = new Size(32, 24);
+	private final Mat small = new Mat();
+	private final Mat signature = new Mat();
+	private final Mat previousSignature = new Mat();
+	private final Mat difference = new Mat();
+
+	private final double threshold;
+	private final int maxSkippedFrames;
+
+	private boolean havePreviousSignature = false;
+	private int consecutiveSkips = 0;
+	private long skippedFrames = 0;
+	private long processedFrames = 0;
+	private double lastChange = 0;
+
+	/**
+	 * @param threshold        mean gray level difference (0-255) that counts as a
+	 *                         change of scene.
+	 * @param maxSkippedFrames how many frames in a row may be skipped.
+	 */
+	public SceneChangeDetector(double threshold, int maxSkippedFrames) {
+		this.threshold = threshold;
+		this.maxSkippedFrames = maxSkippedFrames;
+	}
+
+	/**
+	 * @param frame the BGR or raw YUYV camera frame.
+	 * @return true if the frame should be processed, false if the last result still
+	 *         stands.
+	 */
+	public boolean hasChanged(Mat frame) {
+		Imgproc.resize(frame, small, signatureSize, 0, 0, Imgproc.INTER_AREA);
+		if (small.channels() == 2) {
+			Core.extractChannel(small, signature, 0);
+		} else {
+			Imgproc.cvtColor(small, signature, Imgproc.COLOR_BGR2GRAY);
+		}
+
+		if (havePreviousSignature && consecutiveSkips < maxSkippedFrames) {
+			Core.absdiff(signature, previousSignature, difference);
+			lastChange = Core.mean(difference).val[0];
+			if (lastChange <= threshold) {
+				++consecutiveSkips;
+				++skippedFrames;
+				return false;
+			}
+		}
+
+		signature.copyTo(previousSignature);
+		havePreviousSignature = true;
+		consecutiveSkips = 0;
+		++processedFrames;
+		return true;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * @return the mean gray level difference measured on the last frame.
+	 */
+	public double getLastChange() {
+		return lastChange;
+	}
+
+	public long getSkippedFrames() {
+		return skippedFrames;
+	}
+
+	public long getProcessedFrames() {
+		return processedFrames;
+	}
+}
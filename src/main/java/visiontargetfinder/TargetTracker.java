@@ -0,0 +1,249 @@
+package visiontargetfinder;
+
+/**
+ * Follows every target pair in view from frame to frame, giving each one an ID
+ * that it keeps for as long as it's tracked.
+ *
+ * <p>Each frame's pairs are matched to the tracks by nearest neighbour: every
+ * track predicts where its pair has moved to from its last two sightings, and
+ * the closest track and pair are matched first, then the next closest, and so
+ * on, as long as they're within a pair's width of each other. Neighbouring
+ * hatches are about two and a half pair widths apart, so they can't be mistaken
+ * for one another. A pair left over starts a new track, and a track that goes
+ * {@value #MAX_MISSES} frames without its pair is dropped.
+ *
+ * <p>Everything lives in primitive arrays of {@value #MAX_TRACKS} slots, so
+ * tracking a frame allocates nothing. Coordinates are pixels.
+ */
+public class TargetTracker {
+
+	public static final int MAX_TRACKS = 8;
+
+	/*
+	 * Each slot of a snapshot is FIELDS doubles: the track's ID (0 for an empty
+	 * slot), the centers of its left and right targets as x, y, x, y, and how many
+	 * frames ago it was last seen.
+	 */
+	public static final int FIELDS = 6;
+	public static final int ID = 0;
+	public static final int LEFT_X = 1;
+	public static final int LEFT_Y = 2;
+	public static final int RIGHT_X = 3;
+	public static final int RIGHT_Y = 4;
+	public static final int FRAMES_UNSEEN = 5;
+
+	static final int MAX_MISSES = 5;
+
+	/*
+	 * How much closer to the center of the frame, as a fraction of its width, a pair
+	 * has to be than the one already selected to be selected instead.
+	 */
+	static final double SWITCH_MARGIN = 0.15;
+
+	private final int[] ids = new int[MAX_TRACKS];
+	private final double[] leftX = new double[MAX_TRACKS];
+	private final double[] leftY = new double[MAX_TRACKS];
+	private final double[] rightX = new double[MAX_TRACKS];
+	private final double[] rightY = new double[MAX_TRACKS];
+	/* How far the pair's center moved between its last two sightings, per frame. */
+	private final double[] velocityX = new double[MAX_TRACKS];
+	private final double[] velocityY = new double[MAX_TRACKS];
+	private final int[] misses = new int[MAX_TRACKS];
+	/* Which of this frame's pairs each track was matched to, or -1. */
+	private final int[] detection = new int[MAX_TRACKS];
+
+	/* Scratch for matching, reused every frame. */
+	private final double[] distances = new double[MAX_TRACKS * MAX_TRACKS];
+	private final boolean[] detectionMatched = new boolean[MAX_TRACKS];
+
+	private int nextId = 1;
+	private int selectedId = 0;
+
+	/**
+	 * Match this frame's pairs to the tracks. Past {@value #MAX_TRACKS} pairs, the
+	 * rest are ignored, so callers with more should pick which to pass.
+	 *
+	 * @param pairs the centers of each pair's left and right targets, as x, y, x, y
+	 * @param count how many pairs there are
+	 */
+	public void update(double[] pairs, int count) {
+		count = Math.min(count, MAX_TRACKS);
+
+		for (int track = 0; track < MAX_TRACKS; ++track) {
+			detection[track] = -1;
+			if (ids[track] == 0) {
+				continue;
+			}
+			/* Where the track expects its pair to be now. */
+			double frames = misses[track] + 1;
+			double predictedX = (leftX[track] + rightX[track]) / 2.0 + velocityX[track] * frames;
+			double predictedY = (leftY[track] + rightY[track]) / 2.0 + velocityY[track] * frames;
+			double gate = Math.hypot(rightX[track] - leftX[track], rightY[track] - leftY[track]);
+			for (int pair = 0; pair < count; ++pair) {
+				double distance = Math.hypot((pairs[pair * 4] + pairs[pair * 4 + 2]) / 2.0 - predictedX,
+						(pairs[pair * 4 + 1] + pairs[pair * 4 + 3]) / 2.0 - predictedY);
+				distances[track * MAX_TRACKS + pair] = distance <= gate ? distance : Double.POSITIVE_INFINITY;
+			}
+		}
+		for (int pair = 0; pair < count; ++pair) {
+			detectionMatched[pair] = false;
+		}
+
+		/* Match the closest track and pair, then the next closest, until none are close. */
+		while (true) {
+			double closest = Double.POSITIVE_INFINITY;
+			int closestTrack = -1;
+			int closestPair = -1;
+			for (int track = 0; track < MAX_TRACKS; ++track) {
+				if (ids[track] == 0 || detection[track] >= 0) {
+					continue;
+				}
+				for (int pair = 0; pair < count; ++pair) {
+					if (!detectionMatched[pair] && distances[track * MAX_TRACKS + pair] < closest) {
+						closest = distances[track * MAX_TRACKS + pair];
+						closestTrack = track;
+						closestPair = pair;
+					}
+				}
+			}
+			if (closestTrack < 0) {
+				break;
+			}
+			detection[closestTrack] = closestPair;
+			detectionMatched[closestPair] = true;
+
+			double frames = misses[closestTrack] + 1;
+			velocityX[closestTrack] = ((pairs[closestPair * 4] + pairs[closestPair * 4 + 2])
+					- (leftX[closestTrack] + rightX[closestTrack])) / 2.0 / frames;
+			velocityY[closestTrack] = ((pairs[closestPair * 4 + 1] + pairs[closestPair * 4 + 3])
+					- (leftY[closestTrack] + rightY[closestTrack])) / 2.0 / frames;
+			set(closestTrack, pairs, closestPair);
+		}
+
+		/* Age the tracks that weren't seen, and drop the ones gone too long. */
+		for (int track = 0; track < MAX_TRACKS; ++track) {
+			if (ids[track] != 0 && detection[track] < 0 && ++misses[track] > MAX_MISSES) {
+				ids[track] = 0;
+			}
+		}
+
+		/* Start a track for each pair left over, in a free slot or the stalest one's. */
+		for (int pair = 0; pair < count; ++pair) {
+			if (detectionMatched[pair]) {
+				continue;
+			}
+			int slot = -1;
+			for (int track = 0; track < MAX_TRACKS; ++track) {
+				if (ids[track] == 0) {
+					slot = track;
+					break;
+				}
+				if (detection[track] < 0 && (slot < 0 || misses[track] > misses[slot])) {
+					slot = track;
+				}
+			}
+			if (slot < 0) {
+				continue;
+			}
+			ids[slot] = nextId++;
+			velocityX[slot] = 0.0;
+			velocityY[slot] = 0.0;
+			detection[slot] = pair;
+			set(slot, pairs, pair);
+		}
+	}
+
+	private void set(int track, double[] pairs, int pair) {
+		leftX[track] = pairs[pair * 4];
+		leftY[track] = pairs[pair * 4 + 1];
+		rightX[track] = pairs[pair * 4 + 2];
+		rightY[track] = pairs[pair * 4 + 3];
+		misses[track] = 0;
+	}
+
+	/**
+	 * Pick the pair to aim at from this frame's. The pair with the requested ID if
+	 * it's in view, otherwise the pair closest to the center of the frame, except
+	 * that the pair selected last frame stays selected unless another is closer by
+	 * {@link #SWITCH_MARGIN}, so the selection doesn't flip between two hatches
+	 * near the center.
+	 *
+	 * @param frameWidth  the frame's width in pixels
+	 * @param requestedId the ID of the track to aim at, or 0 for the one closest to
+	 *                    the center
+	 * @return the slot of the selected track, or -1 if no pair is in view.
+	 */
+	public int select(int frameWidth, int requestedId) {
+		int closest = -1;
+		double closestDistance = Double.POSITIVE_INFINITY;
+		int previous = -1;
+		for (int track = 0; track < MAX_TRACKS; ++track) {
+			if (ids[track] == 0 || detection[track] < 0) {
+				continue;
+			}
+			if (requestedId != 0 && ids[track] == requestedId) {
+				selectedId = requestedId;
+				return track;
+			}
+			double distance = Math.abs((leftX[track] + rightX[track]) / 2.0 - frameWidth / 2.0);
+			if (distance < closestDistance) {
+				closestDistance = distance;
+				closest = track;
+			}
+			if (ids[track] == selectedId) {
+				previous = track;
+			}
+		}
+		if (previous >= 0 && Math.abs((leftX[previous] + rightX[previous]) / 2.0 - frameWidth / 2.0)
+				- closestDistance <= SWITCH_MARGIN * frameWidth) {
+			closest = previous;
+		}
+		selectedId = closest >= 0 ? ids[closest] : 0;
+		return closest;
+	}
+
+	/**
+	 * @return which of this frame's pairs a track was matched to, or -1.
+	 */
+	public int detection(int track) {
+		return detection[track];
+	}
+
+	public int id(int track) {
+		return ids[track];
+	}
+
+	/**
+	 * @return the ID of the last selected track, or 0.
+	 */
+	public int getSelectedId() {
+		return selectedId;
+	}
+
+	/**
+	 * Copy every slot into snapshot, FIELDS doubles each.
+	 */
+	public void snapshot(double[] snapshot) {
+		for (int track = 0; track < MAX_TRACKS; ++track) {
+			int offset = track * FIELDS;
+			snapshot[offset + ID] = ids[track];
+			boolean empty = ids[track] == 0;
+			snapshot[offset + LEFT_X] = empty ? Double.NaN : leftX[track];
+			snapshot[offset + LEFT_Y] = empty ? Double.NaN : leftY[track];
+			snapshot[offset + RIGHT_X] = empty ? Double.NaN : rightX[track];
+			snapshot[offset + RIGHT_Y] = empty ? Double.NaN : rightY[track];
+			snapshot[offset + FRAMES_UNSEEN] = empty ? Double.NaN : misses[track];
+		}
+	}
+
+	/**
+	 * Drop every track.
+	 */
+	public void clear() {
+		for (int track = 0; track < MAX_TRACKS; ++track) {
+			ids[track] = 0;
+			detection[track] = -1;
+		}
+		selectedId = 0;
+	}
+}
@@ -1,12 +1,14 @@
 package visiontargetfinder;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 
 import org.opencv.core.*;
 import org.opencv.core.RotatedRect;
 import org.opencv.imgproc.Imgproc;
 
+import visionhelper.VisionEvents;
 import visionhelper.contourHelper;
 import visiontargetfilter.*;
 
@@ -15,20 +17,123 @@ import java.util.Date;
 
 public class VisionTargetFinder {
 
-	VisionTargetFilter visionTargetFilter;
+	ContourPipeline visionTargetFilter;
 
 	contourHelper helper = new contourHelper();
 
 	public VisionTargetFinder() {
+		this(new VisionTargetFilter());
+	}
+
+	public VisionTargetFinder(ContourPipeline contourPipeline) {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 
-		visionTargetFilter = new VisionTargetFilter();
+		visionTargetFilter = contourPipeline;
+
+	}
+
+	public ContourPipeline getVisionTargetFilter() {
+		return visionTargetFilter;
+	}
+
+	public void setVisionTargetFilter(ContourPipeline contourPipeline) {
+		visionTargetFilter = contourPipeline;
+		visionTargetFilter.setDeadline(deadline);
+	}
+
+	/*
+	 * When the search for the next frame's target has to stop, as a System.nanoTime(),
+	 * or 0 for never. Past it, the contour pipeline stops filtering and the finder
+	 * stops scoring contours; both go largest first, so what's left unchecked is the
+	 * smallest. The best pair among the contours checked is returned, marked partial.
+	 */
+	long deadline = 0;
+	long framesSearched = 0;
+	long deadlineMisses = 0;
+	long droppedPairs = 0;
+
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+		visionTargetFilter.setDeadline(deadline);
+	}
+
+	public long getFramesSearched() {
+		return framesSearched;
+	}
+
+	/*
+	 * @return how many frames' searches were cut short by their deadline.
+	 */
+	public long getDeadlineMisses() {
+		return deadlineMisses;
+	}
+
+	/*
+	 * @return how many pairs were left untracked because a frame had more than
+	 * TargetTracker.MAX_TRACKS of them.
+	 */
+	public long getDroppedPairs() {
+		return droppedPairs;
+	}
+
+	/*
+	 * The gates a contour, or a pair of them, has to pass to be taken as a vision
+	 * target. The defaults are the values tuned on the practice field.
+	 */
+	public static class Tuning {
+		/* Least contour area / rotated rectangle area for a contour to count as a rectangle. */
+		public double minFillRatio = 0.6;
+		/* Least rotated rectangle area as a fraction of the frame's area. */
+		public double minAreaFraction = 5.6251e-4;
+		/* Adjusted angle window of a left target, in degrees. */
+		public double leftAngleMin = 55.7;
+		public double leftAngleMax = 90.0;
+		/* Adjusted angle window of a right target, in degrees. */
+		public double rightAngleMin = 90.0;
+		public double rightAngleMax = 124.3;
+		/* Range of the left target's area as a multiple of the right target's. */
+		public double minSimilarArea = 0.5;
+		public double maxSimilarArea = 1.5;
+		/* Steepest line between the centers of a pair, in degrees. */
+		public double maxPairAngle = 25.0;
+		/* Least distance between the centers of a pair as a fraction of the frame width. */
+		public double minDispersion = 0.0365;
+	}
+
+	Tuning tuning = new Tuning();
 
+	public Tuning getTuning() {
+		return tuning;
+	}
+
+	public void setTuning(Tuning tuning) {
+		this.tuning = tuning;
 	}
 
 	public class TargetInformation {
 		public double normalizedCenter = Double.NaN;
 		public double distanceToTargetNormalized = Double.NaN;
+		/* Pixel centers of the pair's left and right targets, as seen in the frame. */
+		public double leftX = Double.NaN;
+		public double leftY = Double.NaN;
+		public double rightX = Double.NaN;
+		public double rightY = Double.NaN;
+		/*
+		 * Pixel corners of the pair's left target then its right target's, as x,y
+		 * pairs, in the order their rotated rectangles give them; NaN with no target.
+		 */
+		public final double[] corners = new double[16];
+		{
+			Arrays.fill(corners, Double.NaN);
+		}
+		public int frameWidth;
+		public int frameHeight;
+		/* True if the deadline passed before every contour was checked. */
+		public boolean partial;
+		/* The ID of the selected pair's track, or 0 with no target. */
+		public int trackId;
+		/* Every tracked pair, TargetTracker.FIELDS doubles per slot. */
+		public final double[] tracks = new double[TargetTracker.MAX_TRACKS * TargetTracker.FIELDS];
 	}
 
 	private class VisionTargetPair {
@@ -46,26 +151,37 @@ public class VisionTargetFinder {
 	ArrayList<VisionTargetPair> targetPairs = new ArrayList<>();
 	Point m_selectedPoint;
 
+	static final Scalar BLUE = new Scalar(255, 0, 0);
+	static final Scalar GREEN = new Scalar(0, 255, 0);
+	static final Scalar RED = new Scalar(0, 0, 255);
+
+	final SimpleDateFormat timestampFormatter = new SimpleDateFormat("MM/dd hh:mm:ss.SSS");
+	final Date timestamp = new Date();
+	final Point timestampOrigin = new Point(1, 25);
+	final Point[] vertices = new Point[4];
+	final Point lineStart = new Point();
+	final Point lineEnd = new Point();
+
 	public void annotateStream(Mat matImage) {
+		VisionEvents.Annotate event = new VisionEvents.Annotate();
+		event.begin();
 
 		/* Draw all the contours we found in blue. */
 		for (int index = 0; index < allContours.size(); ++index) {
-			Imgproc.drawContours(matImage, allContours, index, new Scalar(255, 0, 0));
+			Imgproc.drawContours(matImage, allContours, index, BLUE);
 		}
 
 		/* Draw the good rectangles that we found in blue. */
 		for (RotatedRect rRect : goodRectangles) {
-			Point[] vertices = new Point[4];
 			rRect.points(vertices);
 			for (int j = 0; j < 4; j++) {
-				Imgproc.line(matImage, vertices[j], vertices[(j + 1) % 4], new Scalar(0, 255, 0));
+				Imgproc.line(matImage, vertices[j], vertices[(j + 1) % 4], GREEN);
 			}
 		}
 
 		/* Draw the line between the target pairs we found in red. */
 		for (VisionTargetPair targetPair : targetPairs) {
-			Imgproc.line(matImage, new Point(targetPair.LTarget.center.x, targetPair.LTarget.center.y),
-					new Point(targetPair.RTarget.center.x, targetPair.RTarget.center.y), new Scalar(0, 0, 255));
+			Imgproc.line(matImage, targetPair.LTarget.center, targetPair.RTarget.center, RED);
 		}
 
 		if (m_selectedPoint != null) {
@@ -73,22 +189,32 @@ public class VisionTargetFinder {
 			 * Draw a marker in the middle of the selected target pair's connecting line in
 			 * red.
 			 */
-			Imgproc.drawMarker(matImage, m_selectedPoint, new Scalar(0, 0, 255), Imgproc.MARKER_TILTED_CROSS);
+			Imgproc.drawMarker(matImage, m_selectedPoint, RED, Imgproc.MARKER_TILTED_CROSS);
 
 			/* Draw a thick, vertical line through the target point in red. */
-			Imgproc.line(matImage, new Point(m_selectedPoint.x, 0), new Point(m_selectedPoint.x, matImage.cols()),
-					new Scalar(0, 0, 255), 2);
+			lineStart.x = m_selectedPoint.x;
+			lineStart.y = 0;
+			lineEnd.x = m_selectedPoint.x;
+			lineEnd.y = matImage.cols();
+			Imgproc.line(matImage, lineStart, lineEnd, RED, 2);
 		}
 
-		SimpleDateFormat formatter = new SimpleDateFormat("MM/dd hh:mm:ss.SSS");
-		Imgproc.putText(matImage, formatter.format(new Date()), new Point(1, 25), Core.FONT_HERSHEY_SIMPLEX, 0.75,
-				new Scalar(0, 0, 255));
+		timestamp.setTime(System.currentTimeMillis());
+		Imgproc.putText(matImage, timestampFormatter.format(timestamp), timestampOrigin, Core.FONT_HERSHEY_SIMPLEX,
+				0.75, RED);
+
+		if (event.shouldCommit()) {
+			event.contourCount = allContours.size();
+			event.pairCount = targetPairs.size();
+			event.commit();
+		}
 
 	}
 
 	public TargetInformation getVisionTargetLocation(Mat matImage) {
 
-		TargetInformation targetInformation = new TargetInformation();
+		VisionEvents.TargetSearch event = new VisionEvents.TargetSearch();
+		event.begin();
 
 		/*
 		 * Process the image and look for contours that might be vision targets.
@@ -96,6 +222,31 @@ public class VisionTargetFinder {
 		 */
 		visionTargetFilter.process(matImage);
 
+		TargetInformation targetInformation = findVisionTarget(matImage);
+
+		if (event.shouldCommit()) {
+			event.contourCount = allContours.size();
+			event.candidateCount = goodRectangles.size();
+			event.pairCount = targetPairs.size();
+			event.untrackedPairs = Math.max(0, targetPairs.size() - TargetTracker.MAX_TRACKS);
+			event.frameWidth = matImage.cols();
+			event.frameHeight = matImage.rows();
+			event.found = !Double.isNaN(targetInformation.normalizedCenter);
+			event.partial = targetInformation.partial;
+			event.commit();
+		}
+
+		return targetInformation;
+	}
+
+	/*
+	 * Look for a vision target pair among the contours that the contour pipeline
+	 * has already found in matImage.
+	 */
+	public TargetInformation findVisionTarget(Mat matImage) {
+
+		TargetInformation targetInformation = new TargetInformation();
+
 		goodRectangles.clear();
 		targetPairs.clear();
 
@@ -106,6 +257,8 @@ public class VisionTargetFinder {
 		 * contours now holds ALL the contours that the GRIP pipeline could find.
 		 */
 		allContours = visionTargetFilter.convexHullsOutput();
+		ArrayList<ContourFeatures> allFeatures = visionTargetFilter.convexHullsFeatures();
+		targetInformation.partial = visionTargetFilter.missedDeadline();
 
 		/*
 		 * If the GRIP pipeline found *anything*, take a look at the contours it found
@@ -118,7 +271,16 @@ public class VisionTargetFinder {
 			 * "item" and figure out if it's angled correctly to be either a left leaning or
 			 * right leaning vision target.
 			 */
-			for (MatOfPoint item : allContours) {
+			for (ContourFeatures item : allFeatures) {
+
+				/*
+				 * Out of time: pair up what's been found so far. The contours come largest
+				 * first, so the ones left are the least likely to be the target.
+				 */
+				if (deadline != 0 && System.nanoTime() - deadline > 0) {
+					targetInformation.partial = true;
+					break;
+				}
 
 				/*
 				 * Determine how close to a pure rectangle the contour is. First, determine the
@@ -130,20 +292,23 @@ public class VisionTargetFinder {
 				 * 
 				 * Figure out which value is smaller, and divide it by the other. This ratio, if
 				 * it's close to 1.0, is the best fit to a rectangle.
+				 * 
+				 * The contour pipeline usually measured the area already, and passes it along
+				 * with the contour.
 				 */
 
-				double contourArea = helper.getArea(item);
+				double contourArea = item.area();
 
-				RotatedRect rectangle = helper.getRotatedRectangle(item);
+				RotatedRect rectangle = item.rotatedRect();
 				double rectangleArea = rectangle.size.area();
 				double ratio = Math.min(contourArea, rectangleArea) / Math.max(contourArea, rectangleArea);
 
-				if (ratio < 0.6) {
+				if (ratio < tuning.minFillRatio) {
 					//System.out.println(String.format("Rejected contour with ratio %f,contour area %f, rectangle%s",(float)ratio,contourArea,rectangle.toString()));
 					continue;
 				}
 				double rectangleRatioArea = rectangleArea / (matImage.cols() * matImage.rows());
-				if (rectangleRatioArea < 5.6251e-4) {
+				if (rectangleRatioArea < tuning.minAreaFraction) {
 					// System.out.printf("rectangleRatioArea %f, rectangle%s,",rectangleRatioArea, rectangle.toString());
 					continue;
 				}
@@ -239,53 +404,27 @@ public class VisionTargetFinder {
 				}
 			}
 
+			/*
+			 * Follow every pair from frame to frame, so each keeps its ID for as long as
+			 * it's in view.
+			 */
+			int selectedTrack = trackPairs(matImage.cols());
+
 			/*
 			 * Check if we found *any* vision target pairs. If we did, figure out one which
 			 * one to aim the robot at.
 			 * 
-			 * Track to the pair that's closest to the center of the camera, as this is
-			 * likely to be the one that the driver aimed at.
+			 * Track to the pair the RoboRIO asked for by ID if it's in view. Otherwise
+			 * track to the pair that's closest to the center of the camera, as this is
+			 * likely to be the one that the driver aimed at, but stay with last frame's
+			 * pair unless another is clearly closer, so the target doesn't flip between
+			 * two neighbouring hatches from one frame to the next.
 			 */
-			if (targetPairs.size() > 0) {
-
-				/*
-				 * Initialize everything with the first target pair that we know about. First,
-				 * compute the distance between the center of the targetPair and the center of
-				 * the screen.
-				 * 
-				 * Store this distance between the center point between the vision targets and
-				 * the center of the screen into the variable "leastDistanceFromCenter". (Since
-				 * we don't care about the Y coordinate, just ignore that value from each of the
-				 * targetPairs.)
-				 * 
-				 * Then, compare this leastDistanceFromCenter to the distance from the center of
-				 * each of the other targetPairs.
-				 * 
-				 * If the next targetPair's center is closer to the center of the screen, update
-				 * leastDistanceFromCenter to that targetPair's center-to-center distance, and
-				 * remember that targetPair's center point in "closestCenterPoint"
-				 * 
-				 */
-				Point closestCenterPoint = helper.getCenter(targetPairs.get(0).LTarget.center,
-						targetPairs.get(0).RTarget.center);
-				double leastDistanceFromCenter = Math.abs((matImage.cols() / 2) - closestCenterPoint.x);
-
-				VisionTargetPair bestTarget = targetPairs.get(0);
-
-				for (int index = 1; index < targetPairs.size(); ++index) {
-
-					Point centerPoint = helper.getCenter(targetPairs.get(index).LTarget.center,
-							targetPairs.get(index).RTarget.center);
-					double distanceFromCenter = Math.abs((matImage.cols() / 2) - centerPoint.x);
-
-					if (distanceFromCenter < leastDistanceFromCenter) {
-						leastDistanceFromCenter = distanceFromCenter;
+			if (selectedTrack >= 0) {
 
-						closestCenterPoint = centerPoint;
-
-						bestTarget = targetPairs.get(index);
-					}
-				}
+				VisionTargetPair bestTarget = targetPairs.get(pairIndexes[tracker.detection(selectedTrack)]);
+				Point closestCenterPoint = helper.getCenter(bestTarget.LTarget.center, bestTarget.RTarget.center);
+				targetInformation.trackId = tracker.id(selectedTrack);
 
 				/*
 				 * closestCenterPoint contains the x and y coordinates of the center of the
@@ -324,14 +463,101 @@ public class VisionTargetFinder {
 					targetInformation.distanceToTargetNormalized = Double.NaN;
 				}
 
+				targetInformation.leftX = bestTarget.LTarget.center.x;
+				targetInformation.leftY = bestTarget.LTarget.center.y;
+				targetInformation.rightX = bestTarget.RTarget.center.x;
+				targetInformation.rightY = bestTarget.RTarget.center.y;
+				readCorners(bestTarget.LTarget, targetInformation.corners, 0);
+				readCorners(bestTarget.RTarget, targetInformation.corners, 8);
+				targetInformation.frameWidth = matImage.cols();
+				targetInformation.frameHeight = matImage.rows();
+
 				m_selectedPoint = closestCenterPoint;
 			}
+		} else {
+			trackPairs(matImage.cols());
+		}
+		tracker.snapshot(targetInformation.tracks);
+
+		++framesSearched;
+		if (targetInformation.partial) {
+			++deadlineMisses;
 		}
 
 		return targetInformation;
 
 	}
 
+	TargetTracker tracker = new TargetTracker();
+	final double[] pairCenters = new double[TargetTracker.MAX_TRACKS * 4];
+	/* Which of targetPairs each of pairCenters' pairs is, and its tapes' area. */
+	final int[] pairIndexes = new int[TargetTracker.MAX_TRACKS];
+	final double[] pairAreas = new double[TargetTracker.MAX_TRACKS];
+
+	/* The ID of the track the RoboRIO wants to aim at, or 0 for the one closest to the center. */
+	volatile int requestedTrack = 0;
+
+	public void setRequestedTrack(int id) {
+		requestedTrack = id;
+	}
+
+	public TargetTracker getTracker() {
+		return tracker;
+	}
+
+	/*
+	 * Update the tracks with this frame's pairs. With more pairs than the tracker
+	 * has slots, the ones with the largest tapes are tracked, as they're the
+	 * closest, and the rest are counted as dropped.
+	 *
+	 * @return the slot of the track to aim at, or -1 if there's no pair.
+	 */
+	int trackPairs(int frameWidth) {
+		int count = 0;
+		for (int index = 0; index < targetPairs.size(); ++index) {
+			VisionTargetPair pair = targetPairs.get(index);
+			double area = pair.LTarget.size.area() + pair.RTarget.size.area();
+			if (count == TargetTracker.MAX_TRACKS) {
+				++droppedPairs;
+				if (area <= pairAreas[count - 1]) {
+					continue;
+				}
+				--count;
+			}
+			/* Insert it, keeping the kept pairs largest first. */
+			int slot = count++;
+			while (slot > 0 && pairAreas[slot - 1] < area) {
+				pairAreas[slot] = pairAreas[slot - 1];
+				pairIndexes[slot] = pairIndexes[slot - 1];
+				--slot;
+			}
+			pairAreas[slot] = area;
+			pairIndexes[slot] = index;
+		}
+		for (int slot = 0; slot < count; ++slot) {
+			VisionTargetPair pair = targetPairs.get(pairIndexes[slot]);
+			pairCenters[slot * 4] = pair.LTarget.center.x;
+			pairCenters[slot * 4 + 1] = pair.LTarget.center.y;
+			pairCenters[slot * 4 + 2] = pair.RTarget.center.x;
+			pairCenters[slot * 4 + 3] = pair.RTarget.center.y;
+		}
+		tracker.update(pairCenters, count);
+		return tracker.select(frameWidth, requestedTrack);
+	}
+
+	final Point[] rectangleCorners = new Point[4];
+
+	/*
+	 * Copy a rotated rectangle's four corners into corners from first on, as x,y pairs.
+	 */
+	void readCorners(RotatedRect rectangle, double[] corners, int first) {
+		rectangle.points(rectangleCorners);
+		for (int corner = 0; corner < 4; ++corner) {
+			corners[first + corner * 2] = rectangleCorners[corner].x;
+			corners[first + corner * 2 + 1] = rectangleCorners[corner].y;
+		}
+	}
+
 	boolean isTiltedLikeVisionTarget(double angle) {
 
 		// left vision target --------------------- Right vision target
@@ -341,13 +567,13 @@ public class VisionTargetFinder {
 
 	boolean isTiltedLikeLeftVisionTarget(double angle) {
 
-		return (angle < 90.0 && angle > 55.7);
+		return (angle < tuning.leftAngleMax && angle > tuning.leftAngleMin);
 
 	}
 
 	boolean isTiltedLikeRightVisionTarget(double angle) {
 
-		return (angle > 90.0 && angle < 124.3);
+		return (angle > tuning.rightAngleMin && angle < tuning.rightAngleMax);
 
 	}
 
@@ -360,7 +586,7 @@ public class VisionTargetFinder {
 			double firstArea = first.size.area();
 			double secondArea = second.size.area();
 
-			if ((firstArea < (0.5 * secondArea)) || (firstArea > (1.5 * secondArea))) {
+			if ((firstArea < (tuning.minSimilarArea * secondArea)) || (firstArea > (tuning.maxSimilarArea * secondArea))) {
 				return false;
 			}
 		} catch (ArithmeticException e) {
@@ -384,7 +610,7 @@ public class VisionTargetFinder {
 			double lineAngle = Math
 					.toDegrees(Math.atan((first.center.y - second.center.y) / (first.center.x - second.center.x)));
 
-			if (lineAngle < -25.0 || lineAngle > 25.0) {
+			if (lineAngle < -tuning.maxPairAngle || lineAngle > tuning.maxPairAngle) {
 				/*
 				 * This is not a very horizontal line. Return false indicating that these two
 				 * rectangles's origins are not on a horizontal enough line.
@@ -427,7 +653,7 @@ public class VisionTargetFinder {
 		try {
 			double distance = Math.hypot(first.center.y - second.center.y, first.center.x - second.center.x);
 			double magicRatio = distance / matImage.cols();
-			if (magicRatio < 0.0365) {
+			if (magicRatio < tuning.minDispersion) {
 				return false;
 			} else {
 				return true;